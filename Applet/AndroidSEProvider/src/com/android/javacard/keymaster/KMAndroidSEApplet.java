@@ -21,8 +21,15 @@ import org.globalplatform.upgrade.UpgradeManager;
 
 public class KMAndroidSEApplet extends KMKeymasterApplet implements OnUpgradeListener {
 
-  KMAndroidSEApplet() {
-    super(new KMAndroidSEProvider());
+  // Install parameters of the cipher and signature pools, which follow the applet install
+  // parameters.
+  private static final short INSTALL_PARAM_POOL_MIN_INSTANCES = 2;
+  private static final short INSTALL_PARAM_POOL_MAX_INSTANCES = 3;
+
+  KMAndroidSEApplet(short maxOperations, byte flags, short minPoolInstances,
+      short maxPoolInstances) {
+    super(new KMAndroidSEProvider(maxOperations, minPoolInstances, maxPoolInstances),
+        maxOperations, flags);
   }
 
   /**
@@ -33,7 +40,15 @@ public class KMAndroidSEApplet extends KMKeymasterApplet implements OnUpgradeLis
    * @param bLength the length in bytes of the parameter data in bArray
    */
   public static void install(byte[] bArray, short bOffset, byte bLength) {
-    new KMAndroidSEApplet().register(bArray, (short) (bOffset + 1), bArray[bOffset]);
+    short maxOperations = readInstallParam(bArray, bOffset, bLength,
+        INSTALL_PARAM_MAX_OPERATIONS, KMRepository.DEFAULT_MAX_OPS);
+    new KMAndroidSEApplet(
+        maxOperations,
+        (byte) readInstallParam(bArray, bOffset, bLength, INSTALL_PARAM_FLAGS, (short) 0),
+        readInstallParam(bArray, bOffset, bLength, INSTALL_PARAM_POOL_MIN_INSTANCES, (short) 0),
+        readInstallParam(bArray, bOffset, bLength, INSTALL_PARAM_POOL_MAX_INSTANCES,
+            maxOperations))
+        .register(bArray, (short) (bOffset + 1), bArray[bOffset]);
   }
 
   @Override
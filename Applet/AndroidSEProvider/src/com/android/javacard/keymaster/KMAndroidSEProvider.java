@@ -30,6 +30,7 @@ import javacard.security.Key;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
 import javacard.security.MessageDigest;
+import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPrivateKey;
 import javacard.security.RSAPublicKey;
 import javacard.security.RandomData;
@@ -116,7 +117,43 @@ public class KMAndroidSEProvider implements KMSEProvider {
   public static final byte KEYSIZE_256_OFFSET = 0x01;
   public static final short TMP_ARRAY_SIZE = 256;
   private static final short RSA_KEY_SIZE = 256;
+  // RSA private key in CRT form - P, Q, DP1, DQ1 and PQ, each zero padded to half the key size.
+  private static final byte RSA_CRT_COMPONENTS = 5;
+  private static final short RSA_CRT_COMPONENT_SIZE = (short) (RSA_KEY_SIZE / 2);
+  private static final short RSA_CRT_KEY_SIZE =
+      (short) (RSA_CRT_COMPONENTS * RSA_CRT_COMPONENT_SIZE);
   public static final short CERT_CHAIN_MAX_SIZE = 2500;//First 2 bytes for length.
+  // Number of key objects of each algorithm and key size used by the operations.
+  private static final byte KEY_POOL_SIZE = 2;
+  // Operation key pools
+  private static final byte AES_128_KEY_POOL = 0;
+  private static final byte AES_256_KEY_POOL = 1;
+  private static final byte TDES_KEY_POOL = 2;
+  private static final byte HMAC_KEY_POOL = 3;
+  private static final byte RSA_KEY_POOL = 4;
+  private static final byte EC_KEY_POOL = 5;
+  private static final byte RSA_CRT_KEY_POOL = 6;
+  private static final byte KEY_POOLS = 7;
+  // Key id of a key object of the key pools - valid flag followed by the digest of the key blob.
+  private static final byte KEY_ID_SIZE = 32;
+  private static final byte KEY_POOL_ID_ENTRY_SIZE = 1 + KEY_ID_SIZE;
+  // Number of pregenerated EC key pairs.
+  private static final byte EC_KEY_PAIR_POOL_SIZE = 4;
+  // Number of pregenerated RSA 2048 key pairs with public exponent 65537.
+  private static final byte RSA_KEY_PAIR_POOL_SIZE = 2;
+  static final byte[] RSA_PUBLIC_EXPONENT = {0x01, 0x00, 0x01};
+  // Key pair pools
+  private static final byte EC_KEY_PAIR_POOL = 0;
+  private static final byte RSA_KEY_PAIR_POOL = 1;
+  private static final byte KEY_PAIR_POOLS = 2;
+  // Pool statistics of each algorithm, CIPHER_ALGS followed by SIG_ALGS and then the key pair
+  // pools.
+  private static final byte POOL_STAT_HITS = 0;
+  private static final byte POOL_STAT_MISSES = 1;
+  private static final byte POOL_STAT_EXHAUSTIONS = 2;
+  // Key pair pools have no exhaustions, they count the refilled key pairs instead.
+  private static final byte POOL_STAT_REFILLS = 2;
+  private static final byte POOL_STATS = 3;
 
   final byte[] CIPHER_ALGS = {
       Cipher.ALG_AES_BLOCK_128_CBC_NOPAD,
@@ -138,6 +175,12 @@ public class KMAndroidSEProvider implements KMSEProvider {
       KMRsa2048NoDigestSignature.ALG_RSA_PKCS1_NODIGEST,
       KMEcdsa256NoDigestSignature.ALG_ECDSA_NODIGEST};
 
+  // Number of instances of each cipher algorithm in CIPHER_ALGS created at install. The
+  // algorithms used by most of the operations are pre-warmed with more instances.
+  static final byte[] CIPHER_POOL_MIN_INSTANCES = {2, 1, 1, 1, 1, 1, 1, 1, 2};
+  // Number of instances of each signature algorithm in SIG_ALGS created at install.
+  static final byte[] SIG_POOL_MIN_INSTANCES = {2, 1, 2, 2, 1, 1, 1};
+
   // AESKey
   private AESKey aesKeys[];
   // DES3Key
@@ -146,22 +189,49 @@ public class KMAndroidSEProvider implements KMSEProvider {
   private HMACKey hmacKey;
   // RSA Key Pair
   private KeyPair rsaKeyPair;
+  // RSA Key Pair in CRT form, used to generate the keys.
+  private KeyPair rsaCrtKeyPair;
   // EC Key Pair.
   private KeyPair ecKeyPair;
+  // Pregenerated EC key pairs, generated by refillKeyPairPool so that key generation does not
+  // wait for the key pair generation. The key pairs are kept in key objects and the private key
+  // is copied out only when the key pair is taken out of the pool.
+  private KeyPair[] ecKeyPairPool;
+  // Number of available key pairs in ecKeyPairPool.
+  private short ecKeyPairPoolCount;
+  // Pregenerated RSA key pairs in CRT form.
+  private KeyPair[] rsaKeyPairPool;
+  // Number of available key pairs in rsaKeyPairPool.
+  private short rsaKeyPairPoolCount;
+  // Re-usable key objects of the operations, KEY_POOL_SIZE key objects per key pool.
+  private Key[] keyPool;
+  // Key id of each key object of keyPool. The key id of a key object is compared before the key
+  // material is set, so that a begin on the same key skips setting the key without reading the
+  // key material back.
+  private byte[] keyPoolIds;
+  // Index of the next key object to be replaced in each key pool.
+  private byte[] keyPoolNextIndex;
   // Temporary array.
   public byte[] tmpArray;
   // This is used for internal encryption/decryption operations.
   private static AEADCipher aesGcmCipher;
-  // Cipher pool
+  // Cipher pool, indexed by the position of the algorithm in CIPHER_ALGS. Each entry is an array
+  // of KMInstance which can hold the maximum number of instances of the algorithm.
   private Object[] cipherPool;
-  // Signature pool
+  // Signature pool, indexed by the position of the algorithm in SIG_ALGS.
   private Object[] sigPool;
   // KMOperationImpl pool
   private Object[] operationPool;
+  // Maximum number of instances of each algorithm in the pools.
+  private short maxPoolInstances;
+  // Hits, misses and exhaustions of the cipher and signature pools since the last reset.
+  private short[] poolStats;
 
   private Signature kdf;
 
   private Signature hmacSignature;
+
+  private MessageDigest sha256Digest;
   //For ImportwrappedKey operations.
   private KMRsaOAEPEncoding rsaOaepDecipher;
 
@@ -180,6 +250,28 @@ public class KMAndroidSEProvider implements KMSEProvider {
   }
 
   public KMAndroidSEProvider() {
+    this(KMRepository.DEFAULT_MAX_OPS);
+  }
+
+  public KMAndroidSEProvider(short maxOperations) {
+    this(maxOperations, (short) 0, maxOperations);
+  }
+
+  /**
+   * Creates the provider with the pools sized at install.
+   *
+   * @param maxOperations is the number of operation slots.
+   * @param minPoolInstances is the minimum number of instances of each cipher and signature
+   * algorithm created at install, in addition to the default of each algorithm.
+   * @param maxPoolInstances is the maximum number of instances of each cipher and signature
+   * algorithm. It is limited to the number of operation slots.
+   */
+  public KMAndroidSEProvider(short maxOperations, short minPoolInstances,
+      short maxPoolInstances) {
+    if (maxPoolInstances <= 0 || maxPoolInstances > maxOperations) {
+      maxPoolInstances = maxOperations;
+    }
+    this.maxPoolInstances = maxPoolInstances;
     // Re-usable AES,DES and HMAC keys in persisted memory.
     aesKeys = new AESKey[2];
     aesKeys[KEYSIZE_128_OFFSET] = (AESKey) KeyBuilder.buildKey(
@@ -191,23 +283,32 @@ public class KMAndroidSEProvider implements KMSEProvider {
     hmacKey = (HMACKey) KeyBuilder.buildKey(KeyBuilder.TYPE_HMAC, (short) 512,
         false);
     rsaKeyPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
+    rsaCrtKeyPair = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
+    // The key pairs are generated with the only supported public exponent.
+    ((RSAPublicKey) rsaCrtKeyPair.getPublic()).setExponent(RSA_PUBLIC_EXPONENT, (short) 0,
+        (short) RSA_PUBLIC_EXPONENT.length);
     ecKeyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
     initECKey(ecKeyPair);
+    initializeKeyPairPools();
+    initializeKeyPool();
 
     // Re-usable cipher and signature instances
-    cipherPool = new Object[(short) (CIPHER_ALGS.length * 4)];
-    sigPool = new Object[(short) (SIG_ALGS.length * 4)];
-    operationPool = new Object[4];
-    // Creates an instance of each cipher algorithm once.
-    initializeCipherPool();
-    // Creates an instance of each signature algorithm once.
-    initializeSigPool();
+    cipherPool = new Object[CIPHER_ALGS.length];
+    sigPool = new Object[SIG_ALGS.length];
+    operationPool = new Object[maxOperations];
+    poolStats = JCSystem.makeTransientShortArray(
+        (short) ((short) (CIPHER_ALGS.length + SIG_ALGS.length + KEY_PAIR_POOLS) * POOL_STATS),
+        JCSystem.CLEAR_ON_RESET);
+    // Pre-warms the cipher and signature instances of each algorithm.
+    initializePool(cipherPool, CIPHER_ALGS, CIPHER_POOL_MIN_INSTANCES, minPoolInstances);
+    initializePool(sigPool, SIG_ALGS, SIG_POOL_MIN_INSTANCES, minPoolInstances);
     initializeOperationPool();
     //RsaOAEP Decipher
     rsaOaepDecipher = new KMRsaOAEPEncoding(KMRsaOAEPEncoding.ALG_RSA_PKCS1_OAEP_SHA256_MGF1_SHA1);
 
     kdf = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
     hmacSignature = Signature.getInstance(Signature.ALG_HMAC_SHA_256, false);
+    sha256Digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
 
     // Temporary transient array created to use locally inside functions.
     tmpArray = JCSystem.makeTransientByteArray(TMP_ARRAY_SIZE,
@@ -236,6 +337,10 @@ public class KMAndroidSEProvider implements KMSEProvider {
     pubkey.setK(secp256r1_H);
     pubkey.setR(secp256r1_N, (short) 0, (short) secp256r1_N.length);
 
+    initECPrivateKey(privKey);
+  }
+
+  private void initECPrivateKey(ECPrivateKey privKey) {
     privKey.setFieldFP(secp256r1_P, (short) 0, (short) secp256r1_P.length);
     privKey.setA(secp256r1_A, (short) 0, (short) secp256r1_A.length);
     privKey.setB(secp256r1_B, (short) 0, (short) secp256r1_B.length);
@@ -244,29 +349,194 @@ public class KMAndroidSEProvider implements KMSEProvider {
     privKey.setR(secp256r1_N, (short) 0, (short) secp256r1_N.length);
   }
 
-  private boolean isCipherAlgorithm(byte alg) {
+  private void initializeKeyPairPools() {
+    ecKeyPairPool = new KeyPair[EC_KEY_PAIR_POOL_SIZE];
+    short index = 0;
+    while (index < EC_KEY_PAIR_POOL_SIZE) {
+      ecKeyPairPool[index] = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
+      index++;
+    }
+    ecKeyPairPoolCount = 0;
+    rsaKeyPairPool = new KeyPair[RSA_KEY_PAIR_POOL_SIZE];
+    index = 0;
+    while (index < RSA_KEY_PAIR_POOL_SIZE) {
+      rsaKeyPairPool[index] = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
+      ((RSAPublicKey) rsaKeyPairPool[index].getPublic()).setExponent(RSA_PUBLIC_EXPONENT,
+          (short) 0, (short) RSA_PUBLIC_EXPONENT.length);
+      index++;
+    }
+    rsaKeyPairPoolCount = 0;
+  }
+
+  private void initializeKeyPool() {
+    keyPool = new Key[(short) (KEY_POOLS * KEY_POOL_SIZE)];
+    keyPoolNextIndex = JCSystem.makeTransientByteArray(KEY_POOLS, JCSystem.CLEAR_ON_RESET);
+    keyPoolIds = new byte[(short) (KEY_POOLS * KEY_POOL_SIZE * KEY_POOL_ID_ENTRY_SIZE)];
     short index = 0;
-    while (index < CIPHER_ALGS.length) {
-      if (CIPHER_ALGS[index++] == alg) {
-        return true;
+    short pool;
+    while (index < (short) keyPool.length) {
+      pool = (short) (index / KEY_POOL_SIZE);
+      switch (pool) {
+        case AES_128_KEY_POOL:
+          keyPool[index] = KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128,
+              false);
+          break;
+        case AES_256_KEY_POOL:
+          keyPool[index] = KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_256,
+              false);
+          break;
+        case TDES_KEY_POOL:
+          keyPool[index] = KeyBuilder.buildKey(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES3_3KEY,
+              false);
+          break;
+        case HMAC_KEY_POOL:
+          keyPool[index] = KeyBuilder.buildKey(KeyBuilder.TYPE_HMAC, (short) 512, false);
+          break;
+        case RSA_KEY_POOL:
+          keyPool[index] = KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PRIVATE,
+              KeyBuilder.LENGTH_RSA_2048, false);
+          break;
+        case RSA_CRT_KEY_POOL:
+          keyPool[index] = KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE,
+              KeyBuilder.LENGTH_RSA_2048, false);
+          break;
+        case EC_KEY_POOL:
+          keyPool[index] = KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE,
+              KeyBuilder.LENGTH_EC_FP_256, false);
+          initECPrivateKey((ECPrivateKey) keyPool[index]);
+          break;
       }
+      index++;
     }
-    return false;
   }
 
-  private boolean isSignerAlgorithm(byte alg) {
+  // Returns a key object of the key pool which holds the key with the given key id. If no key
+  // object holds it, then the next key object of the key pool is replaced with the key material.
+  // The modulus is only used by the RSA key pool. A null key id always replaces a key object.
+  private Key getKeyFromPool(byte pool, byte[] secret, short secretStart, short secretLength,
+      byte[] modBuffer, short modOff, short modLength, byte[] keyIdBuf, short keyIdStart) {
+    short start = (short) (pool * KEY_POOL_SIZE);
     short index = 0;
-    while (index < SIG_ALGS.length) {
-      if (SIG_ALGS[index++] == alg) {
-        return true;
+    short entry;
+    if (keyIdBuf != null) {
+      while (index < KEY_POOL_SIZE) {
+        entry = (short) ((short) (start + index) * KEY_POOL_ID_ENTRY_SIZE);
+        if (keyPoolIds[entry] != 0
+            && Util.arrayCompare(keyPoolIds, (short) (entry + 1), keyIdBuf, keyIdStart,
+            KEY_ID_SIZE) == 0) {
+          return keyPool[(short) (start + index)];
+        }
+        index++;
       }
     }
-    return false;
+    index = keyPoolNextIndex[pool];
+    keyPoolNextIndex[pool] = (byte) ((short) (index + 1) % KEY_POOL_SIZE);
+    Key key = keyPool[(short) (start + index)];
+    // The key id is invalidated before the key material is replaced, so that an interrupted
+    // replacement never leaves the key id of the previous key.
+    entry = (short) ((short) (start + index) * KEY_POOL_ID_ENTRY_SIZE);
+    keyPoolIds[entry] = 0;
+    switch (pool) {
+      case AES_128_KEY_POOL:
+      case AES_256_KEY_POOL:
+        ((AESKey) key).setKey(secret, secretStart);
+        break;
+      case TDES_KEY_POOL:
+        ((DESKey) key).setKey(secret, secretStart);
+        break;
+      case HMAC_KEY_POOL:
+        ((HMACKey) key).setKey(secret, secretStart, secretLength);
+        break;
+      case RSA_KEY_POOL:
+        ((RSAPrivateKey) key).setExponent(secret, secretStart, secretLength);
+        ((RSAPrivateKey) key).setModulus(modBuffer, modOff, modLength);
+        break;
+      case RSA_CRT_KEY_POOL:
+        index = 0;
+        while (index < RSA_CRT_COMPONENTS) {
+          setRsaCrtComponent((RSAPrivateCrtKey) key, (byte) index, secret,
+              (short) (secretStart + (short) (index * RSA_CRT_COMPONENT_SIZE)));
+          index++;
+        }
+        break;
+      case EC_KEY_POOL:
+        ((ECPrivateKey) key).setS(secret, secretStart, secretLength);
+        break;
+    }
+    if (keyIdBuf != null) {
+      Util.arrayCopyNonAtomic(keyIdBuf, keyIdStart, keyPoolIds, (short) (entry + 1),
+          KEY_ID_SIZE);
+      keyPoolIds[entry] = 1;
+    }
+    return key;
+  }
+
+  // Returns a key object which holds the RSA private key of the key blob secret. The secret is
+  // either the CRT components of the private key or, for legacy key blobs and imported keys, the
+  // private exponent.
+  private Key getRsaKeyFromPool(byte[] secret, short secretStart, short secretLength,
+      byte[] modBuffer, short modOff, short modLength, byte[] keyIdBuf, short keyIdStart) {
+    if (secretLength == RSA_CRT_KEY_SIZE) {
+      return getKeyFromPool(RSA_CRT_KEY_POOL, secret, secretStart, secretLength, null,
+          (short) 0, (short) 0, keyIdBuf, keyIdStart);
+    }
+    return getKeyFromPool(RSA_KEY_POOL, secret, secretStart, secretLength, modBuffer, modOff,
+        modLength, keyIdBuf, keyIdStart);
+  }
+
+  // Writes the CRT component of the key zero padded to half the key size.
+  private void getRsaCrtComponent(RSAPrivateCrtKey key, byte component, byte[] buf,
+      short start) {
+    short len = 0;
+    switch (component) {
+      case 0:
+        len = key.getP(tmpArray, (short) 0);
+        break;
+      case 1:
+        len = key.getQ(tmpArray, (short) 0);
+        break;
+      case 2:
+        len = key.getDP1(tmpArray, (short) 0);
+        break;
+      case 3:
+        len = key.getDQ1(tmpArray, (short) 0);
+        break;
+      case 4:
+        len = key.getPQ(tmpArray, (short) 0);
+        break;
+    }
+    if (len > RSA_CRT_COMPONENT_SIZE) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    Util.arrayFillNonAtomic(buf, start, RSA_CRT_COMPONENT_SIZE, (byte) 0);
+    Util.arrayCopyNonAtomic(tmpArray, (short) 0, buf,
+        (short) (start + RSA_CRT_COMPONENT_SIZE - len), len);
+  }
+
+  private void setRsaCrtComponent(RSAPrivateCrtKey key, byte component, byte[] buf,
+      short start) {
+    switch (component) {
+      case 0:
+        key.setP(buf, start, RSA_CRT_COMPONENT_SIZE);
+        break;
+      case 1:
+        key.setQ(buf, start, RSA_CRT_COMPONENT_SIZE);
+        break;
+      case 2:
+        key.setDP1(buf, start, RSA_CRT_COMPONENT_SIZE);
+        break;
+      case 3:
+        key.setDQ1(buf, start, RSA_CRT_COMPONENT_SIZE);
+        break;
+      case 4:
+        key.setPQ(buf, start, RSA_CRT_COMPONENT_SIZE);
+        break;
+    }
   }
 
   private void initializeOperationPool() {
     short index = 0;
-    while (index < 4) {
+    while (index < (short) operationPool.length) {
       operationPool[index] = new KMInstance();
       ((KMInstance) operationPool[index]).instanceCount = 1;
       ((KMInstance) operationPool[index]).object = new KMOperationImpl();
@@ -275,18 +545,43 @@ public class KMAndroidSEProvider implements KMSEProvider {
     }
   }
 
-  // Create a signature instance of each algorithm once.
-  private void initializeSigPool() {
+  // Creates the minimum number of instances of each algorithm of the pool.
+  private void initializePool(Object[] pool, byte[] algs, byte[] minInstances,
+      short minPoolInstances) {
     short index = 0;
-    while (index < SIG_ALGS.length) {
-      sigPool[index] = new KMInstance();
-      ((KMInstance) sigPool[index]).instanceCount = 1;
-      ((KMInstance) sigPool[index]).object = getSignatureInstance(SIG_ALGS[index]);
-      ((KMInstance) sigPool[index]).reserved = 0;
+    short count;
+    short instanceCount;
+    Object[] instances;
+    while (index < (short) algs.length) {
+      instances = new Object[maxPoolInstances];
+      count = minInstances[index];
+      if (count < minPoolInstances) {
+        count = minPoolInstances;
+      }
+      if (count > maxPoolInstances) {
+        count = maxPoolInstances;
+      }
+      instanceCount = 0;
+      while (instanceCount < count) {
+        instances[instanceCount] = createPoolInstance(pool, algs[index]);
+        instanceCount++;
+      }
+      pool[index] = instances;
       index++;
     }
   }
 
+  private KMInstance createPoolInstance(Object[] pool, byte alg) {
+    KMInstance instance = new KMInstance();
+    if (pool == cipherPool) {
+      instance.object = getCipherInstance(alg);
+    } else {
+      instance.object = getSignatureInstance(alg);
+    }
+    instance.reserved = 0;
+    return instance;
+  }
+
   private Signature getSignatureInstance(byte alg) {
     if (KMRsa2048NoDigestSignature.ALG_RSA_SIGN_NOPAD == alg
         || KMRsa2048NoDigestSignature.ALG_RSA_PKCS1_NODIGEST == alg) {
@@ -310,20 +605,20 @@ public class KMAndroidSEProvider implements KMSEProvider {
     return c.getAlgorithm();
   }
 
-  // Create a cipher instance of each algorithm once.
-  private void initializeCipherPool() {
+  private short getAlgorithmIndex(byte[] algs, byte alg) {
     short index = 0;
-    while (index < CIPHER_ALGS.length) {
-      cipherPool[index] = new KMInstance();
-      ((KMInstance) cipherPool[index]).instanceCount = 1;
-      ((KMInstance) cipherPool[index]).object = getCipherInstance(CIPHER_ALGS[index]);
-      ((KMInstance) cipherPool[index]).reserved = 0;
+    while (index < (short) algs.length) {
+      if (algs[index] == alg) {
+        return index;
+      }
       index++;
     }
+    CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+    return -1;
   }
 
   private KMOperationImpl getOperationInstanceFromPool() {
-    return (KMOperationImpl) getInstanceFromPool(operationPool, (byte) 0x00);
+    return (KMOperationImpl) reserveInstance(operationPool);
   }
 
   public void releaseOperationInstance(KMOperationImpl operation) {
@@ -331,104 +626,91 @@ public class KMAndroidSEProvider implements KMSEProvider {
   }
 
   private Signature getSignatureInstanceFromPool(byte alg) {
-    return (Signature) getInstanceFromPool(sigPool, alg);
+    return (Signature) getInstanceFromPool(sigPool, SIG_ALGS, alg);
   }
 
   public void releaseSignatureInstance(Signature signer) {
-    releaseInstance(sigPool, signer);
+    releaseInstance(
+        (Object[]) sigPool[getAlgorithmIndex(SIG_ALGS, signer.getAlgorithm())], signer);
   }
 
   private Cipher getCipherInstanceFromPool(byte alg) {
-    return (Cipher) getInstanceFromPool(cipherPool, alg);
+    return (Cipher) getInstanceFromPool(cipherPool, CIPHER_ALGS, alg);
   }
 
   public void releaseCipherInstance(Cipher cipher) {
-    releaseInstance(cipherPool, cipher);
-  }
-
-  // This pool implementation can create a maximum of total 4 instances per
-  // algorithm. This function returns the unreserved Cipher/Signature instance
-  // of type algorithm from pool. If there is no unreserved cipher/signature
-  // instance of algorithm type in the pool and Cipher/Signature algorithm
-  // instance count is less than 4 then it creates and returns a new
-  // Cipher/Signature instance of algorithm type. If there is no unreserved
-  // cipher/signature and maximum instance count reaches four it throws
-  // exception.
-  private Object getInstanceFromPool(Object[] pool, byte alg) {
+    releaseInstance(
+        (Object[]) cipherPool[getAlgorithmIndex(CIPHER_ALGS, getCipherAlgorithm(cipher))], cipher);
+  }
+
+  // Returns an unreserved Cipher/Signature instance of the algorithm from its pool. If all the
+  // instances of the algorithm are reserved and the instance count is less than maxPoolInstances,
+  // then a new instance is created. If the maximum instance count is reached it throws exception.
+  private Object getInstanceFromPool(Object[] pool, byte[] algs, byte alg) {
+    short algIndex = getAlgorithmIndex(algs, alg);
+    Object[] instances = (Object[]) pool[algIndex];
+    short stats = (short) (algIndex * POOL_STATS);
+    if (pool == sigPool) {
+      stats += (short) (CIPHER_ALGS.length * POOL_STATS);
+    }
+    Object object = reserveInstance(instances);
+    if (object != null) {
+      incrementPoolStat((short) (stats + POOL_STAT_HITS));
+      return object;
+    }
     short index = 0;
-    short instanceCount = 0;
-    Object object = null;
-    boolean isCipher = isCipherAlgorithm(alg);
-    boolean isSigner = isSignerAlgorithm(alg);
-    short len = (short) pool.length;
-    while (index < len) {
-      if (null == pool[index]) {
-        // No instance of cipher/signature with this algorithm is found
-        if (instanceCount < 4) {
-          pool[index] = new KMInstance();
-          JCSystem.beginTransaction();
-          ((KMInstance) pool[index]).instanceCount = (byte) (++instanceCount);
-          if (isCipher) {
-            ((KMInstance) pool[index]).object = object = getCipherInstance(alg);
-          } else {
-            // Signature
-            ((KMInstance) pool[index]).object = object = getSignatureInstance(alg);
-          }
-          ((KMInstance) pool[index]).reserved = 1;
-          JCSystem.commitTransaction();
-          break;
-        } else {
-          // Cipher/Signature instance count reached its maximum limit.
-          KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
-          break;
-        }
+    while (index < (short) instances.length) {
+      if (instances[index] == null) {
+        incrementPoolStat((short) (stats + POOL_STAT_MISSES));
+        instances[index] = createPoolInstance(pool, alg);
+        return reserveInstance(instances);
       }
-      object = ((KMInstance) pool[index]).object;
-      if ((isCipher && (alg == getCipherAlgorithm((Cipher) object)))
-          || ((isSigner && (alg == ((Signature) object).getAlgorithm())))) {
-        instanceCount = ((KMInstance) pool[index]).instanceCount;
-        if (((KMInstance) pool[index]).reserved == 0) {
-          JCSystem.beginTransaction();
-          ((KMInstance) pool[index]).reserved = 1;
-          JCSystem.commitTransaction();
-          break;
-        }
-      } else {
-        if (!isCipher && !isSigner) {
-          // OperationImpl
-          if (((KMInstance) pool[index]).reserved == 0) {
-            JCSystem.beginTransaction();
-            ((KMInstance) pool[index]).reserved = 1;
-            JCSystem.commitTransaction();
-            break;
-          }
-        }
+      index++;
+    }
+    // Cipher/Signature instance count reached its maximum limit.
+    incrementPoolStat((short) (stats + POOL_STAT_EXHAUSTIONS));
+    KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
+    return null;
+  }
+
+  // Reserves the first unreserved instance. Returns null if all the instances are reserved.
+  private Object reserveInstance(Object[] instances) {
+    short index = 0;
+    short len = (short) instances.length;
+    KMInstance instance;
+    while (index < len) {
+      instance = (KMInstance) instances[index];
+      if (instance != null && instance.reserved == 0) {
+        JCSystem.beginTransaction();
+        instance.reserved = 1;
+        JCSystem.commitTransaction();
+        return instance.object;
       }
-      object = null;
       index++;
     }
-    return object;
+    return null;
   }
 
-  private void releaseInstance(Object[] pool, Object object) {
+  private void releaseInstance(Object[] instances, Object object) {
     short index = 0;
-    short len = (short) pool.length;
+    short len = (short) instances.length;
     while (index < len) {
-      if (pool[index] != null) {
-        if (object == ((KMInstance) pool[index]).object) {
-          JCSystem.beginTransaction();
-          ((KMInstance) pool[index]).reserved = 0;
-          JCSystem.commitTransaction();
-          break;
-        }
-      } else {
-        // Reached end.
+      if (instances[index] != null && object == ((KMInstance) instances[index]).object) {
+        JCSystem.beginTransaction();
+        ((KMInstance) instances[index]).reserved = 0;
+        JCSystem.commitTransaction();
         break;
       }
       index++;
     }
   }
 
+  private void incrementPoolStat(short index) {
+    if (poolStats[index] != (short) 0x7FFF) {
+      poolStats[index]++;
+    }
+  }
+
   public AESKey createAESKey(short keysize) {
     try {
       newRandomNumber(tmpArray, (short) 0, (short) (keysize / 8));
@@ -487,8 +769,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
   }
 
   public KeyPair createRsaKeyPair() {
-    rsaKeyPair.genKeyPair();
-    return rsaKeyPair;
+    rsaCrtKeyPair.genKeyPair();
+    return rsaCrtKeyPair;
   }
 
   public RSAPrivateKey createRsaKey(byte[] modBuffer, short modOff,
@@ -537,31 +819,27 @@ public class KMAndroidSEProvider implements KMSEProvider {
       short pubModStart, short pubModLength, short[] lengths) {
     switch (alg) {
       case KMType.RSA:
-        if (RSA_KEY_SIZE != privKeyLength || RSA_KEY_SIZE != pubModLength) {
-          CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-        }
-        KeyPair rsaKey = createRsaKeyPair();
-        RSAPrivateKey privKey = (RSAPrivateKey) rsaKey.getPrivate();
-        //Copy exponent.
-        Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
-        lengths[0] = privKey.getExponent(tmpArray, (short) 0);
-        if (lengths[0] > privKeyLength) {
+        if (RSA_CRT_KEY_SIZE != privKeyLength || RSA_KEY_SIZE != pubModLength) {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
-        Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, privKeyLength, (byte) 0);
-        Util.arrayCopyNonAtomic(tmpArray, (short) 0,
-            privKeyBuf, (short) (privKeyStart + privKeyLength - lengths[0]), lengths[0]);
-        //Copy modulus
-        Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
-        lengths[1] = privKey.getModulus(tmpArray, (short) 0);
-        if (lengths[1] > pubModLength) {
-          CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+        if (rsaKeyPairPoolCount > 0) {
+          incrementKeyPairPoolStat(RSA_KEY_PAIR_POOL, POOL_STAT_HITS);
+          getRsaKeyPairFromPool(privKeyBuf, privKeyStart, privKeyLength, pubModBuf, pubModStart,
+              pubModLength, lengths);
+          break;
         }
-        Util.arrayFillNonAtomic(pubModBuf, pubModStart, pubModLength, (byte) 0);
-        Util.arrayCopyNonAtomic(tmpArray, (short) 0,
-            pubModBuf, (short) (pubModStart + pubModLength - lengths[1]), lengths[1]);
+        incrementKeyPairPoolStat(RSA_KEY_PAIR_POOL, POOL_STAT_MISSES);
+        copyRsaKeyPair(createRsaKeyPair(), privKeyBuf, privKeyStart, privKeyLength, pubModBuf,
+            pubModStart, pubModLength, lengths);
         break;
       case KMType.EC:
+        if (ecKeyPairPoolCount > 0) {
+          incrementKeyPairPoolStat(EC_KEY_PAIR_POOL, POOL_STAT_HITS);
+          getEcKeyPairFromPool(privKeyBuf, privKeyStart, privKeyLength, pubModBuf, pubModStart,
+              pubModLength, lengths);
+          break;
+        }
+        incrementKeyPairPoolStat(EC_KEY_PAIR_POOL, POOL_STAT_MISSES);
         KeyPair ecKey = createECKeyPair();
         ECPublicKey ecPubKey = (ECPublicKey) ecKey.getPublic();
         ECPrivateKey ecPrivKey = (ECPrivateKey) ecKey.getPrivate();
@@ -577,6 +855,90 @@ public class KMAndroidSEProvider implements KMSEProvider {
     }
   }
 
+  // Copies the CRT components of the private key, each zero padded to half the key size, and the
+  // modulus of the key pair zero padded to the key size.
+  private void copyRsaKeyPair(KeyPair rsaKey, byte[] privKeyBuf, short privKeyStart,
+      short privKeyLength, byte[] pubModBuf, short pubModStart, short pubModLength,
+      short[] lengths) {
+    if (privKeyLength < RSA_CRT_KEY_SIZE) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) rsaKey.getPrivate();
+    //Copy CRT components.
+    byte component = 0;
+    while (component < RSA_CRT_COMPONENTS) {
+      getRsaCrtComponent(privKey, component, privKeyBuf,
+          (short) (privKeyStart + (short) (component * RSA_CRT_COMPONENT_SIZE)));
+      component++;
+    }
+    lengths[0] = RSA_CRT_KEY_SIZE;
+    //Copy modulus
+    Util.arrayFillNonAtomic(tmpArray, (short) 0, RSA_KEY_SIZE, (byte) 0);
+    lengths[1] = ((RSAPublicKey) rsaKey.getPublic()).getModulus(tmpArray, (short) 0);
+    if (lengths[1] > pubModLength) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    Util.arrayFillNonAtomic(pubModBuf, pubModStart, pubModLength, (byte) 0);
+    Util.arrayCopyNonAtomic(tmpArray, (short) 0,
+        pubModBuf, (short) (pubModStart + pubModLength - lengths[1]), lengths[1]);
+  }
+
+  // Takes the last pregenerated RSA key pair out of the pool and clears its private key.
+  private void getRsaKeyPairFromPool(byte[] privKeyBuf, short privKeyStart, short privKeyLength,
+      byte[] pubModBuf, short pubModStart, short pubModLength, short[] lengths) {
+    // The key pair is removed from the pool before it is used, so that it is never handed out
+    // twice.
+    rsaKeyPairPoolCount--;
+    KeyPair rsaKey = rsaKeyPairPool[rsaKeyPairPoolCount];
+    copyRsaKeyPair(rsaKey, privKeyBuf, privKeyStart, privKeyLength, pubModBuf, pubModStart,
+        pubModLength, lengths);
+    rsaKey.getPrivate().clearKey();
+  }
+
+  // Takes the last pregenerated EC key pair out of the pool and clears its private key.
+  private void getEcKeyPairFromPool(byte[] privKeyBuf, short privKeyStart, short privKeyLength,
+      byte[] pubModBuf, short pubModStart, short pubModLength, short[] lengths) {
+    // The key pair is removed from the pool before it is used, so that it is never handed out
+    // twice.
+    ecKeyPairPoolCount--;
+    KeyPair ecKey = ecKeyPairPool[ecKeyPairPoolCount];
+    lengths[0] = ((ECPrivateKey) ecKey.getPrivate()).getS(privKeyBuf, privKeyStart);
+    lengths[1] = ((ECPublicKey) ecKey.getPublic()).getW(pubModBuf, pubModStart);
+    ecKey.getPrivate().clearKey();
+    if (lengths[0] > privKeyLength || lengths[1] > pubModLength) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+  }
+
+  // Generates one key pair into the EC pool, or into the RSA pool when the EC pool is full. The
+  // fast EC key pairs are generated first so that a short idle period still fills the EC pool.
+  // The key pair is generated directly into the key objects of the pool. Only the
+  // INS_REFILL_KEY_PAIR_POOL_CMD command calls this, which the HAL sends at boot and after each
+  // generateKey until no key pair is missing.
+  @Override
+  public short refillKeyPairPool() {
+    if (ecKeyPairPoolCount < EC_KEY_PAIR_POOL_SIZE) {
+      KeyPair ecKey = ecKeyPairPool[ecKeyPairPoolCount];
+      // Clearing the private key also clears its domain parameters.
+      initECKey(ecKey);
+      ecKey.genKeyPair();
+      // The key pair is available only after it is completely generated.
+      ecKeyPairPoolCount++;
+      incrementKeyPairPoolStat(EC_KEY_PAIR_POOL, POOL_STAT_REFILLS);
+    } else if (rsaKeyPairPoolCount < RSA_KEY_PAIR_POOL_SIZE) {
+      rsaKeyPairPool[rsaKeyPairPoolCount].genKeyPair();
+      rsaKeyPairPoolCount++;
+      incrementKeyPairPoolStat(RSA_KEY_PAIR_POOL, POOL_STAT_REFILLS);
+    }
+    return (short) (EC_KEY_PAIR_POOL_SIZE - ecKeyPairPoolCount
+        + RSA_KEY_PAIR_POOL_SIZE - rsaKeyPairPoolCount);
+  }
+
+  private void incrementKeyPairPoolStat(byte pool, byte stat) {
+    incrementPoolStat((short) ((short) ((short) (CIPHER_ALGS.length + SIG_ALGS.length + pool)
+        * POOL_STATS) + stat));
+  }
+
   @Override
   public boolean importSymmetricKey(byte alg, short keysize, byte[] buf,
       short startOff, short length) {
@@ -788,6 +1150,13 @@ public class KMAndroidSEProvider implements KMSEProvider {
     }
   }
 
+  @Override
+  public short messageDigest256(byte[] data, short dataStart,
+      short dataLength, byte[] digest, short digestStart) {
+    return sha256Digest.doFinal(data, dataStart, dataLength, digest,
+        digestStart);
+  }
+
   @Override
   public boolean hmacVerify(byte[] keyBuf, short keyStart, short keyLength,
       byte[] data, short dataStart, short dataLength, byte[] mac,
@@ -801,10 +1170,9 @@ public class KMAndroidSEProvider implements KMSEProvider {
   public short rsaDecipherOAEP256(byte[] secret, short secretStart,
       short secretLength, byte[] modBuffer, short modOff, short modLength,
       byte[] inputDataBuf, short inputDataStart, short inputDataLength,
-      byte[] outputDataBuf, short outputDataStart) {
-    RSAPrivateKey key = (RSAPrivateKey) rsaKeyPair.getPrivate();
-    key.setExponent(secret, (short) secretStart, (short) secretLength);
-    key.setModulus(modBuffer, (short) modOff, (short) modLength);
+      byte[] outputDataBuf, short outputDataStart, byte[] keyIdBuf, short keyIdStart) {
+    Key key = getRsaKeyFromPool(secret, secretStart, secretLength, modBuffer, modOff,
+        modLength, keyIdBuf, keyIdStart);
     rsaOaepDecipher.init(key, Cipher.MODE_DECRYPT);
     return rsaOaepDecipher.doFinal(inputDataBuf, (short) inputDataStart, (short) inputDataLength,
         outputDataBuf, (short) outputDataStart);
@@ -914,21 +1282,22 @@ public class KMAndroidSEProvider implements KMSEProvider {
 
   public Cipher createSymmetricCipher(short alg, short purpose,
       short blockMode, short padding, byte[] secret, short secretStart,
-      short secretLength, byte[] ivBuffer, short ivStart, short ivLength) {
+      short secretLength, byte[] ivBuffer, short ivStart, short ivLength, byte[] keyIdBuf,
+      short keyIdStart) {
     Key key = null;
     Cipher symmCipher = null;
     switch (secretLength) {
       case 32:
-        key = aesKeys[KEYSIZE_256_OFFSET];
-        ((AESKey) key).setKey(secret, secretStart);
+        key = getKeyFromPool(AES_256_KEY_POOL, secret, secretStart, secretLength, null,
+            (short) 0, (short) 0, keyIdBuf, keyIdStart);
         break;
       case 16:
-        key = aesKeys[KEYSIZE_128_OFFSET];
-        ((AESKey) key).setKey(secret, secretStart);
+        key = getKeyFromPool(AES_128_KEY_POOL, secret, secretStart, secretLength, null,
+            (short) 0, (short) 0, keyIdBuf, keyIdStart);
         break;
       case 24:
-        key = triDesKey;
-        ((DESKey) key).setKey(secret, secretStart);
+        key = getKeyFromPool(TDES_KEY_POOL, secret, secretStart, secretLength, null,
+            (short) 0, (short) 0, keyIdBuf, keyIdStart);
         break;
       default:
         CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
@@ -962,13 +1331,14 @@ public class KMAndroidSEProvider implements KMSEProvider {
   }
 
   public Signature createHmacSignerVerifier(short purpose, short digest,
-      byte[] secret, short secretStart, short secretLength) {
+      byte[] secret, short secretStart, short secretLength, byte[] keyIdBuf, short keyIdStart) {
     byte alg = Signature.ALG_HMAC_SHA_256;
     if (digest != KMType.SHA2_256) {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
     Signature hmacSignerVerifier = getSignatureInstanceFromPool(alg);
-    HMACKey key = createHMACKey(secret, secretStart, secretLength);
+    Key key = getKeyFromPool(HMAC_KEY_POOL, secret, secretStart, secretLength, null, (short) 0,
+        (short) 0, keyIdBuf, keyIdStart);
     hmacSignerVerifier.init(key, (byte) mapPurpose(purpose));
     return hmacSignerVerifier;
   }
@@ -977,13 +1347,13 @@ public class KMAndroidSEProvider implements KMSEProvider {
   public KMOperation initSymmetricOperation(byte purpose, byte alg,
       byte digest, byte padding, byte blockMode, byte[] keyBuf, short keyStart,
       short keyLength, byte[] ivBuf, short ivStart, short ivLength,
-      short macLength) {
+      short macLength, byte[] keyIdBuf, short keyIdStart) {
     KMOperationImpl opr = null;
     switch (alg) {
       case KMType.AES:
       case KMType.DES:
         Cipher cipher = createSymmetricCipher(alg, purpose, blockMode, padding,
-            keyBuf, keyStart, keyLength, ivBuf, ivStart, ivLength);
+            keyBuf, keyStart, keyLength, ivBuf, ivStart, ivLength, keyIdBuf, keyIdStart);
         opr = getOperationInstanceFromPool();
         // Convert macLength to bytes
         macLength = (short) (macLength / 8);
@@ -998,7 +1368,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
         break;
       case KMType.HMAC:
         Signature signerVerifier = createHmacSignerVerifier(purpose, digest,
-            keyBuf, keyStart, keyLength);
+            keyBuf, keyStart, keyLength, keyIdBuf, keyIdStart);
         opr = getOperationInstanceFromPool();
         JCSystem.beginTransaction();
         opr.setSignature(signerVerifier);
@@ -1013,7 +1383,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
 
   public Signature createRsaSigner(short digest, short padding, byte[] secret,
       short secretStart, short secretLength, byte[] modBuffer, short modOff,
-      short modLength) {
+      short modLength, byte[] keyIdBuf, short keyIdStart) {
     byte alg = mapSignature256Alg(KMType.RSA, (byte) padding, (byte) digest);
     byte opMode;
     if (padding == KMType.PADDING_NONE
@@ -1023,31 +1393,29 @@ public class KMAndroidSEProvider implements KMSEProvider {
       opMode = Signature.MODE_SIGN;
     }
     Signature rsaSigner = getSignatureInstanceFromPool(alg);
-    RSAPrivateKey key = (RSAPrivateKey) rsaKeyPair.getPrivate();
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    Key key = getRsaKeyFromPool(secret, secretStart, secretLength, modBuffer, modOff,
+        modLength, keyIdBuf, keyIdStart);
     rsaSigner.init(key, opMode);
     return rsaSigner;
   }
 
   public Cipher createRsaDecipher(short padding, short digest, byte[] secret,
       short secretStart, short secretLength, byte[] modBuffer, short modOff,
-      short modLength) {
+      short modLength, byte[] keyIdBuf, short keyIdStart) {
     byte cipherAlg = mapCipherAlg(KMType.RSA, (byte) padding, (byte) 0, (byte) digest);
     Cipher rsaCipher = getCipherInstanceFromPool(cipherAlg);
-    RSAPrivateKey key = (RSAPrivateKey) rsaKeyPair.getPrivate();
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    Key key = getRsaKeyFromPool(secret, secretStart, secretLength, modBuffer, modOff,
+        modLength, keyIdBuf, keyIdStart);
     rsaCipher.init(key, Cipher.MODE_DECRYPT);
     return rsaCipher;
   }
 
   public Signature createEcSigner(short digest, byte[] secret,
-      short secretStart, short secretLength) {
+      short secretStart, short secretLength, byte[] keyIdBuf, short keyIdStart) {
     byte alg = mapSignature256Alg(KMType.EC, (byte) 0, (byte) digest);
     Signature ecSigner = null;
-    ECPrivateKey key = (ECPrivateKey) ecKeyPair.getPrivate();
-    key.setS(secret, secretStart, secretLength);
+    Key key = getKeyFromPool(EC_KEY_POOL, secret, secretStart, secretLength, null, (short) 0,
+        (short) 0, keyIdBuf, keyIdStart);
     ecSigner = getSignatureInstanceFromPool(alg);
     ecSigner.init(key, Signature.MODE_SIGN);
     return ecSigner;
@@ -1057,13 +1425,14 @@ public class KMAndroidSEProvider implements KMSEProvider {
   public KMOperation initAsymmetricOperation(byte purpose, byte alg,
       byte padding, byte digest, byte[] privKeyBuf, short privKeyStart,
       short privKeyLength, byte[] pubModBuf, short pubModStart,
-      short pubModLength) {
+      short pubModLength, byte[] keyIdBuf, short keyIdStart) {
     KMOperationImpl opr = null;
     if (alg == KMType.RSA) {
       switch (purpose) {
         case KMType.SIGN:
           Signature signer = createRsaSigner(digest, padding, privKeyBuf,
-              privKeyStart, privKeyLength, pubModBuf, pubModStart, pubModLength);
+              privKeyStart, privKeyLength, pubModBuf, pubModStart, pubModLength, keyIdBuf,
+              keyIdStart);
           opr = getOperationInstanceFromPool();
           JCSystem.beginTransaction();
           opr.setSignature(signer);
@@ -1074,7 +1443,8 @@ public class KMAndroidSEProvider implements KMSEProvider {
           break;
         case KMType.DECRYPT:
           Cipher decipher = createRsaDecipher(padding, digest, privKeyBuf,
-              privKeyStart, privKeyLength, pubModBuf, pubModStart, pubModLength);
+              privKeyStart, privKeyLength, pubModBuf, pubModStart, pubModLength, keyIdBuf,
+              keyIdStart);
           opr = getOperationInstanceFromPool();
           JCSystem.beginTransaction();
           opr.setCipher(decipher);
@@ -1091,7 +1461,7 @@ public class KMAndroidSEProvider implements KMSEProvider {
       switch (purpose) {
         case KMType.SIGN:
           Signature signer = createEcSigner(digest, privKeyBuf, privKeyStart,
-              privKeyLength);
+              privKeyLength, keyIdBuf, keyIdStart);
           opr = getOperationInstanceFromPool();
           JCSystem.beginTransaction();
           opr.setSignature(signer);
@@ -1166,6 +1536,65 @@ public class KMAndroidSEProvider implements KMSEProvider {
     return Util.getShort(certificateChain, (short) 0);
   }
 
+  @Override
+  public byte[] getCertificateChainBuffer() {
+    return certificateChain;
+  }
+
+  @Override
+  public short getCertificateChainOffset() {
+    // First two bytes hold the length.
+    return (short) 2;
+  }
+
+  // For each algorithm of CIPHER_ALGS followed by SIG_ALGS the statistics are
+  // struct{byte alg; byte instances; short hits; short misses; short exhaustions}.
+  // They are followed by the EC and the RSA key pair pool statistics
+  // struct{byte alg; byte available key pairs; short hits; short misses; short refills}, where
+  // alg is KMType.EC or KMType.RSA.
+  @Override
+  public short getPoolStatistics(byte[] buf, short start) {
+    short offset = writePoolStatistics(cipherPool, CIPHER_ALGS, (short) 0, buf, start);
+    short stats = (short) (CIPHER_ALGS.length * POOL_STATS);
+    offset = writePoolStatistics(sigPool, SIG_ALGS, stats, buf, offset);
+    stats += (short) (SIG_ALGS.length * POOL_STATS);
+    offset = writeKeyPairPoolStatistics(KMType.EC, ecKeyPairPoolCount, stats, buf, offset);
+    stats += POOL_STATS;
+    offset = writeKeyPairPoolStatistics(KMType.RSA, rsaKeyPairPoolCount, stats, buf, offset);
+    return (short) (offset - start);
+  }
+
+  private short writeKeyPairPoolStatistics(byte alg, short count, short stats, byte[] buf,
+      short offset) {
+    buf[offset++] = alg;
+    buf[offset++] = (byte) count;
+    offset = Util.setShort(buf, offset, poolStats[(short) (stats + POOL_STAT_HITS)]);
+    offset = Util.setShort(buf, offset, poolStats[(short) (stats + POOL_STAT_MISSES)]);
+    return Util.setShort(buf, offset, poolStats[(short) (stats + POOL_STAT_REFILLS)]);
+  }
+
+  private short writePoolStatistics(Object[] pool, byte[] algs, short stats, byte[] buf,
+      short offset) {
+    short index = 0;
+    short instanceCount;
+    Object[] instances;
+    while (index < (short) algs.length) {
+      instances = (Object[]) pool[index];
+      instanceCount = 0;
+      while (instanceCount < (short) instances.length && instances[instanceCount] != null) {
+        instanceCount++;
+      }
+      buf[offset++] = algs[index];
+      buf[offset++] = (byte) instanceCount;
+      offset = Util.setShort(buf, offset, poolStats[(short) (stats + POOL_STAT_HITS)]);
+      offset = Util.setShort(buf, offset, poolStats[(short) (stats + POOL_STAT_MISSES)]);
+      offset = Util.setShort(buf, offset, poolStats[(short) (stats + POOL_STAT_EXHAUSTIONS)]);
+      stats += POOL_STATS;
+      index++;
+    }
+    return offset;
+  }
+
   @Override
   public boolean isBootSignalEventSupported() {
     return false;
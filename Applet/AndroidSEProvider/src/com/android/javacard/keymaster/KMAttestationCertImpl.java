@@ -119,6 +119,18 @@ public class KMAttestationCertImpl implements KMAttestationCert {
   private static short verifiedHash;
   private static short issuer;
   private static short signPriv;
+  // Template of the fields which are fixed for the device i.e. the head of the tbs certificate -
+  // version, serial number, signature algorithm and issuer - and the RootOfTrust. It is encoded by
+  // the first build after it is reset, and then copied into each certificate.
+  private static final short TEMPLATE_SIZE = 512;
+  // Maximum length of the template fields besides the issuer, verified boot key and hash.
+  private static final short TEMPLATE_FIXED_SIZE = 64;
+  private static byte[] template;
+  private static boolean templateValid;
+  private static short templateHeadStart;
+  private static short templateHeadLength;
+  private static short templateRoTStart;
+  private static short templateRoTLength;
 
   private KMAttestationCertImpl() {
   }
@@ -127,6 +139,9 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     if (inst == null) {
       inst = new KMAttestationCertImpl();
     }
+    if (template == null) {
+      template = new byte[TEMPLATE_SIZE];
+    }
     init();
     KMAttestationCertImpl.rsaCert = rsaCert;
     return inst;
@@ -291,6 +306,17 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     // subject
     pushBytes(X509Subject, (short) 0, (short) X509Subject.length);
     pushValidity();
+    if (templateValid) {
+      pushBytes(template, templateHeadStart, templateHeadLength);
+    } else {
+      pushTbsHead();
+    }
+    // Finally sequence header.
+    pushSequenceHeader((short) (last - stackPtr));
+  }
+
+  // Version, serial number, signature algorithm and issuer.
+  private static void pushTbsHead() {
     // issuer - der encoded
     pushBytes(
         KMByteBlob.cast(issuer).getBuffer(),
@@ -306,8 +332,6 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     pushIntegerHeader((short) 1);
     pushByte((byte) 0x03);
     pushByte((byte) 0xA0);
-    // Finally sequence header.
-    pushSequenceHeader((short) (last - stackPtr));
   }
 
   private static void pushExtensions() {
@@ -474,7 +498,11 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     byte index = 0;
     do {
       if (tagIds[index] == KMType.ROOT_OF_TRUST) {
-        pushRoT();
+        if (templateValid) {
+          pushBytes(template, templateRoTStart, templateRoTLength);
+        } else {
+          pushRoT();
+        }
         continue;
       }
       if (pushParams(hwParams, hwParamsIndex, tagIds[index])) {
@@ -814,8 +842,42 @@ public class KMAttestationCertImpl implements KMAttestationCert {
     return (short) (getCertEnd() - getCertStart() + 1);
   }
 
+  @Override
+  public void resetTemplate() {
+    templateValid = false;
+  }
+
+  // Encodes the template from the issuer and the boot parameters set for this certificate. The
+  // template is not used if they do not fit in it.
+  private static void buildTemplate() {
+    if ((short) (KMByteBlob.cast(issuer).length() + KMByteBlob.cast(verifiedBootKey).length()
+        + KMByteBlob.cast(verifiedHash).length()) > (short) (TEMPLATE_SIZE - TEMPLATE_FIXED_SIZE)) {
+      return;
+    }
+    byte[] certStack = stack;
+    short certStackStart = start;
+    short certStackPtr = stackPtr;
+    stack = template;
+    start = 0;
+    stackPtr = TEMPLATE_SIZE;
+    pushRoT();
+    templateRoTStart = stackPtr;
+    templateRoTLength = (short) (TEMPLATE_SIZE - stackPtr);
+    pushTbsHead();
+    templateHeadStart = stackPtr;
+    templateHeadLength = (short) (templateRoTStart - stackPtr);
+    stack = certStack;
+    start = certStackStart;
+    stackPtr = certStackPtr;
+    // The template is used only after it is completely written.
+    templateValid = true;
+  }
+
   @Override
   public void build() {
+    if (!templateValid) {
+      buildTemplate();
+    }
     short last = stackPtr;
     decrementStackPtr((short) ECDSA_MAX_SIG_LEN);
     signatureOffset = stackPtr;
@@ -236,4 +236,12 @@ public class KMCipherImpl extends KMCipher {
     }
   }
 
+  @Override
+  public void release() {
+    if (sunCipher != null) {
+      KMJceCache.getInstance().releaseCipher(sunCipher);
+      sunCipher = null;
+    }
+  }
+
 }
@@ -17,8 +17,8 @@ package com.android.javacard.keymaster;
 
 public class KMJCardSimApplet extends KMKeymasterApplet {
 
-  KMJCardSimApplet() {
-    super(new KMJCardSimulator());
+  KMJCardSimApplet(short maxOperations, byte flags) {
+    super(new KMJCardSimulator(), maxOperations, flags);
   }
 
   /**
@@ -29,7 +29,11 @@ public class KMJCardSimApplet extends KMKeymasterApplet {
    * @param bLength the length in bytes of the parameter data in bArray
    */
   public static void install(byte[] bArray, short bOffset, byte bLength) {
-    new KMJCardSimApplet().register();
+    new KMJCardSimApplet(
+        readInstallParam(bArray, bOffset, bLength, INSTALL_PARAM_MAX_OPERATIONS,
+            KMRepository.DEFAULT_MAX_OPS),
+        (byte) readInstallParam(bArray, bOffset, bLength, INSTALL_PARAM_FLAGS, (short) 0))
+        .register();
   }
 
 }
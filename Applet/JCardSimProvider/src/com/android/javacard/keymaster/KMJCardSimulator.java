@@ -24,6 +24,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
 
@@ -40,6 +41,9 @@ import javacard.security.HMACKey;
 import javacard.security.Key;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
+import javacard.security.MessageDigest;
+import javacard.security.PrivateKey;
+import javacard.security.RSAPrivateCrtKey;
 import javacard.security.RSAPrivateKey;
 import javacard.security.RSAPublicKey;
 import javacard.security.RandomData;
@@ -56,7 +60,6 @@ import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.OAEPParameterSpec;
 import javax.crypto.spec.PSource;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.globalplatform.upgrade.Element;
 
@@ -69,26 +72,61 @@ public class KMJCardSimulator implements KMSEProvider {
 
   public static final short AES_GCM_TAG_LENGTH = 16;
   public static final short AES_GCM_NONCE_LENGTH = 12;
-  public static final short MAX_RND_NUM_SIZE = 64;
-  public static final short ENTROPY_POOL_SIZE = 16; // simulator does not support 256 bit aes keys
+  // CTR DRBG with AES 128 - seed length is key length + block length.
+  public static final short ENTROPY_POOL_SIZE = 32;
+  // Number of key stream blocks generated by one encryption of the counter blocks.
+  private static final short RNG_KEY_STREAM_BLOCKS = 4;
+  private static final short RNG_KEY_STREAM_SIZE = RNG_KEY_STREAM_BLOCKS * 16;
+  // Maximum number of key stream refills before the drbg is reseeded from the TRNG.
+  private static final short RNG_RESEED_INTERVAL = 1024;
+  // Indexes of the drbg state.
+  private static final byte RNG_KEY_STREAM_REMAINING = 0;
+  private static final byte RNG_RESEED_COUNTER = 1;
   public static final byte[] aesICV = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
   private static final short CERT_CHAIN_MAX_SIZE = 2500;//First 2 bytes for length.
   private static final short RSA_KEY_SIZE = 256;
+  // RSA private key in CRT form - P, Q, DP1, DQ1 and PQ, each zero padded to half the key size.
+  private static final short RSA_CRT_COMPONENT_SIZE = 128;
+  private static final short RSA_CRT_KEY_SIZE = 5 * RSA_CRT_COMPONENT_SIZE;
+  private static final byte[] RSA_PUBLIC_EXPONENT = {0x01, 0x00, 0x01};
+  // Number of pregenerated EC and RSA key pairs.
+  private static final byte EC_KEY_PAIR_POOL_SIZE = 2;
+  private static final byte RSA_KEY_PAIR_POOL_SIZE = 1;
+  // Key pair pools
+  private static final byte EC_KEY_PAIR_POOL = 0;
+  private static final byte RSA_KEY_PAIR_POOL = 1;
+  private static final byte KEY_PAIR_POOLS = 2;
+  // Statistics of each key pair pool.
+  private static final byte POOL_STAT_HITS = 0;
+  private static final byte POOL_STAT_MISSES = 1;
+  private static final byte POOL_STAT_REFILLS = 2;
+  private static final byte POOL_STATS = 3;
 
 
   public static boolean jcardSim = false;
   private static Signature kdf;
   private static Signature hmacSignature;
+  private static MessageDigest sha256Digest;
 
+  private static RandomData rngSource;
   private static byte[] rngCounter;
   private static AESKey aesRngKey;
   private static Cipher aesRngCipher;
+  private static byte[] rngBuffer;
+  private static short[] rngState;
   private static byte[] entropyPool;
-  private static byte[] rndNum;
   private byte[] certificateChain;
   private KMAESKey masterKey;
   private KMECPrivateKey attestationKey;
   private KMHmacKey preSharedKey;
+  // Pregenerated EC and RSA CRT key pairs, generated by refillKeyPairPool.
+  private KeyPair[] ecKeyPairPool;
+  private KeyPair[] rsaKeyPairPool;
+  // Number of available key pairs in ecKeyPairPool and rsaKeyPairPool.
+  private short ecKeyPairPoolCount;
+  private short rsaKeyPairPoolCount;
+  // Statistics of the key pair pools.
+  private short[] poolStats;
 
   private static KMJCardSimulator jCardSimulator = null;
 
@@ -101,26 +139,39 @@ public class KMJCardSimulator implements KMSEProvider {
     // Various Keys
     kdf = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
     hmacSignature = Signature.getInstance(Signature.ALG_HMAC_SHA_256, false);
+    sha256Digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
     // RNG
-    rndNum = JCSystem.makeTransientByteArray(MAX_RND_NUM_SIZE, JCSystem.CLEAR_ON_RESET);
     entropyPool = JCSystem.makeTransientByteArray(ENTROPY_POOL_SIZE, JCSystem.CLEAR_ON_RESET);
-    rngCounter = JCSystem.makeTransientByteArray((short) 8, JCSystem.CLEAR_ON_RESET);
+    rngCounter = JCSystem.makeTransientByteArray((short) 16, JCSystem.CLEAR_ON_RESET);
+    // Key stream blocks followed by the two blocks of the next key and counter.
+    rngBuffer = JCSystem.makeTransientByteArray(
+        (short) (RNG_KEY_STREAM_SIZE + ENTROPY_POOL_SIZE), JCSystem.CLEAR_ON_RESET);
+    rngState = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_RESET);
     initEntropyPool(entropyPool);
     try {
-      aesRngCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+      aesRngCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
     } catch (CryptoException exp) {
       ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
     }
-    aesRngKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+    aesRngKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET,
+        KeyBuilder.LENGTH_AES_128, false);
     // various ciphers
     //Allocate buffer for certificate chain.
     certificateChain = new byte[CERT_CHAIN_MAX_SIZE];
+    ecKeyPairPool = new KeyPair[EC_KEY_PAIR_POOL_SIZE];
+    ecKeyPairPoolCount = 0;
+    rsaKeyPairPool = new KeyPair[RSA_KEY_PAIR_POOL_SIZE];
+    rsaKeyPairPoolCount = 0;
+    poolStats = JCSystem.makeTransientShortArray((short) (KEY_PAIR_POOLS * POOL_STATS),
+        JCSystem.CLEAR_ON_RESET);
     jCardSimulator = this;
   }
 
 
   public KeyPair createRsaKeyPair() {
-    KeyPair rsaKeyPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
+    KeyPair rsaKeyPair = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
+    ((RSAPublicKey) rsaKeyPair.getPublic()).setExponent(RSA_PUBLIC_EXPONENT, (short) 0,
+        (short) RSA_PUBLIC_EXPONENT.length);
     rsaKeyPair.genKeyPair();
     return rsaKeyPair;
   }
@@ -220,23 +271,39 @@ public class KMJCardSimulator implements KMSEProvider {
       byte[] pubModBuf, short pubModStart, short pubModLength, short[] lengths) {
     switch (alg) {
       case KMType.RSA:
-        if (RSA_KEY_SIZE != privKeyLength || RSA_KEY_SIZE != pubModLength) {
+        if (RSA_KEY_SIZE != pubModLength) {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
-        KeyPair rsaKey = createRsaKeyPair();
-        RSAPrivateKey privKey = (RSAPrivateKey) rsaKey.getPrivate();
-        //Copy exponent.
-        byte[] exp = new byte[RSA_KEY_SIZE];
-        lengths[0] = privKey.getExponent(exp, (short) 0);
-        if (lengths[0] > privKeyLength) {
+        KeyPair rsaKey;
+        if (RSA_KEY_SIZE == privKeyLength) {
+          // The buffer only fits the private exponent, as used to make keys for import.
+          rsaKey = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_2048);
+          rsaKey.genKeyPair();
+          Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, privKeyLength, (byte) 0);
+          byte[] exp = new byte[RSA_KEY_SIZE];
+          lengths[0] = ((RSAPrivateKey) rsaKey.getPrivate()).getExponent(exp, (short) 0);
+          Util.arrayCopyNonAtomic(exp, (short) 0,
+              privKeyBuf, (short) (privKeyStart + privKeyLength - lengths[0]), lengths[0]);
+        } else if (RSA_CRT_KEY_SIZE == privKeyLength) {
+          if (rsaKeyPairPoolCount > 0) {
+            incrementPoolStat(RSA_KEY_PAIR_POOL, POOL_STAT_HITS);
+            rsaKeyPairPoolCount--;
+            rsaKey = rsaKeyPairPool[rsaKeyPairPoolCount];
+            rsaKeyPairPool[rsaKeyPairPoolCount] = null;
+          } else {
+            incrementPoolStat(RSA_KEY_PAIR_POOL, POOL_STAT_MISSES);
+            rsaKey = createRsaKeyPair();
+          }
+          copyRsaCrtComponents((RSAPrivateCrtKey) rsaKey.getPrivate(), privKeyBuf, privKeyStart);
+          rsaKey.getPrivate().clearKey();
+          lengths[0] = RSA_CRT_KEY_SIZE;
+        } else {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+          break;
         }
-        Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, privKeyLength, (byte) 0);
-        Util.arrayCopyNonAtomic(exp, (short) 0,
-            privKeyBuf, (short) (privKeyStart + privKeyLength - lengths[0]), lengths[0]);
         //Copy modulus
         byte[] mod = new byte[RSA_KEY_SIZE];
-        lengths[1] = privKey.getModulus(mod, (short) 0);
+        lengths[1] = ((RSAPublicKey) rsaKey.getPublic()).getModulus(mod, (short) 0);
         if (lengths[1] > pubModLength) {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
@@ -245,11 +312,23 @@ public class KMJCardSimulator implements KMSEProvider {
             pubModBuf, (short) (pubModStart + pubModLength - lengths[1]), lengths[1]);
         break;
       case KMType.EC:
-        KeyPair ecKey = createECKeyPair();
+        KeyPair ecKey;
+        if (ecKeyPairPoolCount > 0) {
+          incrementPoolStat(EC_KEY_PAIR_POOL, POOL_STAT_HITS);
+          // The key pair is removed from the pool before it is used, so that it is never handed
+          // out twice.
+          ecKeyPairPoolCount--;
+          ecKey = ecKeyPairPool[ecKeyPairPoolCount];
+          ecKeyPairPool[ecKeyPairPoolCount] = null;
+        } else {
+          incrementPoolStat(EC_KEY_PAIR_POOL, POOL_STAT_MISSES);
+          ecKey = createECKeyPair();
+        }
         ECPublicKey ecPubKey = (ECPublicKey) ecKey.getPublic();
         ECPrivateKey ecPrivKey = (ECPrivateKey) ecKey.getPrivate();
         lengths[0] = ecPrivKey.getS(privKeyBuf, privKeyStart);
         lengths[1] = ecPubKey.getW(pubModBuf, pubModStart);
+        ecPrivKey.clearKey();
         if (lengths[0] > privKeyLength || lengths[1] > pubModLength) {
           CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
         }
@@ -260,6 +339,36 @@ public class KMJCardSimulator implements KMSEProvider {
     }
   }
 
+  // Copies the CRT components P, Q, DP1, DQ1 and PQ of the private key, each zero padded to half
+  // the key size.
+  private void copyRsaCrtComponents(RSAPrivateCrtKey privKey, byte[] privKeyBuf,
+      short privKeyStart) {
+    Util.arrayFillNonAtomic(privKeyBuf, privKeyStart, RSA_CRT_KEY_SIZE, (byte) 0);
+    byte[] comp = new byte[RSA_CRT_COMPONENT_SIZE];
+    short compLen;
+    for (short i = 0; i < 5; i++) {
+      switch (i) {
+        case 0:
+          compLen = privKey.getP(comp, (short) 0);
+          break;
+        case 1:
+          compLen = privKey.getQ(comp, (short) 0);
+          break;
+        case 2:
+          compLen = privKey.getDP1(comp, (short) 0);
+          break;
+        case 3:
+          compLen = privKey.getDQ1(comp, (short) 0);
+          break;
+        default:
+          compLen = privKey.getPQ(comp, (short) 0);
+          break;
+      }
+      Util.arrayCopyNonAtomic(comp, (short) 0, privKeyBuf,
+          (short) (privKeyStart + (i + 1) * RSA_CRT_COMPONENT_SIZE - compLen), compLen);
+    }
+  }
+
   @Override
   public boolean importSymmetricKey(byte alg, short keysize, byte[] buf, short startOff,
       short length) {
@@ -330,11 +439,19 @@ public class KMJCardSimulator implements KMSEProvider {
     if (keyLen != 32 && keyLen != 16) {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
-    java.security.Key aesKey = new SecretKeySpec(keyBuf, keyStart, keyLen, "AES");
-    // Create the cipher
+    KMJceCache jceCache = KMJceCache.getInstance();
+    java.security.Key aesKey = jceCache.getAesKeySpec(keyBuf, keyStart, keyLen);
+    // Check nonce
+    if (nonceLen != AES_GCM_NONCE_LENGTH) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    // Create and init the cipher
+    GCMParameterSpec spec = new GCMParameterSpec(AES_GCM_TAG_LENGTH * 8, nonce, nonceStart,
+        AES_GCM_NONCE_LENGTH);
     javax.crypto.Cipher cipher = null;
     try {
-      cipher = javax.crypto.Cipher.getInstance("AES/GCM/NoPadding", "SunJCE");
+      cipher = jceCache.initCipher(KMJceCache.AES_GCM, javax.crypto.Cipher.ENCRYPT_MODE, aesKey,
+          spec);
     } catch (NoSuchAlgorithmException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
@@ -344,18 +461,6 @@ public class KMJCardSimulator implements KMSEProvider {
     } catch (NoSuchPaddingException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    // Copy nonce
-    if (nonceLen != AES_GCM_NONCE_LENGTH) {
-      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    byte[] iv = new byte[AES_GCM_NONCE_LENGTH];
-    Util.arrayCopyNonAtomic(nonce, nonceStart, iv, (short) 0, AES_GCM_NONCE_LENGTH);
-    // Init Cipher
-    GCMParameterSpec spec = new GCMParameterSpec(AES_GCM_TAG_LENGTH * 8, nonce, nonceStart,
-        AES_GCM_NONCE_LENGTH);
-    try {
-      cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, aesKey, spec);
     } catch (InvalidKeyException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.INVALID_INIT);
@@ -363,14 +468,12 @@ public class KMJCardSimulator implements KMSEProvider {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
     }
-    // Create auth data
-    byte[] aad = new byte[authDataLen];
-    Util.arrayCopyNonAtomic(authData, authDataStart, aad, (short) 0, authDataLen);
-    cipher.updateAAD(aad);
-    // Encrypt secret
     short len = 0;
     byte[] outputBuf = new byte[cipher.getOutputSize(secretLen)];
     try {
+      // Add auth data
+      cipher.updateAAD(authData, authDataStart, authDataLen);
+      // Encrypt secret
       len = (short) (cipher.doFinal(secret, secretStart, secretLen, outputBuf, (short) 0));
     } catch (ShortBufferException e) {
       e.printStackTrace();
@@ -381,6 +484,8 @@ public class KMJCardSimulator implements KMSEProvider {
     } catch (BadPaddingException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    } finally {
+      jceCache.releaseCipher(cipher);
     }
     // Extract Tag appended at the end.
     Util.arrayCopyNonAtomic(outputBuf, (short) (len - AES_GCM_TAG_LENGTH), authTag, authTagStart,
@@ -413,12 +518,19 @@ public class KMJCardSimulator implements KMSEProvider {
     if (keyLen != 32 && keyLen != 16) {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
-    java.security.Key aesKey = new SecretKeySpec(keyBuf, keyStart, keyLen,
-        "AES");
-    // Create the cipher
+    KMJceCache jceCache = KMJceCache.getInstance();
+    java.security.Key aesKey = jceCache.getAesKeySpec(keyBuf, keyStart, keyLen);
+    // Check nonce
+    if (nonceLen != AES_GCM_NONCE_LENGTH) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    // Create and init the cipher
+    GCMParameterSpec spec = new GCMParameterSpec(authTagLen * 8, nonce,
+        nonceStart, AES_GCM_NONCE_LENGTH);
     javax.crypto.Cipher cipher = null;
     try {
-      cipher = javax.crypto.Cipher.getInstance("AES/GCM/NoPadding", "SunJCE");
+      cipher = jceCache.initCipher(KMJceCache.AES_GCM, javax.crypto.Cipher.DECRYPT_MODE, aesKey,
+          spec);
     } catch (NoSuchAlgorithmException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
@@ -428,19 +540,6 @@ public class KMJCardSimulator implements KMSEProvider {
     } catch (NoSuchPaddingException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    // Copy nonce
-    if (nonceLen != AES_GCM_NONCE_LENGTH) {
-      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    byte[] iv = new byte[AES_GCM_NONCE_LENGTH];
-    Util.arrayCopyNonAtomic(nonce, nonceStart, iv, (short) 0,
-        AES_GCM_NONCE_LENGTH);
-    // Init Cipher
-    GCMParameterSpec spec = new GCMParameterSpec(authTagLen * 8, nonce,
-        nonceStart, AES_GCM_NONCE_LENGTH);
-    try {
-      cipher.init(javax.crypto.Cipher.DECRYPT_MODE, aesKey, spec);
     } catch (InvalidKeyException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.INVALID_INIT);
@@ -448,23 +547,15 @@ public class KMJCardSimulator implements KMSEProvider {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
     }
-    // Create auth data
-    byte[] aad = new byte[authDataLen];
-    Util.arrayCopyNonAtomic(authData, authDataStart, aad, (short) 0,
-        authDataLen);
-    cipher.updateAAD(aad);
-    // Append the auth tag at the end of data
-    byte[] inputBuf = new byte[(short) (encSecretLen + authTagLen)];
-    Util.arrayCopyNonAtomic(encSecret, encSecretStart, inputBuf, (short) 0,
-        encSecretLen);
-    Util.arrayCopyNonAtomic(authTag, authTagStart, inputBuf, encSecretLen,
-        authTagLen);
     // Decrypt
     short len = 0;
-    byte[] outputBuf = new byte[cipher.getOutputSize((short) inputBuf.length)];
+    byte[] outputBuf = new byte[cipher.getOutputSize((short) (encSecretLen + authTagLen))];
     try {
-      len = (short) (cipher.doFinal(inputBuf, (short) 0,
-          (short) inputBuf.length, outputBuf, (short) 0));
+      // Add auth data
+      cipher.updateAAD(authData, authDataStart, authDataLen);
+      // The auth tag follows the encrypted data
+      len = (short) cipher.update(encSecret, encSecretStart, encSecretLen, outputBuf, (short) 0);
+      len += (short) cipher.doFinal(authTag, authTagStart, authTagLen, outputBuf, len);
     } catch (AEADBadTagException e) {
       e.printStackTrace();
       return false;
@@ -477,6 +568,8 @@ public class KMJCardSimulator implements KMSEProvider {
     } catch (BadPaddingException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    } finally {
+      jceCache.releaseCipher(cipher);
     }
     // Copy the decrypted data
     Util.arrayCopyNonAtomic(outputBuf, (short) 0, secret, secretStart, len);
@@ -485,7 +578,7 @@ public class KMJCardSimulator implements KMSEProvider {
 
   @Override
   public void getTrueRandomNumber(byte[] buf, short start, short length) {
-    Util.arrayCopy(entropyPool, (short) 0, buf, start, length);
+    rngSource.nextBytes(buf, start, length);
   }
 
   public HMACKey cmacKdf(byte[] keyMaterial, short keyMaterialStart, short keyMaterialLen,
@@ -563,6 +656,12 @@ public class KMJCardSimulator implements KMSEProvider {
     return hmacSign(key, data, dataStart, dataLength, mac, macStart);
   }
 
+  @Override
+  public short messageDigest256(byte[] data, short dataStart, short dataLength,
+      byte[] digest, short digestStart) {
+    return sha256Digest.doFinal(data, dataStart, dataLength, digest, digestStart);
+  }
+
   @Override
   public boolean hmacVerify(byte[] keyBuf, short keyStart, short keyLength, byte[] data,
       short dataStart, short dataLength, byte[] mac, short macStart, short macLength) {
@@ -574,19 +673,24 @@ public class KMJCardSimulator implements KMSEProvider {
   public short rsaDecipherOAEP256(byte[] secret, short secretStart, short secretLength,
       byte[] modBuffer, short modOff, short modLength,
       byte[] inputDataBuf, short inputDataStart, short inputDataLength,
-      byte[] outputDataBuf, short outputDataStart) {
+      byte[] outputDataBuf, short outputDataStart, byte[] keyIdBuf, short keyIdStart) {
     KMCipher cipher = createRsaDecipher(
         KMType.RSA_OAEP, KMType.SHA2_256, secret, secretStart, secretLength, modBuffer, modOff,
         modLength);
-    return cipher.doFinal(
-        inputDataBuf, inputDataStart, inputDataLength, outputDataBuf, outputDataStart);
+    try {
+      return cipher.doFinal(
+          inputDataBuf, inputDataStart, inputDataLength, outputDataBuf, outputDataStart);
+    } finally {
+      cipher.release();
+    }
   }
 
   @Override
   public KMOperation initSymmetricOperation(byte purpose, byte alg, byte digest, byte padding,
       byte blockMode,
       byte[] keyBuf, short keyStart, short keyLength,
-      byte[] ivBuf, short ivStart, short ivLength, short macLength) {
+      byte[] ivBuf, short ivStart, short ivLength, short macLength,
+      byte[] keyIdBuf, short keyIdStart) {
     switch (alg) {
       case KMType.AES:
       case KMType.DES:
@@ -613,7 +717,8 @@ public class KMJCardSimulator implements KMSEProvider {
   @Override
   public KMOperation initAsymmetricOperation(byte purpose, byte alg, byte padding, byte digest,
       byte[] privKeyBuf, short privKeyStart, short privKeyLength,
-      byte[] pubModBuf, short pubModStart, short pubModLength) {
+      byte[] pubModBuf, short pubModStart, short pubModLength,
+      byte[] keyIdBuf, short keyIdStart) {
     if (alg == KMType.RSA) {
       switch (purpose) {
         case KMType.SIGN:
@@ -659,10 +764,8 @@ public class KMJCardSimulator implements KMSEProvider {
           secretLength, modBuffer, modOff, modLength);
     }
     Cipher rsaCipher = Cipher.getInstance(cipherAlg, false);
-    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder
-        .buildKey(KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength, modBuffer, modOff,
+        modLength);
     rsaCipher.init(key, Cipher.MODE_DECRYPT);
     KMCipherImpl inst = new KMCipherImpl(rsaCipher);
     inst.setCipherAlgorithm(KMType.RSA);
@@ -690,7 +793,8 @@ public class KMJCardSimulator implements KMSEProvider {
     BigInteger expInt = new BigInteger(expString, 16);
     javax.crypto.Cipher rsaCipher = null;
     try {
-      KeyFactory kf = KeyFactory.getInstance("RSA");
+      KMJceCache jceCache = KMJceCache.getInstance();
+      KeyFactory kf = jceCache.getRsaKeyFactory();
       // Create cipher with oaep padding
       OAEPParameterSpec oaepSpec = null;
       if (digest == KMType.SHA2_256) {
@@ -700,17 +804,23 @@ public class KMJCardSimulator implements KMSEProvider {
         oaepSpec = new OAEPParameterSpec("SHA1", "MGF1",
             MGF1ParameterSpec.SHA1, PSource.PSpecified.DEFAULT);
       }
-      rsaCipher = javax.crypto.Cipher.getInstance("RSA/ECB/OAEPPadding", "SunJCE");
       if (mode == KMType.ENCRYPT) {
         RSAPublicKeySpec pubSpec = new RSAPublicKeySpec(modInt, expInt);
         java.security.interfaces.RSAPublicKey pubKey = (java.security.interfaces.RSAPublicKey) kf
             .generatePublic(pubSpec);
-        rsaCipher.init(javax.crypto.Cipher.ENCRYPT_MODE, pubKey, oaepSpec);
+        rsaCipher = jceCache.initCipher(KMJceCache.RSA_OAEP, javax.crypto.Cipher.ENCRYPT_MODE,
+            pubKey, oaepSpec);
       } else {
-        RSAPrivateKeySpec privSpec = new RSAPrivateKeySpec(modInt, expInt);
+        RSAPrivateKeySpec privSpec;
+        if (secretLen == RSA_CRT_KEY_SIZE) {
+          privSpec = createRsaPrivateCrtKeySpec(modInt, secret, secretStart);
+        } else {
+          privSpec = new RSAPrivateKeySpec(modInt, expInt);
+        }
         java.security.interfaces.RSAPrivateKey privKey = (java.security.interfaces.RSAPrivateKey) kf
             .generatePrivate(privSpec);
-        rsaCipher.init(javax.crypto.Cipher.DECRYPT_MODE, privKey, oaepSpec);
+        rsaCipher = jceCache.initCipher(KMJceCache.RSA_OAEP, javax.crypto.Cipher.DECRYPT_MODE,
+            privKey, oaepSpec);
       }
     } catch (NoSuchAlgorithmException e) {
       e.printStackTrace();
@@ -738,6 +848,23 @@ public class KMJCardSimulator implements KMSEProvider {
     return ret;
   }
 
+  // The CRT key spec also needs the private exponent, which is derived from the primes and the
+  // public exponent.
+  private RSAPrivateCrtKeySpec createRsaPrivateCrtKeySpec(BigInteger modInt, byte[] secret,
+      short secretStart) {
+    BigInteger[] comps = new BigInteger[5];
+    byte[] comp = new byte[RSA_CRT_COMPONENT_SIZE];
+    for (short i = 0; i < 5; i++) {
+      Util.arrayCopyNonAtomic(secret, (short) (secretStart + i * RSA_CRT_COMPONENT_SIZE), comp,
+          (short) 0, RSA_CRT_COMPONENT_SIZE);
+      comps[i] = new BigInteger(1, comp);
+    }
+    BigInteger pubExp = new BigInteger(1, RSA_PUBLIC_EXPONENT);
+    BigInteger phi = comps[0].subtract(BigInteger.ONE).multiply(comps[1].subtract(BigInteger.ONE));
+    return new RSAPrivateCrtKeySpec(modInt, pubExp, pubExp.modInverse(phi), comps[0], comps[1],
+        comps[2], comps[3], comps[4]);
+  }
+
   private String toHexString(byte[] num) {
     StringBuilder sb = new StringBuilder();
     for (int i = 0; i < num.length; i++) {
@@ -746,6 +873,30 @@ public class KMJCardSimulator implements KMSEProvider {
     return sb.toString();
   }
 
+  // Creates the private key of an RSA key blob secret, which holds either the CRT components of
+  // the key or, for legacy key blobs and imported keys, the private exponent.
+  private PrivateKey createRsaPrivateKey(byte[] secret, short secretStart, short secretLength,
+      byte[] modBuffer, short modOff, short modLength) {
+    if (secretLength == RSA_CRT_KEY_SIZE) {
+      RSAPrivateCrtKey key = (RSAPrivateCrtKey) KeyBuilder
+          .buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
+      key.setP(secret, secretStart, RSA_CRT_COMPONENT_SIZE);
+      key.setQ(secret, (short) (secretStart + RSA_CRT_COMPONENT_SIZE), RSA_CRT_COMPONENT_SIZE);
+      key.setDP1(secret, (short) (secretStart + 2 * RSA_CRT_COMPONENT_SIZE),
+          RSA_CRT_COMPONENT_SIZE);
+      key.setDQ1(secret, (short) (secretStart + 3 * RSA_CRT_COMPONENT_SIZE),
+          RSA_CRT_COMPONENT_SIZE);
+      key.setPQ(secret, (short) (secretStart + 4 * RSA_CRT_COMPONENT_SIZE),
+          RSA_CRT_COMPONENT_SIZE);
+      return key;
+    }
+    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder
+        .buildKey(KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
+    key.setExponent(secret, secretStart, secretLength);
+    key.setModulus(modBuffer, modOff, modLength);
+    return key;
+  }
+
   public Signature createRsaSigner(short digest, short padding, byte[] secret,
       short secretStart, short secretLength, byte[] modBuffer,
       short modOff, short modLength) {
@@ -756,10 +907,8 @@ public class KMJCardSimulator implements KMSEProvider {
           modBuffer, modOff, modLength);
     }
     Signature rsaSigner = Signature.getInstance((byte) alg, false);
-    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder
-        .buildKey(KeyBuilder.TYPE_RSA_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength, modBuffer, modOff,
+        modLength);
     rsaSigner.init(key, Signature.MODE_SIGN);
     return rsaSigner;
   }
@@ -768,10 +917,8 @@ public class KMJCardSimulator implements KMSEProvider {
       byte[] secret, short secretStart, short secretLength,
       byte[] modBuffer, short modOff, short modLength) {
     Cipher rsaCipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
-    RSAPrivateKey key = (RSAPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PRIVATE,
-        KeyBuilder.LENGTH_RSA_2048, false);
-    key.setExponent(secret, secretStart, secretLength);
-    key.setModulus(modBuffer, modOff, modLength);
+    PrivateKey key = createRsaPrivateKey(secret, secretStart, secretLength, modBuffer, modOff,
+        modLength);
     rsaCipher.init(key, Cipher.MODE_DECRYPT);
     KMRsa2048NoDigestSignature inst = new KMRsa2048NoDigestSignature(rsaCipher, (byte) padding,
         modBuffer, modOff, modLength);
@@ -948,13 +1095,22 @@ public class KMJCardSimulator implements KMSEProvider {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
     //Create the sun jce compliant aes key
-    byte[] keyMaterial = new byte[secretLength];
-    Util.arrayCopyNonAtomic(secret, secretStart, keyMaterial, (short) 0, secretLength);
-    java.security.Key aesKey = new SecretKeySpec(keyMaterial, (short) 0, keyMaterial.length, "AES");
-    // Create the cipher
+    KMJceCache jceCache = KMJceCache.getInstance();
+    java.security.Key aesKey = jceCache.getAesKeySpec(secret, secretStart, secretLength);
+    // Copy nonce
+    byte[] iv = new byte[ivLength];
+    Util.arrayCopyNonAtomic(ivBuffer, ivStart, iv, (short) 0, ivLength);
+    // Create and init the cipher
+    IvParameterSpec ivSpec = new IvParameterSpec(iv);
     javax.crypto.Cipher cipher = null;
     try {
-      cipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding", "SunJCE");
+      if (mode == KMType.ENCRYPT) {
+        cipher = jceCache.initCipher(KMJceCache.AES_CTR, javax.crypto.Cipher.ENCRYPT_MODE, aesKey,
+            ivSpec);
+      } else {
+        cipher = jceCache.initCipher(KMJceCache.AES_CTR, javax.crypto.Cipher.DECRYPT_MODE, aesKey,
+            ivSpec);
+      }
     } catch (NoSuchAlgorithmException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
@@ -964,18 +1120,6 @@ public class KMJCardSimulator implements KMSEProvider {
     } catch (NoSuchPaddingException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    // Copy nonce
-    byte[] iv = new byte[ivLength];
-    Util.arrayCopyNonAtomic(ivBuffer, ivStart, iv, (short) 0, ivLength);
-    // Init Cipher
-    IvParameterSpec ivSpec = new IvParameterSpec(iv);
-    try {
-      if (mode == KMType.ENCRYPT) {
-        cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, aesKey, ivSpec);
-      } else {
-        cipher.init(javax.crypto.Cipher.DECRYPT_MODE, aesKey, ivSpec);
-      }
     } catch (InvalidKeyException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.INVALID_INIT);
@@ -1020,13 +1164,19 @@ public class KMJCardSimulator implements KMSEProvider {
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
     }
     //Create the sun jce compliant aes key
-    byte[] keyMaterial = new byte[secretLength];
-    Util.arrayCopyNonAtomic(secret, secretStart, keyMaterial, (short) 0, secretLength);
-    java.security.Key aesKey = new SecretKeySpec(keyMaterial, (short) 0, keyMaterial.length, "AES");
-    // Create the cipher
+    KMJceCache jceCache = KMJceCache.getInstance();
+    java.security.Key aesKey = jceCache.getAesKeySpec(secret, secretStart, secretLength);
+    // Create and init the cipher
+    GCMParameterSpec spec = new GCMParameterSpec(tagLen, ivBuffer, ivStart,
+        AES_GCM_NONCE_LENGTH);
     javax.crypto.Cipher cipher = null;
     try {
-      cipher = javax.crypto.Cipher.getInstance("AES/GCM/NoPadding", "SunJCE");
+      if (mode == KMType.ENCRYPT) {
+        mode = javax.crypto.Cipher.ENCRYPT_MODE;
+      } else {
+        mode = javax.crypto.Cipher.DECRYPT_MODE;
+      }
+      cipher = jceCache.initCipher(KMJceCache.AES_GCM, mode, aesKey, spec);
     } catch (NoSuchAlgorithmException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
@@ -1036,19 +1186,6 @@ public class KMJCardSimulator implements KMSEProvider {
     } catch (NoSuchPaddingException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
-    }
-    // Copy nonce
-    byte[] iv = new byte[AES_GCM_NONCE_LENGTH];
-    Util.arrayCopyNonAtomic(ivBuffer, ivStart, iv, (short) 0, AES_GCM_NONCE_LENGTH);
-    // Init Cipher
-    GCMParameterSpec spec = new GCMParameterSpec(tagLen, iv, (short) 0, AES_GCM_NONCE_LENGTH);
-    try {
-      if (mode == KMType.ENCRYPT) {
-        mode = javax.crypto.Cipher.ENCRYPT_MODE;
-      } else {
-        mode = javax.crypto.Cipher.DECRYPT_MODE;
-      }
-      cipher.init(mode, aesKey, spec);
     } catch (InvalidKeyException e) {
       e.printStackTrace();
       CryptoException.throwIt(CryptoException.INVALID_INIT);
@@ -1065,55 +1202,104 @@ public class KMJCardSimulator implements KMSEProvider {
   }
 
   private void initEntropyPool(byte[] pool) {
-    byte index = 0;
-    RandomData trng;
-    while (index < rngCounter.length) {
-      rngCounter[index++] = 0;
-    }
     try {
-      trng = RandomData.getInstance(RandomData.ALG_TRNG);
-      trng.nextBytes(pool, (short) 0, (short) pool.length);
+      rngSource = RandomData.getInstance(RandomData.ALG_TRNG);
     } catch (CryptoException exp) {
       if (exp.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
         // simulator does not support TRNG algorithm. So, PRNG algorithm (deprecated) is used.
-        trng = RandomData.getInstance(RandomData.ALG_PSEUDO_RANDOM);
-        trng.nextBytes(pool, (short) 0, (short) pool.length);
+        rngSource = RandomData.getInstance(RandomData.ALG_PSEUDO_RANDOM);
       } else {
         ISOException.throwIt(ISO7816.SW_UNKNOWN);
       }
     }
+    rngSource.nextBytes(pool, (short) 0, (short) pool.length);
   }
 
-  // Generate a secure random number from existing entropy pool. This uses aes ecb algorithm with
-  // 8 byte rngCounter and 16 byte block size.
+  // Generate a secure random number using CTR DRBG (NIST SP 800-90A) with AES 128 and without
+  // derivation function. The random bytes are served from a key stream buffer, which is refilled
+  // by encrypting several counter blocks at a time. The drbg state is transient, so it is seeded
+  // from the TRNG on first use after reset and then reseeded every RNG_RESEED_INTERVAL refills.
   @Override
   public void newRandomNumber(byte[] num, short startOff, short length) {
-    KMRepository repository = KMRepository.instance();
-    byte[] bufPtr = repository.getHeap();
-    short countBufInd = repository.alloc(KMKeymasterApplet.AES_BLOCK_SIZE);
-    short randBufInd = repository.alloc(KMKeymasterApplet.AES_BLOCK_SIZE);
-    short len = KMKeymasterApplet.AES_BLOCK_SIZE;
-    aesRngKey.setKey(entropyPool, (short) 0);
-    aesRngCipher.init(aesRngKey, Cipher.MODE_ENCRYPT, aesICV, (short) 0, (short) 16);
+    short len;
     while (length > 0) {
+      if (rngState[RNG_KEY_STREAM_REMAINING] == 0) {
+        refillKeyStream();
+      }
+      len = rngState[RNG_KEY_STREAM_REMAINING];
       if (length < len) {
         len = length;
       }
-      // increment rngCounter by one
-      incrementCounter();
-      // copy the 8 byte rngCounter into the 16 byte rngCounter buffer.
-      Util.arrayCopy(rngCounter, (short) 0, bufPtr, countBufInd, (short) rngCounter.length);
-      // encrypt the rngCounter buffer with existing entropy which forms the aes key.
-      aesRngCipher.doFinal(
-          bufPtr, countBufInd, KMKeymasterApplet.AES_BLOCK_SIZE, bufPtr, randBufInd);
-      // copy the encrypted rngCounter block to buffer passed in the argument
-      Util.arrayCopy(bufPtr, randBufInd, num, startOff, len);
+      // Serve the key stream from the end and clear the served bytes.
+      short keyStreamOff = (short) (rngState[RNG_KEY_STREAM_REMAINING] - len);
+      Util.arrayCopyNonAtomic(rngBuffer, keyStreamOff, num, startOff, len);
+      Util.arrayFillNonAtomic(rngBuffer, keyStreamOff, len, (byte) 0);
+      rngState[RNG_KEY_STREAM_REMAINING] = keyStreamOff;
       length = (short) (length - len);
       startOff = (short) (startOff + len);
     }
   }
 
-  // increment 8 byte rngCounter by one
+  // Generates RNG_KEY_STREAM_BLOCKS of key stream followed by the next key and counter, all with
+  // one encryption.
+  private void refillKeyStream() {
+    if (rngState[RNG_RESEED_COUNTER] == 0 || rngState[RNG_RESEED_COUNTER] > RNG_RESEED_INTERVAL) {
+      rngSource.nextBytes(entropyPool, (short) 0, (short) entropyPool.length);
+      reseed(entropyPool, (short) 0);
+    }
+    encryptCounterBlocks((short) 0, (short) (RNG_KEY_STREAM_BLOCKS + 2));
+    // Update the state with the two blocks following the key stream.
+    updateState(RNG_KEY_STREAM_SIZE);
+    rngState[RNG_KEY_STREAM_REMAINING] = RNG_KEY_STREAM_SIZE;
+    rngState[RNG_RESEED_COUNTER]++;
+  }
+
+  // Reseeds the drbg with ENTROPY_POOL_SIZE bytes of seed material and drops the key stream.
+  private void reseed(byte[] seed, short seedOff) {
+    if (rngState[RNG_RESEED_COUNTER] == 0) {
+      // Instantiate with zero key and counter.
+      Util.arrayFillNonAtomic(rngBuffer, RNG_KEY_STREAM_SIZE, ENTROPY_POOL_SIZE, (byte) 0);
+      Util.arrayFillNonAtomic(rngCounter, (short) 0, (short) rngCounter.length, (byte) 0);
+      aesRngKey.setKey(rngBuffer, RNG_KEY_STREAM_SIZE);
+      aesRngCipher.init(aesRngKey, Cipher.MODE_ENCRYPT);
+    }
+    Util.arrayFillNonAtomic(rngBuffer, (short) 0, RNG_KEY_STREAM_SIZE, (byte) 0);
+    encryptCounterBlocks(RNG_KEY_STREAM_SIZE, (short) 2);
+    short index = RNG_KEY_STREAM_SIZE;
+    while (index < rngBuffer.length) {
+      rngBuffer[index] = (byte) (rngBuffer[index] ^ seed[seedOff]);
+      seedOff++;
+      index++;
+    }
+    updateState(RNG_KEY_STREAM_SIZE);
+    rngState[RNG_KEY_STREAM_REMAINING] = 0;
+    rngState[RNG_RESEED_COUNTER] = 1;
+  }
+
+  // Fills the rng buffer with the given number of incremented counter blocks starting at offset
+  // and encrypts them in place.
+  private void encryptCounterBlocks(short offset, short blocks) {
+    short off = offset;
+    while (blocks > 0) {
+      incrementCounter();
+      Util.arrayCopyNonAtomic(rngCounter, (short) 0, rngBuffer, off, (short) rngCounter.length);
+      off = (short) (off + rngCounter.length);
+      blocks--;
+    }
+    aesRngCipher.doFinal(rngBuffer, offset, (short) (off - offset), rngBuffer, offset);
+  }
+
+  // Sets the key and counter from the two blocks at the given offset of the rng buffer and clears
+  // them.
+  private void updateState(short offset) {
+    aesRngKey.setKey(rngBuffer, offset);
+    aesRngCipher.init(aesRngKey, Cipher.MODE_ENCRYPT);
+    Util.arrayCopyNonAtomic(rngBuffer, (short) (offset + 16), rngCounter, (short) 0,
+        (short) rngCounter.length);
+    Util.arrayFillNonAtomic(rngBuffer, offset, ENTROPY_POOL_SIZE, (byte) 0);
+  }
+
+  // increment 16 byte rngCounter by one
   private void incrementCounter() {
     // start with least significant byte
     short index = (short) (rngCounter.length - 1);
@@ -1139,27 +1325,18 @@ public class KMJCardSimulator implements KMSEProvider {
   @Override
   public void addRngEntropy(byte[] num, short offset, short length) {
     // Maximum length can be 256 bytes. But currently we support max 32 bytes seed.
-    // Get existing entropy pool.
-    if (length > 32) {
-      length = 32;
+    if (length > ENTROPY_POOL_SIZE) {
+      length = ENTROPY_POOL_SIZE;
     }
-    // Create new temporary pool.
-    // Populate the new pool with the entropy which is derived from current entropy pool.
-    newRandomNumber(rndNum, (short) 0, (short) entropyPool.length);
-    // Copy the entropy to the current pool - updates the entropy pool.
-    Util.arrayCopy(rndNum, (short) 0, entropyPool, (short) 0, (short) entropyPool.length);
+    // Fresh entropy from the TRNG is combined with the seed received from the master, which
+    // forms the seed material of the reseed.
+    rngSource.nextBytes(entropyPool, (short) 0, (short) entropyPool.length);
     short index = 0;
-    short randIndex = 0;
-    // XOR the seed received from the master in the entropy pool - 16 bytes (entPool.length).
-    // at a time.
     while (index < length) {
-      entropyPool[randIndex] = (byte) (entropyPool[randIndex] ^ num[(short) (offset + index)]);
-      randIndex++;
+      entropyPool[index] = (byte) (entropyPool[index] ^ num[(short) (offset + index)]);
       index++;
-      if (randIndex >= entropyPool.length) {
-        randIndex = 0;
-      }
     }
+    reseed(entropyPool, (short) 0);
   }
 
   @Override
@@ -1178,6 +1355,62 @@ public class KMJCardSimulator implements KMSEProvider {
     return Util.getShort(certificateChain, (short) 0);
   }
 
+  @Override
+  public byte[] getCertificateChainBuffer() {
+    return certificateChain;
+  }
+
+  @Override
+  public short getCertificateChainOffset() {
+    // First two bytes hold the length.
+    return (short) 2;
+  }
+
+  // The simulator has no cipher and signature pools. For the EC and RSA key pair pools the
+  // statistics are struct{byte alg; byte available key pairs; short hits; short misses;
+  // short refills}, where alg is KMType.EC or KMType.RSA.
+  @Override
+  public short getPoolStatistics(byte[] buf, short start) {
+    short offset = writeKeyPairPoolStatistics(KMType.EC, ecKeyPairPoolCount,
+        (short) (EC_KEY_PAIR_POOL * POOL_STATS), buf, start);
+    offset = writeKeyPairPoolStatistics(KMType.RSA, rsaKeyPairPoolCount,
+        (short) (RSA_KEY_PAIR_POOL * POOL_STATS), buf, offset);
+    return (short) (offset - start);
+  }
+
+  private short writeKeyPairPoolStatistics(byte alg, short count, short stats, byte[] buf,
+      short offset) {
+    buf[offset++] = alg;
+    buf[offset++] = (byte) count;
+    offset = Util.setShort(buf, offset, poolStats[(short) (stats + POOL_STAT_HITS)]);
+    offset = Util.setShort(buf, offset, poolStats[(short) (stats + POOL_STAT_MISSES)]);
+    return Util.setShort(buf, offset, poolStats[(short) (stats + POOL_STAT_REFILLS)]);
+  }
+
+  private void incrementPoolStat(byte pool, byte stat) {
+    short index = (short) ((short) (pool * POOL_STATS) + stat);
+    if (poolStats[index] != (short) 0x7FFF) {
+      poolStats[index]++;
+    }
+  }
+
+  // Generates one key pair into the EC pool, or into the RSA pool when the EC pool is full.
+  @Override
+  public short refillKeyPairPool() {
+    if (ecKeyPairPoolCount < EC_KEY_PAIR_POOL_SIZE) {
+      ecKeyPairPool[ecKeyPairPoolCount] = createECKeyPair();
+      // The key pair is available only after it is completely generated.
+      ecKeyPairPoolCount++;
+      incrementPoolStat(EC_KEY_PAIR_POOL, POOL_STAT_REFILLS);
+    } else if (rsaKeyPairPoolCount < RSA_KEY_PAIR_POOL_SIZE) {
+      rsaKeyPairPool[rsaKeyPairPoolCount] = createRsaKeyPair();
+      rsaKeyPairPoolCount++;
+      incrementPoolStat(RSA_KEY_PAIR_POOL, POOL_STAT_REFILLS);
+    }
+    return (short) ((short) (EC_KEY_PAIR_POOL_SIZE - ecKeyPairPoolCount)
+        + (short) (RSA_KEY_PAIR_POOL_SIZE - rsaKeyPairPoolCount));
+  }
+
   @Override
   public short ecSign256(KMAttestationKey attestationKey,
       byte[] inputDataBuf, short inputDataStart, short inputDataLength,
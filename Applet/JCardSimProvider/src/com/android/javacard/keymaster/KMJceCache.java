@@ -0,0 +1,136 @@
+/*
+ * Copyright(C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" (short)0IS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.javacard.keymaster;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cache of the SunJCE objects used by the jcardsim provider. Cipher.getInstance and new key
+ * specs are costly compared to the operations themselves, so released Cipher instances are kept
+ * per transformation and reused, and the AES key specs of the most recently used keys are kept.
+ * The cache is confined to the calling thread, so nothing in it is synchronized.
+ */
+public class KMJceCache {
+
+  public static final String PROVIDER = "SunJCE";
+  public static final String AES_GCM = "AES/GCM/NoPadding";
+  public static final String AES_CTR = "AES/CTR/NoPadding";
+  public static final String RSA_OAEP = "RSA/ECB/OAEPPadding";
+  // Maximum number of free Cipher instances kept per transformation.
+  private static final int MAX_FREE_CIPHERS = 4;
+  // Maximum number of AES key specs kept.
+  private static final int MAX_KEY_SPECS = 8;
+
+  private static final ThreadLocal<KMJceCache> cache = new ThreadLocal<KMJceCache>() {
+    @Override
+    protected KMJceCache initialValue() {
+      return new KMJceCache();
+    }
+  };
+
+  private final HashMap<String, ArrayDeque<Cipher>> freeCiphers;
+  private final LinkedHashMap<ByteBuffer, SecretKeySpec> aesKeySpecs;
+  private KeyFactory rsaKeyFactory;
+
+  private KMJceCache() {
+    freeCiphers = new HashMap<String, ArrayDeque<Cipher>>();
+    // Access ordered map, which drops the least recently used key spec.
+    aesKeySpecs = new LinkedHashMap<ByteBuffer, SecretKeySpec>(MAX_KEY_SPECS, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, SecretKeySpec> eldest) {
+        return size() > MAX_KEY_SPECS;
+      }
+    };
+  }
+
+  public static KMJceCache getInstance() {
+    return cache.get();
+  }
+
+  // Returns an initialized Cipher instance of the given transformation. SunJCE refuses to
+  // initialize a GCM Cipher for encryption with the key and iv of its previous encryption, which
+  // a new instance would accept, so in that case the reused instance is dropped and a new one is
+  // initialized instead.
+  public Cipher initCipher(String transformation, int mode, Key key,
+      AlgorithmParameterSpec spec)
+      throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException,
+      InvalidKeyException, InvalidAlgorithmParameterException {
+    ArrayDeque<Cipher> free = freeCiphers.get(transformation);
+    if (free != null && !free.isEmpty()) {
+      Cipher cipher = free.pop();
+      try {
+        cipher.init(mode, key, spec);
+        return cipher;
+      } catch (InvalidAlgorithmParameterException e) {
+        // Fall through to a new instance.
+      }
+    }
+    Cipher cipher = Cipher.getInstance(transformation, PROVIDER);
+    cipher.init(mode, key, spec);
+    return cipher;
+  }
+
+  // Returns the Cipher instance to the cache. The instance must not be used by the caller
+  // anymore.
+  public void releaseCipher(Cipher cipher) {
+    if (cipher == null) {
+      return;
+    }
+    String transformation = cipher.getAlgorithm();
+    ArrayDeque<Cipher> free = freeCiphers.get(transformation);
+    if (free == null) {
+      free = new ArrayDeque<Cipher>();
+      freeCiphers.put(transformation, free);
+    }
+    if (free.size() < MAX_FREE_CIPHERS) {
+      free.push(cipher);
+    }
+  }
+
+  public KeyFactory getRsaKeyFactory() throws NoSuchAlgorithmException {
+    if (rsaKeyFactory == null) {
+      rsaKeyFactory = KeyFactory.getInstance("RSA");
+    }
+    return rsaKeyFactory;
+  }
+
+  // Returns the AES key spec of the given key material, which is created and kept if it is not
+  // one of the recently used keys.
+  public SecretKeySpec getAesKeySpec(byte[] keyBuf, short keyStart, short keyLen) {
+    SecretKeySpec keySpec = aesKeySpecs.get(ByteBuffer.wrap(keyBuf, keyStart, keyLen));
+    if (keySpec == null) {
+      byte[] keyMaterial = new byte[keyLen];
+      System.arraycopy(keyBuf, keyStart, keyMaterial, 0, keyLen);
+      keySpec = new SecretKeySpec(keyMaterial, "AES");
+      aesKeySpecs.put(ByteBuffer.wrap(keyMaterial), keySpec);
+    }
+    return keySpec;
+  }
+}
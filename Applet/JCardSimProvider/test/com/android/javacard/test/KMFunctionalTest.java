@@ -51,6 +51,7 @@ import javacard.security.RSAPublicKey;
 import javacard.security.Signature;
 import javacardx.crypto.Cipher;
 
+import java.io.ByteArrayInputStream;
 import java.math.BigInteger;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
@@ -59,6 +60,9 @@ import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
 import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPoint;
@@ -117,6 +121,11 @@ public class KMFunctionalTest {
   private static final byte INS_DEVICE_LOCKED_CMD = INS_END_KM_PROVISION_CMD + 20;//0x34
   private static final byte INS_EARLY_BOOT_ENDED_CMD = INS_END_KM_PROVISION_CMD + 21; //0x35
   private static final byte INS_GET_CERT_CHAIN_CMD = INS_END_KM_PROVISION_CMD + 22; //0x36
+  private static final byte INS_ONE_SHOT_OPERATION_CMD = INS_END_KM_PROVISION_CMD + 23; //0x37
+  private static final byte INS_STREAM_UPDATE_OPERATION_CMD = INS_END_KM_PROVISION_CMD + 24; //0x38
+  private static final byte INS_REFILL_KEY_PAIR_POOL_CMD = INS_END_KM_PROVISION_CMD + 25; //0x39
+  private static final byte INS_ATTEST_KEY_WITH_CERT_CHAIN_CMD =
+      INS_END_KM_PROVISION_CMD + 26; //0x3A
 
   private static final byte[] kEcPrivKey = {
       (byte) 0x21, (byte) 0xe0, (byte) 0x86, (byte) 0x43, (byte) 0x2a,
@@ -471,6 +480,13 @@ public class KMFunctionalTest {
 
   private void setBootParams(CardSimulator simulator, short osVersion,
       short osPatchLevel, short vendorPatchLevel, short bootPatchLevel) {
+    setBootParams(simulator, osVersion, osPatchLevel, vendorPatchLevel, bootPatchLevel,
+        KMType.VERIFIED_BOOT, KMType.DEVICE_LOCKED_FALSE);
+  }
+
+  private void setBootParams(CardSimulator simulator, short osVersion,
+      short osPatchLevel, short vendorPatchLevel, short bootPatchLevel, byte bootState,
+      byte deviceLocked) {
     // Argument 1 OS Version
     short versionPtr = KMInteger.uint_16(osVersion);
     // short versionTagPtr = KMIntegerTag.instance(KMType.UINT_TAG,
@@ -487,11 +503,9 @@ public class KMFunctionalTest {
     short bootHashPtr = KMByteBlob.instance(bootKeyHash, (short) 0,
         (short) bootKeyHash.length);
     // Argument 5 Verified Boot State
-    short bootStatePtr = KMEnum.instance(KMType.VERIFIED_BOOT_STATE,
-        KMType.VERIFIED_BOOT);
+    short bootStatePtr = KMEnum.instance(KMType.VERIFIED_BOOT_STATE, bootState);
     // Argument 6 Device Locked
-    short deviceLockedPtr = KMEnum.instance(KMType.DEVICE_LOCKED,
-        KMType.DEVICE_LOCKED_FALSE);
+    short deviceLockedPtr = KMEnum.instance(KMType.DEVICE_LOCKED, deviceLocked);
     // Arguments
     short arrPtr = KMArray.instance((short) 8);
     KMArray vals = KMArray.cast(arrPtr);
@@ -604,9 +618,11 @@ public class KMFunctionalTest {
   }
 
   private void provisionAttestIds(CardSimulator simulator) {
-    short arrPtr = KMArray.instance((short) 8);
+    provisionAttestIds(simulator, "Attestation Id".getBytes());
+  }
 
-    byte[] buf = "Attestation Id".getBytes();
+  private void provisionAttestIds(CardSimulator simulator, byte[] buf) {
+    short arrPtr = KMArray.instance((short) 8);
 
     KMArray.cast(arrPtr).add((short) 0,
         KMByteTag.instance(KMType.ATTESTATION_ID_BRAND,
@@ -1701,6 +1717,108 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testRefillKeyPairPool() {
+    init();
+    // The statistics of the EC pool are followed by the ones of the RSA pool, each is
+    // struct{byte alg; byte available; short hits; short misses; short refills}.
+    byte[] stats = getKeyPairPoolStatistics();
+    Assert.assertEquals(KMType.EC, stats[0]);
+    Assert.assertEquals(KMType.RSA, stats[8]);
+    // The pools are empty when the applet is installed.
+    Assert.assertEquals(0, stats[1]);
+    Assert.assertEquals(0, stats[9]);
+    byte[] initialStats = stats;
+    // Each refill generates one key pair, until no key pair is missing.
+    short expectedMissing = refillKeyPairPool();
+    short refilled = 1;
+    while (expectedMissing > 0) {
+      expectedMissing--;
+      Assert.assertEquals(expectedMissing, refillKeyPairPool());
+      refilled++;
+    }
+    // A full pool is not refilled.
+    Assert.assertEquals(0, refillKeyPairPool());
+    stats = getKeyPairPoolStatistics();
+    short ecPoolSize = stats[1];
+    short rsaPoolSize = stats[9];
+    Assert.assertEquals(refilled, ecPoolSize + rsaPoolSize);
+    assertPoolStats(initialStats, stats, (short) 0, (short) 0, (short) 0, ecPoolSize);
+    assertPoolStats(initialStats, stats, (short) 8, (short) 0, (short) 0, rsaPoolSize);
+    // Key generation takes the key pairs from the pools.
+    for (short i = 0; i < ecPoolSize; i++) {
+      short ret = generateEcKey(null, null);
+      short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+      Assert.assertEquals(error, KMError.OK);
+    }
+    for (short i = 0; i < rsaPoolSize; i++) {
+      short ret = generateRsaKey(null, null);
+      short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+      Assert.assertEquals(error, KMError.OK);
+    }
+    stats = getKeyPairPoolStatistics();
+    Assert.assertEquals(0, stats[1]);
+    Assert.assertEquals(0, stats[9]);
+    assertPoolStats(initialStats, stats, (short) 0, ecPoolSize, (short) 0, ecPoolSize);
+    assertPoolStats(initialStats, stats, (short) 8, rsaPoolSize, (short) 0, rsaPoolSize);
+    // The key pairs are generated when the pools are empty.
+    short ret = generateEcKey(null, null);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    ret = generateRsaKey(null, null);
+    error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    stats = getKeyPairPoolStatistics();
+    Assert.assertEquals(0, stats[1]);
+    Assert.assertEquals(0, stats[9]);
+    assertPoolStats(initialStats, stats, (short) 0, ecPoolSize, (short) 1, ecPoolSize);
+    assertPoolStats(initialStats, stats, (short) 8, rsaPoolSize, (short) 1, rsaPoolSize);
+    cleanUp();
+  }
+
+  // Checks the hits, misses and refills of the pool at offset since the initial statistics.
+  private void assertPoolStats(byte[] initialStats, byte[] stats, short offset, short hits,
+      short misses, short refills) {
+    Assert.assertEquals(Util.getShort(initialStats, (short) (offset + 2)) + hits,
+        Util.getShort(stats, (short) (offset + 2)));
+    Assert.assertEquals(Util.getShort(initialStats, (short) (offset + 4)) + misses,
+        Util.getShort(stats, (short) (offset + 4)));
+    Assert.assertEquals(Util.getShort(initialStats, (short) (offset + 6)) + refills,
+        Util.getShort(stats, (short) (offset + 6)));
+  }
+
+  private short refillKeyPairPool() {
+    CommandAPDU commandAPDU = new CommandAPDU(0x80, INS_REFILL_KEY_PAIR_POOL_CMD, 0x40, 0x00);
+    ResponseAPDU response = simulator.transmitCommand(commandAPDU);
+    short ret = KMArray.instance((short) 2);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMInteger.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    return KMInteger.cast(KMArray.cast(ret).get((short) 1)).getShort();
+  }
+
+  private byte[] getKeyPairPoolStatistics() {
+    CommandAPDU commandAPDU = new CommandAPDU(0x80, INS_GET_PROVISION_STATUS_CMD, 0x40, 0x00);
+    ResponseAPDU response = simulator.transmitCommand(commandAPDU);
+    short ret = KMArray.instance((short) 3);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMInteger.exp());
+    KMArray.cast(ret).add((short) 2, KMByteBlob.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    // The statistics are copied out of the heap, which is reset by the next command.
+    KMByteBlob blob = KMByteBlob.cast(KMArray.cast(ret).get((short) 2));
+    byte[] stats = new byte[blob.length()];
+    Util.arrayCopyNonAtomic(blob.getBuffer(), blob.getStartOff(), stats, (short) 0,
+        blob.length());
+    return stats;
+  }
+
   public short getHmacSharingParams() {
     CommandAPDU commandAPDU = new CommandAPDU(0x80, INS_GET_HMAC_SHARING_PARAM_CMD, 0x40, 0x00);
     //print(commandAPDU.getBytes());
@@ -1909,6 +2027,30 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testKeyBlobCacheWithAlteredCharacteristics() {
+    init();
+    short ret = generateHmacKey(null, null);
+    short keyBlobPtr = KMArray.cast(ret).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    KMByteBlob.cast(keyBlobPtr).getValues(keyBlob, (short) 0);
+    // The key blob is decrypted and its secret is cached.
+    ret = getKeyCharacteristics(KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    // Change the key size in the key characteristics from 128 to 129, keeping the auth tag,
+    // nonce and secret of the key blob.
+    byte[] keySize = {0x1A, 0x30, 0x00, 0x00, 0x03, 0x18, (byte) 0x80};
+    short index = 0;
+    while (0 != Util.arrayCompare(keyBlob, index, keySize, (short) 0, (short) keySize.length)) {
+      index++;
+    }
+    keyBlob[(short) (index + keySize.length - 1)] = (byte) 0x81;
+    ret = getKeyCharacteristics(KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    Assert.assertEquals(KMError.INVALID_KEY_BLOB, KMByteBlob.cast(ret).get((short) 1));
+    cleanUp();
+  }
+
   @Test
   public void testDeleteAllKeySuccess() {
     init();
@@ -2075,6 +2217,102 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testWithAesCbcNoPadLargeInput() {
+    init();
+    short aesKeyArr = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(aesKeyArr).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    byte[] nonce = new byte[16];
+    cryptoProvider.newRandomNumber(nonce, (short) 0, (short) 16);
+    // Input larger then 255 bytes is decoded in place from the received buffer.
+    byte[] plainData = new byte[1024];
+    cryptoProvider.newRandomNumber(plainData, (short) 0, (short) plainData.length);
+    short inParams = getAesDesParams(KMType.AES, KMType.CBC, KMType.PADDING_NONE, nonce);
+    short ret = processMessage(plainData,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMType.ENCRYPT,
+        KMKeyParameters.instance(inParams),
+        (short) 0, null, false, false
+    );
+    keyBlobPtr = KMArray.cast(ret).get((short) 2);
+    byte[] cipherData = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Assert.assertEquals(plainData.length, cipherData.length);
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        cipherData, (short) 0, (short) cipherData.length);
+    inParams = getAesDesParams(KMType.AES, KMType.CBC, KMType.PADDING_NONE, nonce);
+    ret = processMessage(cipherData,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMType.DECRYPT,
+        KMKeyParameters.instance(inParams),
+        (short) 0, null, false, false
+    );
+    keyBlobPtr = KMArray.cast(ret).get((short) 2);
+    Assert.assertEquals(plainData.length, KMByteBlob.cast(keyBlobPtr).length());
+    short equal = Util.arrayCompare(plainData, (short) 0, KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(), (short) plainData.length);
+    Assert.assertTrue(equal == 0);
+    cleanUp();
+  }
+
+  @Test
+  public void testWithAesCbcNoPadStreamUpdate() {
+    init();
+    short aesKeyArr = generateAesDesKey(KMType.AES, (short) 128, null, null, false);
+    short keyBlobPtr = KMArray.cast(aesKeyArr).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    byte[] nonce = new byte[16];
+    cryptoProvider.newRandomNumber(nonce, (short) 0, (short) 16);
+    byte[] plainData = new byte[2048];
+    cryptoProvider.newRandomNumber(plainData, (short) 0, (short) plainData.length);
+    // Encrypt using stream update
+    short inParams = getAesDesParams(KMType.AES, KMType.CBC, KMType.PADDING_NONE, nonce);
+    short beginResp = begin(KMType.ENCRYPT,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(inParams), (short) 0);
+    short opHandle = KMArray.cast(beginResp).get((short) 2);
+    byte[] opHandleBuf = new byte[KMRepository.OPERATION_HANDLE_SIZE];
+    KMInteger.cast(opHandle).getValue(opHandleBuf, (short) 0, (short) opHandleBuf.length);
+    opHandle = KMInteger.uint_64(opHandleBuf, (short) 0);
+    short ret = streamUpdate(opHandle,
+        KMByteBlob.instance(plainData, (short) 0, (short) plainData.length));
+    Assert.assertEquals(plainData.length,
+        KMInteger.cast(KMArray.cast(ret).get((short) 1)).getShort());
+    short outPtr = KMArray.cast(ret).get((short) 3);
+    byte[] cipherData = new byte[plainData.length];
+    short len = KMByteBlob.cast(outPtr).length();
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(outPtr).getBuffer(),
+        KMByteBlob.cast(outPtr).getStartOff(), cipherData, (short) 0, len);
+    opHandle = KMInteger.uint_64(opHandleBuf, (short) 0);
+    ret = finish(opHandle, KMByteBlob.instance((short) 0), null, (short) 0, (short) 0, (short) 0,
+        KMError.OK);
+    outPtr = KMArray.cast(ret).get((short) 2);
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(outPtr).getBuffer(),
+        KMByteBlob.cast(outPtr).getStartOff(), cipherData, len, KMByteBlob.cast(outPtr).length());
+    Assert.assertEquals(plainData.length, len + KMByteBlob.cast(outPtr).length());
+    // Decrypt
+    inParams = getAesDesParams(KMType.AES, KMType.CBC, KMType.PADDING_NONE, nonce);
+    ret = processMessage(cipherData,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMType.DECRYPT,
+        KMKeyParameters.instance(inParams),
+        (short) 0, null, false, false
+    );
+    outPtr = KMArray.cast(ret).get((short) 2);
+    Assert.assertEquals(plainData.length, KMByteBlob.cast(outPtr).length());
+    short equal = Util.arrayCompare(plainData, (short) 0, KMByteBlob.cast(outPtr).getBuffer(),
+        KMByteBlob.cast(outPtr).getStartOff(), (short) plainData.length);
+    Assert.assertTrue(equal == 0);
+    cleanUp();
+  }
+
   @Test
   public void testWithDesCbcPkcs7() {
     init();
@@ -2577,6 +2815,48 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testOneShotSignVerifyWithHmacSHA256() {
+    init();
+    short hmacKeyArr = generateHmacKey(null, null);
+    short keyBlobPtr = KMArray.cast(hmacKeyArr).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    byte[] plainData = "Hello World 123!".getBytes();
+    // Sign using begin and finish.
+    short ret = processMessage(plainData,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMType.SIGN,
+        KMKeyParameters.instance(getHmacParams(KMType.SHA2_256, true)),
+        (short) 0, null, false, false
+    );
+    short signPtr = KMArray.cast(ret).get((short) 2);
+    byte[] signatureData = new byte[KMByteBlob.cast(signPtr).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(signPtr).getBuffer(),
+        KMByteBlob.cast(signPtr).getStartOff(),
+        signatureData, (short) 0, (short) signatureData.length);
+    // Sign using one shot operation.
+    ret = oneShot(KMType.SIGN,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(getHmacParams(KMType.SHA2_256, true)),
+        KMByteBlob.instance(plainData, (short) 0, (short) plainData.length), null);
+    signPtr = KMArray.cast(ret).get((short) 2);
+    Assert.assertEquals(signatureData.length, KMByteBlob.cast(signPtr).length());
+    Assert.assertEquals(0, Util.arrayCompare(signatureData, (short) 0,
+        KMByteBlob.cast(signPtr).getBuffer(), KMByteBlob.cast(signPtr).getStartOff(),
+        (short) signatureData.length));
+    // Verify using one shot operation.
+    ret = oneShot(KMType.VERIFY,
+        KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length),
+        KMKeyParameters.instance(getHmacParams(KMType.SHA2_256, false)),
+        KMByteBlob.instance(plainData, (short) 0, (short) plainData.length), signatureData);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    cleanUp();
+  }
+
   @Test
   public void testSignVerifyWithEcdsaSHA256WithUpdate() {
     init();
@@ -2623,6 +2903,40 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
+  @Test
+  public void testProvisionAttestIdsWithNewSizes() throws CertificateException {
+    AID appletAID1 = AIDUtil.create("A000000062");
+    simulator.installApplet(appletAID1, KMJCardSimApplet.class);
+    // Select applet
+    simulator.selectApplet(appletAID1);
+    provisionSigningKey(simulator);
+    provisionSigningCertificate(simulator);
+    provisionCertificateParams(simulator);
+    provisionSharedSecret(simulator);
+    // The attestation ids get a new size every time, so the previous ids become dead space in
+    // the data table, which is reclaimed once the table is full.
+    byte index = 0;
+    while (index < 16) {
+      byte[] buf = new byte[(short) (32 + index * 4)];
+      Arrays.fill(buf, index);
+      provisionAttestIds(simulator, buf);
+      index++;
+    }
+    setBootParams(simulator, (short) 1, (short) 1, (short) 0, (short) 0);
+    provisionLocked(simulator);
+    // The issuer is still intact after the compaction.
+    short key = generateEcKey(null, null);
+    short keyBlobPtr = KMArray.cast(key).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    X509Certificate cert = parseCert(testAttestKey(keyBlob));
+    Assert.assertArrayEquals(X509Issuer, cert.getIssuerX500Principal().getEncoded());
+    cleanUp();
+  }
+
   @Test
   public void testAttestRsaKey() {
     init();
@@ -2651,7 +2965,123 @@ public class KMFunctionalTest {
     cleanUp();
   }
 
-  public void testAttestKey(byte[] keyBlob) {
+  @Test
+  public void testAttestKeyWithCertTemplate() throws CertificateException {
+    init();
+    short key = generateEcKey(null, null);
+    short keyBlobPtr = KMArray.cast(key).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    // The first certificate encodes the template and the second one copies it.
+    X509Certificate cert1 = parseCert(testAttestKey(keyBlob));
+    X509Certificate cert2 = parseCert(testAttestKey(keyBlob));
+    Assert.assertEquals(cert1.getIssuerX500Principal(), cert2.getIssuerX500Principal());
+    Assert.assertArrayEquals(cert1.getExtensionValue("1.3.6.1.4.1.11129.2.1.17"),
+        cert2.getExtensionValue("1.3.6.1.4.1.11129.2.1.17"));
+    // The template is encoded again when the root of trust changes. The key blob is bound to the
+    // root of trust, so the same key is generated again with the new verified boot state.
+    setBootParams(simulator, (short) 1, (short) 1, (short) 0, (short) 0, KMType.SELF_SIGNED_BOOT,
+        KMType.DEVICE_LOCKED_FALSE);
+    key = generateEcKey(null, null);
+    keyBlobPtr = KMArray.cast(key).get((short) 1);
+    keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    X509Certificate cert3 = parseCert(testAttestKey(keyBlob));
+    Assert.assertEquals(cert1.getIssuerX500Principal(), cert3.getIssuerX500Principal());
+    // The attestation extension holds the new root of trust.
+    Assert.assertFalse(Arrays.equals(cert1.getExtensionValue("1.3.6.1.4.1.11129.2.1.17"),
+        cert3.getExtensionValue("1.3.6.1.4.1.11129.2.1.17")));
+    cleanUp();
+  }
+
+  @Test
+  public void testAttestKeyWithCertChain() throws CertificateException {
+    init();
+    short key = generateEcKey(null, null);
+    short keyBlobPtr = KMArray.cast(key).get((short) 1);
+    byte[] keyBlob = new byte[KMByteBlob.cast(keyBlobPtr).length()];
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(keyBlobPtr).getBuffer(),
+        KMByteBlob.cast(keyBlobPtr).getStartOff(),
+        keyBlob, (short) 0, (short) keyBlob.length);
+    short arrPtr = KMArray.instance((short) 2);
+    KMArray.cast(arrPtr).add((short) 0, KMByteTag.instance(KMType.ATTESTATION_APPLICATION_ID,
+        KMByteBlob.instance(attAppId, (short) 0, (short) attAppId.length)));
+    KMArray.cast(arrPtr).add((short) 1, KMByteTag.instance(KMType.ATTESTATION_CHALLENGE,
+        KMByteBlob.instance(attChallenge, (short) 0, (short) attChallenge.length)));
+    short keyParams = KMKeyParameters.instance(arrPtr);
+    short args = KMArray.instance((short) 2);
+    KMArray.cast(args)
+        .add((short) 0, KMByteBlob.instance(keyBlob, (short) 0, (short) keyBlob.length));
+    KMArray.cast(args).add((short) 1, keyParams);
+    CommandAPDU apdu = encodeApdu((byte) INS_ATTEST_KEY_WITH_CERT_CHAIN_CMD, args);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    Assert.assertEquals(0x9000, response.getSW());
+    short ret = KMArray.instance((short) 3);
+    short arrBlobs = KMArray.instance((short) 1);
+    KMArray.cast(arrBlobs).add((short) 0, KMByteBlob.exp());
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, arrBlobs);
+    KMArray.cast(ret).add((short) 2, KMByteBlob.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    // The leaf certificate is followed by the provisioned cert chain.
+    short cert = KMArray.cast(KMArray.cast(ret).get((short) 1)).get((short) 0);
+    byte[] certBuf = new byte[KMByteBlob.cast(cert).length()];
+    Util.arrayCopyNonAtomic(KMByteBlob.cast(cert).getBuffer(), KMByteBlob.cast(cert).getStartOff(),
+        certBuf, (short) 0, (short) certBuf.length);
+    parseCert(certBuf);
+    short chain = KMArray.cast(ret).get((short) 2);
+    Assert.assertEquals(kEcAttestCert.length + kEcAttestRootCert.length,
+        KMByteBlob.cast(chain).length());
+    Assert.assertEquals(0, Util.arrayCompare(kEcAttestCert, (short) 0,
+        KMByteBlob.cast(chain).getBuffer(), KMByteBlob.cast(chain).getStartOff(),
+        (short) kEcAttestCert.length));
+    cleanUp();
+  }
+
+  @Test
+  public void testGetCertChain() {
+    init();
+    // The cert chain is longer than a short APDU response.
+    CommandAPDU commandAPDU = new CommandAPDU(0x80, INS_GET_CERT_CHAIN_CMD, 0x40, 0x00, 65536);
+    ResponseAPDU response = simulator.transmitCommand(commandAPDU);
+    Assert.assertEquals(0x9000, response.getSW());
+    short ret = KMArray.instance((short) 2);
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMByteBlob.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    // The cert chain is the provisioned attestation cert followed by the root cert.
+    short chain = KMArray.cast(ret).get((short) 1);
+    byte[] expected = new byte[kEcAttestCert.length + kEcAttestRootCert.length];
+    Util.arrayCopyNonAtomic(kEcAttestCert, (short) 0, expected, (short) 0,
+        (short) kEcAttestCert.length);
+    Util.arrayCopyNonAtomic(kEcAttestRootCert, (short) 0, expected,
+        (short) kEcAttestCert.length, (short) kEcAttestRootCert.length);
+    Assert.assertEquals(expected.length, KMByteBlob.cast(chain).length());
+    Assert.assertEquals(0, Util.arrayCompare(expected, (short) 0,
+        KMByteBlob.cast(chain).getBuffer(), KMByteBlob.cast(chain).getStartOff(),
+        (short) expected.length));
+    cleanUp();
+  }
+
+  private X509Certificate parseCert(byte[] cert) throws CertificateException {
+    CertificateFactory factory = CertificateFactory.getInstance("X.509");
+    return (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(cert));
+  }
+
+  public byte[] testAttestKey(byte[] keyBlob) {
     short arrPtr = KMArray.instance((short) 2);
     KMArray.cast(arrPtr).add((short) 0, KMByteTag.instance(KMType.ATTESTATION_APPLICATION_ID,
         KMByteBlob.instance(attAppId, (short) 0, (short) attAppId.length)));
@@ -2679,6 +3109,12 @@ public class KMFunctionalTest {
     arrBlobs = KMArray.cast(ret).get((short) 1);
     short cert = KMArray.cast(arrBlobs).get((short) 0);
     //printCert(KMByteBlob.cast(cert).getBuffer(),KMByteBlob.cast(cert).getStartOff(),KMByteBlob.cast(cert).length());
+    byte[] certBuf = new byte[KMByteBlob.cast(cert).length()];
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(cert).getBuffer(),
+        KMByteBlob.cast(cert).getStartOff(),
+        certBuf, (short) 0, (short) certBuf.length);
+    return certBuf;
   }
 
   @Test
@@ -3265,6 +3701,38 @@ public class KMFunctionalTest {
     return ret;
   }
 
+  public short oneShot(byte keyPurpose, short keyBlob, short keyParams, short data,
+      byte[] signature) {
+    short signatureTag;
+    if (signature == null) {
+      signatureTag = KMByteBlob.instance((short) 0);
+    } else {
+      signatureTag = KMByteBlob.instance(signature, (short) 0, (short) signature.length);
+    }
+    short hwToken = KMHardwareAuthToken.instance();
+    short verToken = KMVerificationToken.instance();
+    short arrPtr = KMArray.instance((short) 7);
+    KMArray.cast(arrPtr).add((short) 0, KMEnum.instance(KMType.PURPOSE, keyPurpose));
+    KMArray.cast(arrPtr).add((short) 1, keyBlob);
+    KMArray.cast(arrPtr).add((short) 2, keyParams);
+    KMArray.cast(arrPtr).add((short) 3, data);
+    KMArray.cast(arrPtr).add((short) 4, signatureTag);
+    KMArray.cast(arrPtr).add((short) 5, hwToken);
+    KMArray.cast(arrPtr).add((short) 6, verToken);
+    CommandAPDU apdu = encodeApdu((byte) INS_ONE_SHOT_OPERATION_CMD, arrPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    short ret = KMArray.instance((short) 3);
+    short outParams = KMKeyParameters.exp();
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, outParams);
+    KMArray.cast(ret).add((short) 2, KMByteBlob.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    return ret;
+  }
+
   public short update(short operationHandle, short data, short inParams, short hwToken,
       short verToken) {
     if (hwToken == 0) {
@@ -3304,6 +3772,31 @@ public class KMFunctionalTest {
     return ret;
   }
 
+  public short streamUpdate(short operationHandle, short data) {
+    short hwToken = KMHardwareAuthToken.instance();
+    short verToken = KMVerificationToken.instance();
+    short inParams = KMKeyParameters.instance(KMArray.instance((short) 0));
+    short arrPtr = KMArray.instance((short) 5);
+    KMArray.cast(arrPtr).add((short) 0, operationHandle);
+    KMArray.cast(arrPtr).add((short) 1, inParams);
+    KMArray.cast(arrPtr).add((short) 2, hwToken);
+    KMArray.cast(arrPtr).add((short) 3, verToken);
+    KMArray.cast(arrPtr).add((short) 4, data);
+    CommandAPDU apdu = encodeApdu((byte) INS_STREAM_UPDATE_OPERATION_CMD, arrPtr);
+    ResponseAPDU response = simulator.transmitCommand(apdu);
+    short ret = KMArray.instance((short) 4);
+    short outParams = KMKeyParameters.exp();
+    KMArray.cast(ret).add((short) 0, KMInteger.exp());
+    KMArray.cast(ret).add((short) 1, KMInteger.exp());
+    KMArray.cast(ret).add((short) 2, outParams);
+    KMArray.cast(ret).add((short) 3, KMByteBlob.exp());
+    byte[] respBuf = response.getBytes();
+    ret = decoder.decode(ret, respBuf, (short) 0, (short) respBuf.length);
+    short error = KMInteger.cast(KMArray.cast(ret).get((short) 0)).getShort();
+    Assert.assertEquals(error, KMError.OK);
+    return ret;
+  }
+
   private void print(short blob) {
     print(KMByteBlob.cast(blob).getBuffer(), KMByteBlob.cast(blob).getStartOff(),
         KMByteBlob.cast(blob).length());
@@ -167,6 +167,13 @@ public interface KMAttestationCert {
    */
   short getCertLength();
 
+  /**
+   * Reset the cached encoding of the fields which are fixed for the device i.e. the issuer and the
+   * root of trust, so that the next build encodes them again. This must be called whenever the
+   * issuer is provisioned or the boot parameters are set.
+   */
+  void resetTemplate();
+
   /**
    * Build the certificate. After this method the certificate is ready.
    */
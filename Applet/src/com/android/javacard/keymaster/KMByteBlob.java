@@ -58,6 +58,19 @@ public class KMByteBlob extends KMType {
     return ptr;
   }
 
+  // byte blob referring to the value already present in the heap. The blob header is written in
+  // the TLV_HEADER_SIZE bytes preceding the value, so nothing is allocated or copied. The value is
+  // copied if the given buffer is not the heap.
+  public static short reference(byte[] buf, short startOff, short length) {
+    if (buf != heap || startOff < TLV_HEADER_SIZE) {
+      return instance(buf, startOff, length);
+    }
+    short ptr = (short) (startOff - TLV_HEADER_SIZE);
+    heap[ptr] = BYTE_BLOB_TYPE;
+    Util.setShort(heap, (short) (ptr + 1), length);
+    return ptr;
+  }
+
   // cast the ptr to KMByteBlob
   public static KMByteBlob cast(short ptr) {
     if (heap[ptr] != BYTE_BLOB_TYPE) {
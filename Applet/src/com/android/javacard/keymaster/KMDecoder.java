@@ -38,16 +38,55 @@ public class KMDecoder {
   private static final short UINT32_LENGTH = 0x1A;
   private static final short UINT64_LENGTH = 0x1B;
 
+  // Schema of the arguments is a pre order listing of the expected types. Each type is
+  // identified by its KMType code. ENUM_TYPE is followed by the two byte enum type. ARRAY_TYPE
+  // is followed by the number of elements and then the schema of each element. If number of
+  // elements is SCHEMA_VECTOR then it is followed by the schema of the single element type.
+  public static final byte SCHEMA_VECTOR = (byte) 0xFF;
+  private static final byte[] KEY_CHAR_SCHEMA = {
+      KMType.ARRAY_TYPE, 2,
+      KMType.KEY_PARAM_TYPE, // Software Enforced
+      KMType.KEY_PARAM_TYPE // Hardware Enforced
+  };
+  private static final byte[] HW_AUTH_TOKEN_SCHEMA = {
+      KMType.ARRAY_TYPE, 6,
+      KMType.INTEGER_TYPE, // Challenge
+      KMType.INTEGER_TYPE, // User Id
+      KMType.INTEGER_TYPE, // Authenticator Id
+      KMType.ENUM_TYPE, (byte) (KMType.USER_AUTH_TYPE >> 8), (byte) KMType.USER_AUTH_TYPE,
+      KMType.INTEGER_TYPE, // Timestamp
+      KMType.BYTE_BLOB_TYPE // Mac
+  };
+  private static final byte[] VERIFICATION_TOKEN_SCHEMA = {
+      KMType.ARRAY_TYPE, 5,
+      KMType.INTEGER_TYPE, // Challenge
+      KMType.INTEGER_TYPE, // Timestamp
+      KMType.BYTE_BLOB_TYPE, // Parameters Verified
+      KMType.ENUM_TYPE, (byte) (KMType.HARDWARE_TYPE >> 8), (byte) KMType.HARDWARE_TYPE,
+      KMType.BYTE_BLOB_TYPE // Mac
+  };
+  private static final byte[] HMAC_SHARING_PARAM_SCHEMA = {
+      KMType.ARRAY_TYPE, 2,
+      KMType.BYTE_BLOB_TYPE, // Seed
+      KMType.BYTE_BLOB_TYPE // Nonce
+  };
+
   private byte[] buffer;
   private short startOff;
   private short length;
   private short tagType;
   private short tagKey;
+  private byte[] schema;
+  private short schemaOff;
+  private boolean inPlace;
 
   public KMDecoder() {
     buffer = null;
     startOff = 0;
     length = 0;
+    schema = null;
+    schemaOff = 0;
+    inPlace = false;
   }
 
   public short decode(short expression, byte[] buffer, short startOff, short length) {
@@ -57,6 +96,27 @@ public class KMDecoder {
     return decode(expression);
   }
 
+  public short decode(byte[] schema, byte[] buffer, short startOff, short length) {
+    this.buffer = buffer;
+    this.startOff = startOff;
+    this.length = (short) (startOff + length);
+    this.schema = schema;
+    this.schemaOff = 0;
+    return decodeSchema();
+  }
+
+  // Same as decode but the byte blobs having a three byte CBOR header, i.e. larger than 255 bytes,
+  // are not copied. The CBOR header is overwritten by the blob header so that the blob refers to
+  // the value in the buffer itself. So the buffer must not be reclaimed while the blobs are used.
+  public short decodeInPlace(byte[] schema, byte[] buffer, short startOff, short length) {
+    inPlace = true;
+    try {
+      return decode(schema, buffer, startOff, length);
+    } finally {
+      inPlace = false;
+    }
+  }
+
   public short decodeArray(short exp, byte[] buffer, short startOff, short length) {
     this.buffer = buffer;
     this.startOff = startOff;
@@ -79,143 +139,262 @@ public class KMDecoder {
     return arrPtr;
   }
 
+  // Decodes an array which may have fewer elements than specified by the array schema.
+  public short decodeArray(byte[] schema, byte[] buffer, short startOff, short length) {
+    this.buffer = buffer;
+    this.startOff = startOff;
+    this.length = (short) (startOff + length);
+    if (schema[0] != KMType.ARRAY_TYPE) {
+      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+    this.schema = schema;
+    this.schemaOff = 2;
+    short payloadLength = readMajorTypeWithPayloadLength(ARRAY_TYPE);
+    if (payloadLength > schema[1]) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    short index = 0;
+    short obj;
+    short arrPtr = KMArray.instance(payloadLength);
+    while (index < payloadLength) {
+      obj = decodeSchema();
+      KMArray.cast(arrPtr).add(index, obj);
+      index++;
+    }
+    return arrPtr;
+  }
+
+  // Decodes the array described by the schema without reading the value of its last element,
+  // which must be a byte blob, so that the value can be received and processed separately. The
+  // last element of the returned array is the KMInteger length of the value, and the value starts
+  // at the offset returned by getOffset.
+  public short decodeStreamed(byte[] schema, byte[] buffer, short startOff, short length) {
+    this.buffer = buffer;
+    this.startOff = startOff;
+    this.length = (short) (startOff + length);
+    if (schema[0] != KMType.ARRAY_TYPE) {
+      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+    this.schema = schema;
+    this.schemaOff = 2;
+    short payloadLength = readMajorTypeWithPayloadLength(ARRAY_TYPE);
+    if (payloadLength != schema[1]) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    short index = 0;
+    short obj;
+    short arrPtr = KMArray.instance(payloadLength);
+    payloadLength--;
+    while (index < payloadLength) {
+      obj = decodeSchema();
+      KMArray.cast(arrPtr).add(index, obj);
+      index++;
+    }
+    if (schema[schemaOff] != KMType.BYTE_BLOB_TYPE) {
+      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+    obj = KMInteger.uint_16(readMajorTypeWithPayloadLength(BYTES_TYPE));
+    KMArray.cast(arrPtr).add(index, obj);
+    return arrPtr;
+  }
+
+  // Returns the offset till which the buffer is decoded.
+  public short getOffset() {
+    return startOff;
+  }
+
   private short decode(short exp) {
     byte type = KMType.getType(exp);
     switch (type) {
       case KMType.BYTE_BLOB_TYPE:
-        return decodeByteBlob(exp);
+        return decodeByteBlob();
       case KMType.INTEGER_TYPE:
-        return decodeInteger(exp);
+        return decodeInteger();
       case KMType.ARRAY_TYPE:
         return decodeArray(exp);
       case KMType.ENUM_TYPE:
-        return decodeEnum(exp);
+        return decodeEnum(KMEnum.cast(exp).getEnumType());
       case KMType.KEY_PARAM_TYPE:
-        return decodeKeyParam(exp);
+        return decodeKeyParam();
       case KMType.KEY_CHAR_TYPE:
-        return decodeKeyChar(exp);
+        return KMKeyCharacteristics.instance(decodeSchema(KEY_CHAR_SCHEMA));
       case KMType.VERIFICATION_TOKEN_TYPE:
-        return decodeVerificationToken(exp);
+        return KMVerificationToken.instance(decodeSchema(VERIFICATION_TOKEN_SCHEMA));
       case KMType.HMAC_SHARING_PARAM_TYPE:
-        return decodeHmacSharingParam(exp);
+        return KMHmacSharingParameters.instance(decodeSchema(HMAC_SHARING_PARAM_SCHEMA));
       case KMType.HW_AUTH_TOKEN_TYPE:
-        return decodeHwAuthToken(exp);
+        return KMHardwareAuthToken.instance(decodeSchema(HW_AUTH_TOKEN_SCHEMA));
       case KMType.TAG_TYPE:
         short tagType = KMTag.getTagType(exp);
-        return decodeTag(tagType, exp);
+        return decodeTag(tagType);
+      default:
+        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        return 0;
+    }
+  }
+
+  // Decodes the next value as described by the schema at the current schema offset.
+  private short decodeSchema() {
+    byte type = schema[schemaOff];
+    schemaOff++;
+    switch (type) {
+      case KMType.BYTE_BLOB_TYPE:
+        return decodeByteBlob();
+      case KMType.INTEGER_TYPE:
+        return decodeInteger();
+      case KMType.ARRAY_TYPE:
+        return decodeSchemaArray();
+      case KMType.ENUM_TYPE:
+        short enumType = Util.makeShort(schema[schemaOff], schema[(short) (schemaOff + 1)]);
+        schemaOff += 2;
+        return decodeEnum(enumType);
+      case KMType.KEY_PARAM_TYPE:
+        return decodeKeyParam();
+      case KMType.KEY_CHAR_TYPE:
+        return KMKeyCharacteristics.instance(decodeSchema(KEY_CHAR_SCHEMA));
+      case KMType.VERIFICATION_TOKEN_TYPE:
+        return KMVerificationToken.instance(decodeSchema(VERIFICATION_TOKEN_SCHEMA));
+      case KMType.HMAC_SHARING_PARAM_TYPE:
+        return KMHmacSharingParameters.instance(decodeSchema(HMAC_SHARING_PARAM_SCHEMA));
+      case KMType.HW_AUTH_TOKEN_TYPE:
+        return KMHardwareAuthToken.instance(decodeSchema(HW_AUTH_TOKEN_SCHEMA));
       default:
         ISOException.throwIt(ISO7816.SW_DATA_INVALID);
         return 0;
     }
   }
 
-  private short decodeTag(short tagType, short exp) {
+  // Decodes the next value using the given nested schema and then resumes the current schema.
+  private short decodeSchema(byte[] nestedSchema) {
+    byte[] savedSchema = schema;
+    short savedOff = schemaOff;
+    schema = nestedSchema;
+    schemaOff = 0;
+    short obj = decodeSchema();
+    schema = savedSchema;
+    schemaOff = savedOff;
+    return obj;
+  }
+
+  private short decodeSchemaArray() {
+    short payloadLength = readMajorTypeWithPayloadLength(ARRAY_TYPE);
+    byte count = schema[schemaOff];
+    schemaOff++;
+    short arrPtr = KMArray.instance(payloadLength);
+    short index = 0;
+    short obj;
+    if (count == SCHEMA_VECTOR) {
+      // Vector - every element is decoded using the same element schema.
+      short elementOff = schemaOff;
+      while (index < payloadLength) {
+        schemaOff = elementOff;
+        obj = decodeSchema();
+        KMArray.cast(arrPtr).add(index, obj);
+        index++;
+      }
+      schemaOff = skipSchema(elementOff);
+    } else {
+      if (count != payloadLength) {
+        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+      }
+      while (index < payloadLength) {
+        obj = decodeSchema();
+        KMArray.cast(arrPtr).add(index, obj);
+        index++;
+      }
+    }
+    return arrPtr;
+  }
+
+  // Returns the offset following the schema of the type at the given offset.
+  private short skipSchema(short off) {
+    byte type = schema[off];
+    off++;
+    if (type == KMType.ENUM_TYPE) {
+      return (short) (off + 2);
+    }
+    if (type != KMType.ARRAY_TYPE) {
+      return off;
+    }
+    short count = schema[off];
+    off++;
+    if (count == SCHEMA_VECTOR) {
+      return skipSchema(off);
+    }
+    while (count > 0) {
+      off = skipSchema(off);
+      count--;
+    }
+    return off;
+  }
+
+  private short decodeTag(short tagType) {
     switch (tagType) {
       case KMType.BYTES_TAG:
-        return decodeBytesTag(exp);
+        return decodeBytesTag();
       case KMType.BOOL_TAG:
-        return decodeBoolTag(exp);
+        return decodeBoolTag();
       case KMType.UINT_TAG:
       case KMType.ULONG_TAG:
       case KMType.DATE_TAG:
-        return decodeIntegerTag(exp);
+        return decodeIntegerTag(tagType);
       case KMType.ULONG_ARRAY_TAG:
       case KMType.UINT_ARRAY_TAG:
-        return decodeIntegerArrayTag(exp);
+        return decodeIntegerArrayTag(tagType);
       case KMType.ENUM_TAG:
-        return decodeEnumTag(exp);
+        return decodeEnumTag();
       case KMType.ENUM_ARRAY_TAG:
-        return decodeEnumArrayTag(exp);
+        return decodeEnumArrayTag();
       default:
         ISOException.throwIt(ISO7816.SW_DATA_INVALID);
         return 0;
     }
   }
 
-  private short decodeVerificationToken(short exp) {
-    short vals = decode(KMVerificationToken.cast(exp).getVals());
-    return KMVerificationToken.instance(vals);
-  }
-
-  private short decodeHwAuthToken(short exp) {
-    short vals = decode(KMHardwareAuthToken.cast(exp).getVals());
-    return KMHardwareAuthToken.cast(exp).instance(vals);
-  }
-
-  private short decodeHmacSharingParam(short exp) {
-    short vals = decode(KMHmacSharingParameters.cast(exp).getVals());
-    return KMHmacSharingParameters.instance(vals);
-  }
-
-  private short decodeKeyChar(short exp) {
-    short vals = decode(KMKeyCharacteristics.cast(exp).getVals());
-    return KMKeyCharacteristics.instance(vals);
-  }
-
-  private short decodeKeyParam(short exp) {
+  private short decodeKeyParam() {
     short payloadLength = readMajorTypeWithPayloadLength(MAP_TYPE);
-    // allowed tags
-    short allowedTags = KMKeyParameters.cast(exp).getVals();
     short vals = KMArray.instance(payloadLength);
-    short length = KMArray.cast(allowedTags).length();
     short index = 0;
-    boolean tagFound;
-    short tagInd;
-    short tagType;
-    short tagClass;
-    short allowedType;
     short obj;
-    // For each tag in payload ...
+    // For each tag in payload decode the tag as per its tag type. Unknown tag types are rejected.
     while (index < payloadLength) {
-      tagFound = false;
-      tagInd = 0;
-      tagType = peekTagType();
-      // Check against the allowed tags ...
-      while (tagInd < length) {
-        tagClass = KMArray.cast(allowedTags).get(tagInd);
-        allowedType = KMTag.getTagType(tagClass);
-        // If it is part of allowed tags ...
-        if (tagType == allowedType) {
-          // then decodeByteBlob and add that to the array.
-          obj = decode(tagClass);
-          KMArray.cast(vals).add(index, obj);
-          tagFound = true;
-          break;
-        }
-        tagInd++;
-      }
-      if (!tagFound) {
-        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-      } else {
-        index++;
-      }
+      obj = decodeTag(peekTagType());
+      KMArray.cast(vals).add(index, obj);
+      index++;
     }
     return KMKeyParameters.instance(vals);
   }
 
-  private short decodeEnumArrayTag(short exp) {
-    readTagKey(KMEnumArrayTag.cast(exp).getTagType());
-    return KMEnumArrayTag.instance(this.tagKey, decode(KMEnumArrayTag.cast(exp).getValues()));
+  private short decodeEnumArrayTag() {
+    readTagKey(KMType.ENUM_ARRAY_TAG);
+    return KMEnumArrayTag.instance(this.tagKey, decodeByteBlob());
   }
 
-  private short decodeIntegerArrayTag(short exp) {
-    readTagKey(KMIntegerArrayTag.cast(exp).getTagType());
+  private short decodeIntegerArrayTag(short tagType) {
+    readTagKey(tagType);
     // the values are array of integers.
-    return KMIntegerArrayTag.instance(KMIntegerArrayTag.cast(exp).getTagType(),
-        this.tagKey, decode(KMIntegerArrayTag.cast(exp).getValues()));
+    short payloadLength = readMajorTypeWithPayloadLength(ARRAY_TYPE);
+    short arrPtr = KMArray.instance(payloadLength);
+    short index = 0;
+    short obj;
+    while (index < payloadLength) {
+      obj = decodeInteger();
+      KMArray.cast(arrPtr).add(index, obj);
+      index++;
+    }
+    return KMIntegerArrayTag.instance(tagType, this.tagKey, arrPtr);
   }
 
-  private short decodeIntegerTag(short exp) {
-    readTagKey(KMIntegerTag.cast(exp).getTagType());
+  private short decodeIntegerTag(short tagType) {
+    readTagKey(tagType);
     // the value is an integer
-    return KMIntegerTag.instance(KMIntegerTag.cast(exp).getTagType(),
-        this.tagKey, decode(KMIntegerTag.cast(exp).getValue()));
+    return KMIntegerTag.instance(tagType, this.tagKey, decodeInteger());
   }
 
-  private short decodeBytesTag(short exp) {
-    readTagKey(KMByteTag.cast(exp).getTagType());
+  private short decodeBytesTag() {
+    readTagKey(KMType.BYTES_TAG);
     // The value must be byte blob
-    return KMByteTag.instance(this.tagKey, decode(KMByteTag.cast(exp).getValue()));
+    return KMByteTag.instance(this.tagKey, decodeByteBlob());
   }
 
   private short decodeArray(short exp) {
@@ -248,8 +427,8 @@ public class KMDecoder {
     return arrPtr;
   }
 
-  private short decodeEnumTag(short exp) {
-    readTagKey(KMEnumTag.cast(exp).getTagType());
+  private short decodeEnumTag() {
+    readTagKey(KMType.ENUM_TAG);
     // Enum Tag value will always be integer with max 1 byte length.
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -270,8 +449,8 @@ public class KMDecoder {
     return KMEnumTag.instance(tagKey, enumVal);
   }
 
-  private short decodeBoolTag(short exp) {
-    readTagKey(KMBoolTag.cast(exp).getTagType());
+  private short decodeBoolTag() {
+    readTagKey(KMType.BOOL_TAG);
     // BOOL Tag is a leaf node and it must always have tiny encoded uint value = 1.
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -283,7 +462,7 @@ public class KMDecoder {
     return KMBoolTag.instance(tagKey);
   }
 
-  private short decodeEnum(short exp) {
+  private short decodeEnum(short enumType) {
     // Enum value will always be integer with max 1 byte length.
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -301,10 +480,10 @@ public class KMDecoder {
       enumVal = buffer[startOff];
       incrementStartOff((short) 1);
     }
-    return KMEnum.instance(KMEnum.cast(exp).getEnumType(), enumVal);
+    return KMEnum.instance(enumType, enumVal);
   }
 
-  private short decodeInteger(short exp) {
+  private short decodeInteger() {
     short inst;
     if ((buffer[startOff] & MAJOR_TYPE_MASK) != UINT_TYPE) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -332,10 +511,18 @@ public class KMDecoder {
     return inst;
   }
 
-  private short decodeByteBlob(short exp) {
+  private short decodeByteBlob() {
+    short headerOff = startOff;
     short payloadLength = readMajorTypeWithPayloadLength(BYTES_TYPE);
-    short inst = KMByteBlob.instance(buffer, startOff, payloadLength);
-    incrementStartOff(payloadLength);
+    short valueOff = startOff;
+    short inst;
+    if (inPlace && ((short) (valueOff - headerOff) == KMType.TLV_HEADER_SIZE)) {
+      incrementStartOff(payloadLength);
+      inst = KMByteBlob.reference(buffer, valueOff, payloadLength);
+    } else {
+      inst = KMByteBlob.instance(buffer, valueOff, payloadLength);
+      incrementStartOff(payloadLength);
+    }
     return inst;
   }
 
@@ -16,6 +16,7 @@
 
 package com.android.javacard.keymaster;
 
+import javacard.framework.APDU;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
@@ -39,9 +40,14 @@ public class KMEncoder {
   private static final byte UINT64_LENGTH = (byte) 0x1B;
   private static final short TINY_PAYLOAD = 0x17;
   private static final short SHORT_PAYLOAD = 0x100;
+  // Max number of bytes buffered in the apdu buffer before sending when encoding to the apdu.
+  private static final short APDU_CHUNK_SIZE = 0x100;
+  // The encoder writes to the buffer, or to the apdu when apdu is set. It only counts the
+  // encoded bytes when the buffer is null.
   private byte[] buffer;
   private short startOff;
   private short length;
+  private APDU apdu;
   private static short[] stack;
   private static byte stackPtr;
 
@@ -49,6 +55,7 @@ public class KMEncoder {
     buffer = null;
     startOff = 0;
     length = 0;
+    apdu = null;
     stack = JCSystem.makeTransientShortArray((short) 50, JCSystem.CLEAR_ON_RESET);
   }
 
@@ -70,18 +77,48 @@ public class KMEncoder {
     stackPtr = 0;
     this.buffer = buffer;
     this.startOff = startOff;
-    short len = (short) buffer.length;
-    if ((len < 0) || (len > KMKeymasterApplet.MAX_LENGTH)) {
-      this.length = KMKeymasterApplet.MAX_LENGTH;
-    } else {
+    // The encoded data is limited to MAX_LENGTH bytes from the start offset.
+    this.length = (short) (startOff + KMKeymasterApplet.MAX_LENGTH);
+    if (buffer.length < this.length) {
       this.length = (short) buffer.length;
     }
-    //this.length = (short)(startOff + length);
     push(object);
     encode();
     return (short) (this.startOff - startOff);
   }
 
+  // Returns the length of the encoded object without encoding it.
+  public short getEncodedLength(short object) {
+    stackPtr = 0;
+    this.buffer = null;
+    this.startOff = 0;
+    this.length = 0;
+    push(object);
+    encode();
+    return this.startOff;
+  }
+
+  // Encodes the object directly to the apdu, whose outgoing length must already be set to the
+  // encoded length. The encoded bytes are sent in chunks using the apdu buffer, except the large
+  // values which are sent directly from where they are.
+  public void encode(short object, APDU apdu) {
+    stackPtr = 0;
+    this.apdu = apdu;
+    this.buffer = apdu.getBuffer();
+    this.startOff = 0;
+    this.length = APDU_CHUNK_SIZE;
+    if (buffer.length < this.length) {
+      this.length = (short) buffer.length;
+    }
+    try {
+      push(object);
+      encode();
+      flush();
+    } finally {
+      this.apdu = null;
+    }
+  }
+
   // array{KMError.OK,Array{KMByteBlobs}}
   public void encodeCertChain(byte[] buffer, short offset, short length) {
     this.buffer = buffer;
@@ -92,8 +129,10 @@ public class KMEncoder {
     writeByte(UINT_TYPE); // Error.OK
   }
 
-  //array{KMError.OK,Array{KMByteBlobs}}
-  public short encodeCert(byte[] certBuffer, short bufferStart, short certStart, short certLength) {
+  //array{KMError.OK,Array{KMByteBlobs}} or, if the cert chain follows,
+  //array{KMError.OK,Array{KMByteBlobs},KMByteBlob}
+  public short encodeCert(byte[] certBuffer, short bufferStart, short certStart, short certLength,
+      boolean withCertChain) {
     this.buffer = certBuffer;
     this.startOff = certStart;
     this.length = (short) (certStart + 1);
@@ -112,7 +151,8 @@ public class KMEncoder {
     if (this.startOff < bufferStart) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
-    writeMajorTypeWithLength(ARRAY_TYPE, (short) 2); // Array of 2 elements
+    // Array of 3 elements if the cert chain follows else 2 elements
+    writeMajorTypeWithLength(ARRAY_TYPE, (short) (withCertChain ? 3 : 2));
     writeByte(UINT_TYPE); // Error.OK
     writeMajorTypeWithLength(ARRAY_TYPE, (short) 1); // Array of 1 element
     writeMajorTypeWithLength(BYTES_TYPE, certLength); // Cert Byte Blob of length
@@ -352,25 +392,44 @@ public class KMEncoder {
   }
 
   private void writeBytes(byte[] buf, short start, short len) {
-    Util.arrayCopyNonAtomic(buf, start, buffer, startOff, len);
+    if ((apdu != null) && ((short) (startOff + len) > length)) {
+      // Send the buffered bytes and then the value from where it is.
+      flush();
+      apdu.sendBytesLong(buf, start, len);
+      return;
+    }
+    if (buffer != null) {
+      Util.arrayCopyNonAtomic(buf, start, buffer, startOff, len);
+    }
     incrementStartOff(len);
   }
 
   private void writeShort(short val) {
-    buffer[startOff] = (byte) ((val >> 8) & 0xFF);
-    incrementStartOff((short) 1);
-    buffer[startOff] = (byte) ((val & 0xFF));
-    incrementStartOff((short) 1);
+    writeByte((byte) ((val >> 8) & 0xFF));
+    writeByte((byte) ((val & 0xFF)));
   }
 
   private void writeByte(byte val) {
-    buffer[startOff] = val;
+    if ((apdu != null) && (startOff == length)) {
+      flush();
+    }
+    if (buffer != null) {
+      buffer[startOff] = val;
+    }
     incrementStartOff((short) 1);
   }
 
+  // Sends the bytes buffered in the apdu buffer.
+  private void flush() {
+    if (startOff > 0) {
+      apdu.sendBytes((short) 0, startOff);
+      startOff = 0;
+    }
+  }
+
   private void incrementStartOff(short inc) {
     startOff += inc;
-    if (startOff >= this.length) {
+    if ((buffer != null) && (apdu == null) && (startOff >= this.length)) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
     }
   }
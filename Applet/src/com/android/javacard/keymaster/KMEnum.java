@@ -42,7 +42,8 @@ public class KMEnum extends KMType {
       ECCURVE
   };
 
-  private static Object[] enums = null;
+  // The bitmaps of allowed enum values, one for each of the keys in the types array.
+  private static byte[] enums = null;
 
   private KMEnum() {
   }
@@ -97,7 +98,7 @@ public class KMEnum extends KMType {
     // The allowed enum values to corresponding enum types in the types array.
     if (enums == null) {
       enums =
-          new Object[]{
+          createValueBitmaps(new Object[]{
               new byte[]{SOFTWARE, TRUSTED_ENVIRONMENT, STRONGBOX},
               new byte[]{X509, PKCS8, RAW},
               new byte[]{
@@ -113,7 +114,7 @@ public class KMEnum extends KMType {
               new byte[]{USER_AUTH_NONE, PASSWORD, FINGERPRINT, BOTH},
               new byte[]{ENCRYPT, DECRYPT, SIGN, VERIFY, WRAP_KEY, ATTEST_KEY},
               new byte[]{P_224, P_256, P_384, P_521}
-          };
+          });
     }
   }
 
@@ -136,25 +137,14 @@ public class KMEnum extends KMType {
   // isValidTag enumeration keys and values.
   private static boolean validateEnum(short key, byte value) {
     create();
-    byte[] vals;
-    short enumInd;
     // check if key exists
     short index = (short) types.length;
     while (--index >= 0) {
       if (types[index] == key) {
         // check if value given
         if (value != NO_VALUE) {
-          // check if the value exist
-          vals = (byte[]) enums[index];
-          enumInd = (short) vals.length;
-          while (--enumInd >= 0) {
-            if (vals[enumInd] == value) {
-              // return true if value exist
-              return true;
-            }
-          }
-          // return false if value does not exist
-          return false;
+          // return true if the value exists in the bitmap of the key
+          return isValueInBitmap(enums, index, value);
         }
         // return true if key exist and value not given
         return true;
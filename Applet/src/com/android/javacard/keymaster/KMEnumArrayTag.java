@@ -22,18 +22,21 @@ import javacard.framework.Util;
 
 /**
  * KMEnumArrayTag represents ENUM_REP tag type. It has following structure, struct{byte TAG_TYPE;
- * short length; struct{short ENUM_ARRAY_TAG; short tagKey; sequence of byte values}}
+ * short length; struct{short ENUM_ARRAY_TAG; short tagKey; short byteBlob; short valueMask}} where
+ * byteBlob is a pointer to the sequence of byte values. The value mask has the bit of each value
+ * set, where the bit of a value is its position in the allowed values of the tag key. It is
+ * computed once when the tag is created, so that membership checks are a single AND. The bit of a
+ * value is read from a table of the tag key indexed by the value.
  */
 public class KMEnumArrayTag extends KMTag {
 
   private static KMEnumArrayTag prototype;
   private static short instPtr;
 
-  // The allowed tag keys of enum array type.
-  private static short[] tags = {PURPOSE, BLOCK_MODE, DIGEST, PADDING};
-
-  // Tag Values.
-  private static Object[] enums = null;
+  // Value bit tables of PURPOSE, BLOCK_MODE, DIGEST and PADDING tag keys. Each table is indexed
+  // by the value and holds the position of the bit of the value plus one, or 0 if the value is not
+  // allowed.
+  private static Object[] valueBits = null;
 
   private KMEnumArrayTag() {
   }
@@ -49,16 +52,17 @@ public class KMEnumArrayTag extends KMTag {
   // pointer to an empty instance used as expression
   public static short exp() {
     short blobPtr = KMByteBlob.exp();
-    short ptr = instance(TAG_TYPE, (short) 6);
+    short ptr = instance(TAG_TYPE, (short) 8);
     Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE), ENUM_ARRAY_TAG);
     Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE + 2), INVALID_TAG);
     Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE + 4), blobPtr);
+    Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE + 6), (short) 0);
     return ptr;
   }
 
   public static short instance(short key) {
-    byte[] vals = getAllowedEnumValues(key);
-    if (vals == null) {
+    byte[] bits = getValueBits(key);
+    if (bits == null) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
     }
     short blobPtr = KMByteBlob.exp();
@@ -66,33 +70,27 @@ public class KMEnumArrayTag extends KMTag {
   }
 
   public static short instance(short key, short byteBlob) {
-    byte[] allowedVals = getAllowedEnumValues(key);
-    if (allowedVals == null) {
+    byte[] bits = getValueBits(key);
+    if (bits == null) {
       ISOException.throwIt(ISO7816.SW_DATA_INVALID);
     }
     KMByteBlob blob = KMByteBlob.cast(byteBlob);
     short byteIndex = 0;
-    short enumIndex;
-    boolean validValue;
+    short valueBit;
+    short valueMask = 0;
     while (byteIndex < blob.length()) {
-      enumIndex = 0;
-      validValue = false;
-      while (enumIndex < allowedVals.length) {
-        if (blob.get(byteIndex) == allowedVals[enumIndex]) {
-          validValue = true;
-          break;
-        }
-        enumIndex++;
-      }
-      if (!validValue) {
+      valueBit = getValueBit(bits, blob.get(byteIndex));
+      if (valueBit == 0) {
         ISOException.throwIt(ISO7816.SW_DATA_INVALID);
       }
+      valueMask |= valueBit;
       byteIndex++;
     }
-    short ptr = instance(TAG_TYPE, (short) 6);
+    short ptr = instance(TAG_TYPE, (short) 8);
     Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE), ENUM_ARRAY_TAG);
     Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE + 2), key);
     Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE + 4), byteBlob);
+    Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE + 6), valueMask);
     return ptr;
   }
 
@@ -118,15 +116,19 @@ public class KMEnumArrayTag extends KMTag {
     return Util.getShort(heap, (short) (instPtr + TLV_HEADER_SIZE + 4));
   }
 
+  public short getValueMask() {
+    return Util.getShort(heap, (short) (instPtr + TLV_HEADER_SIZE + 6));
+  }
+
   public short length() {
     short blobPtr = Util.getShort(heap, (short) (instPtr + TLV_HEADER_SIZE + 4));
     return KMByteBlob.cast(blobPtr).length();
   }
 
   public static void create() {
-    if (enums == null) {
+    if (valueBits == null) {
       // allowed tag values.
-      enums =
+      Object[] enums =
           new Object[]{
               new byte[]{ENCRYPT, DECRYPT, SIGN, VERIFY, WRAP_KEY, ATTEST_KEY},
               new byte[]{ECB, CBC, CTR, GCM},
@@ -135,18 +137,56 @@ public class KMEnumArrayTag extends KMTag {
                   PADDING_NONE, RSA_OAEP, RSA_PSS, RSA_PKCS1_1_5_ENCRYPT, RSA_PKCS1_1_5_SIGN, PKCS7
               }
           };
+      Object[] tables = new Object[(short) enums.length];
+      short index = 0;
+      while (index < (short) enums.length) {
+        tables[index] = makeValueBits((byte[]) enums[index]);
+        index++;
+      }
+      valueBits = tables;
     }
   }
 
-  private static byte[] getAllowedEnumValues(short key) {
-    create();
-    short index = (short) tags.length;
-    while (--index >= 0) {
-      if (tags[index] == key) {
-        return (byte[]) enums[index];
+  private static byte[] makeValueBits(byte[] allowedVals) {
+    short index = 0;
+    short maxVal = 0;
+    while (index < (short) allowedVals.length) {
+      if (allowedVals[index] > maxVal) {
+        maxVal = allowedVals[index];
       }
+      index++;
     }
-    return null;
+    byte[] bits = new byte[(short) (maxVal + 1)];
+    index = 0;
+    while (index < (short) allowedVals.length) {
+      bits[allowedVals[index]] = (byte) (index + 1);
+      index++;
+    }
+    return bits;
+  }
+
+  private static byte[] getValueBits(short key) {
+    create();
+    switch (key) {
+      case PURPOSE:
+        return (byte[]) valueBits[0];
+      case BLOCK_MODE:
+        return (byte[]) valueBits[1];
+      case DIGEST:
+        return (byte[]) valueBits[2];
+      case PADDING:
+        return (byte[]) valueBits[3];
+      default:
+        return null;
+    }
+  }
+
+  // Returns the bit of the value in the value mask, or 0 if the value is not allowed.
+  private static short getValueBit(byte[] bits, short value) {
+    if (value < 0 || value >= (short) bits.length || bits[value] == 0) {
+      return 0;
+    }
+    return (short) (1 << (short) (bits[value] - 1));
   }
 
   public static short getValues(short tagId, short params, byte[] buf, short start) {
@@ -165,13 +205,7 @@ public class KMEnumArrayTag extends KMTag {
   public static boolean contains(short tagId, short tagValue, short params) {
     short tag = KMKeyParameters.findTag(KMType.ENUM_ARRAY_TAG, tagId, params);
     if (tag != KMType.INVALID_VALUE) {
-      short index = 0;
-      while (index < KMEnumArrayTag.cast(tag).length()) {
-        if (tagValue == KMEnumArrayTag.cast(tag).get(index)) {
-          return true;
-        }
-        index++;
-      }
+      return KMEnumArrayTag.cast(tag).contains(tagValue);
     }
     return false;
   }
@@ -185,14 +219,8 @@ public class KMEnumArrayTag extends KMTag {
   }
 
   public boolean contains(short tagValue) {
-    short index = 0;
-    while (index < length()) {
-      if (get(index) == (byte) tagValue) {
-        return true;
-      }
-      index++;
-    }
-    return false;
+    short valueMask = getValueMask();
+    return (short) (valueMask & getValueBit(getValueBits(getKey()), tagValue)) != 0;
   }
 
   public boolean isValidDigests(byte alg) {
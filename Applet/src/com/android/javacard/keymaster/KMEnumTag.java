@@ -36,7 +36,8 @@ public class KMEnumTag extends KMTag {
       ALGORITHM, ECCURVE, BLOB_USAGE_REQ, USER_AUTH_TYPE, ORIGIN, HARDWARE_TYPE
   };
 
-  private static Object[] enums = null;
+  // The bitmaps of allowed enum values, one for each of the keys in the tags array.
+  private static byte[] enums = null;
 
   private KMEnumTag() {
   }
@@ -103,7 +104,7 @@ public class KMEnumTag extends KMTag {
     if (enums == null) {
       // enum tag values.
       enums =
-          new Object[]{
+          createValueBitmaps(new Object[]{
               new byte[]{RSA, DES, EC, AES, HMAC},
               new byte[]{P_224, P_256, P_384, P_521},
               new byte[]{STANDALONE, REQUIRES_FILE_SYSTEM},
@@ -111,32 +112,21 @@ public class KMEnumTag extends KMTag {
                   ANY},
               new byte[]{GENERATED, DERIVED, IMPORTED, UNKNOWN, SECURELY_IMPORTED},
               new byte[]{SOFTWARE, TRUSTED_ENVIRONMENT, STRONGBOX}
-          };
+          });
     }
   }
 
   // isValidTag enumeration keys and values.
   private static boolean validateEnum(short key, byte value) {
     create();
-    byte[] vals;
-    short enumInd;
     // check if key exists
     short index = (short) tags.length;
     while (--index >= 0) {
       if (tags[index] == key) {
         // check if value given
         if (value != NO_VALUE) {
-          // check if the value exist
-          vals = (byte[]) enums[index];
-          enumInd = (short) vals.length;
-          while (--enumInd >= 0) {
-            if (vals[enumInd] == value) {
-              // return true if value exist
-              return true;
-            }
-          }
-          // return false if value does not exist
-          return false;
+          // return true if the value exists in the bitmap of the key
+          return isValueInBitmap(enums, index, value);
         }
         // return true if key exist and value not given
         return true;
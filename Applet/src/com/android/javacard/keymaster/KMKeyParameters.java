@@ -22,11 +22,61 @@ import javacard.framework.Util;
 
 /**
  * KMKeyParameters represents KeyParameters structure from android keymaster hal specifications. It
- * corresponds to CBOR map type. struct{byte KEY_PARAM_TYPE; short length=2; short arrayPtr} where
- * arrayPtr is a pointer to array with any KMTag subtype instances.
+ * corresponds to CBOR map type. struct{byte KEY_PARAM_TYPE; short length; short arrayPtr; index}
+ * where arrayPtr is a pointer to array with any KMTag subtype instances. The index is an array of
+ * struct{short tagKey; short tagPtr} sorted by the tag key, which is used to find the tags with a
+ * binary search. The key parameters created by exp have no index.
  */
 public class KMKeyParameters extends KMType {
 
+  private static final byte INDEX_OFFSET = TLV_HEADER_SIZE + 2;
+  private static final byte INDEX_ENTRY_SIZE = 4;
+  // Tag attributes.
+  private static final short TAG_HW_ENFORCED = 0x01;
+  private static final short TAG_SW_ENFORCED = 0x02;
+  private static final short TAG_UNSUPPORTED = 0x04;
+  // Tags which must not be stored in the key characteristics.
+  private static final short TAG_INVALID = 0x08;
+  // Lookup table of struct{short tag; short attributes}, where tag is tag type | tag key. The
+  // entries are sorted by the tag, as a signed short, so that the attributes of a tag are found
+  // with a binary search.
+  private static final short[] TAG_TABLE = {
+      (short) (KMType.BYTES_TAG | KMType.UNIQUE_ID), TAG_INVALID,
+      (short) (KMType.BYTES_TAG | KMType.ASSOCIATED_DATA), TAG_INVALID,
+      (short) (KMType.BYTES_TAG | KMType.NONCE), TAG_INVALID,
+      (short) (KMType.ULONG_ARRAY_TAG | KMType.USER_SECURE_ID), TAG_HW_ENFORCED,
+      (short) (KMType.ENUM_TAG | KMType.ALGORITHM), TAG_HW_ENFORCED,
+      (short) (KMType.ENUM_TAG | KMType.ECCURVE), TAG_HW_ENFORCED,
+      (short) (KMType.ENUM_TAG | KMType.BLOB_USAGE_REQ), TAG_HW_ENFORCED,
+      (short) (KMType.ENUM_TAG | KMType.USER_AUTH_TYPE), TAG_HW_ENFORCED,
+      (short) (KMType.ENUM_TAG | KMType.ORIGIN), TAG_HW_ENFORCED,
+      (short) (KMType.ENUM_ARRAY_TAG | KMType.PURPOSE), TAG_HW_ENFORCED,
+      (short) (KMType.ENUM_ARRAY_TAG | KMType.BLOCK_MODE), TAG_HW_ENFORCED,
+      (short) (KMType.ENUM_ARRAY_TAG | KMType.DIGEST), TAG_HW_ENFORCED,
+      (short) (KMType.ENUM_ARRAY_TAG | KMType.PADDING), TAG_HW_ENFORCED,
+      (short) (KMType.UINT_TAG | KMType.KEYSIZE), TAG_HW_ENFORCED,
+      (short) (KMType.UINT_TAG | KMType.MIN_MAC_LENGTH), TAG_HW_ENFORCED,
+      (short) (KMType.UINT_TAG | KMType.MIN_SEC_BETWEEN_OPS), TAG_UNSUPPORTED,
+      (short) (KMType.UINT_TAG | KMType.MAX_USES_PER_BOOT), TAG_UNSUPPORTED,
+      (short) (KMType.UINT_TAG | KMType.USERID), TAG_SW_ENFORCED,
+      (short) (KMType.UINT_TAG | KMType.AUTH_TIMEOUT), TAG_HW_ENFORCED,
+      (short) (KMType.UINT_TAG | KMType.MAC_LENGTH), TAG_INVALID,
+      (short) (KMType.ULONG_TAG | KMType.RSA_PUBLIC_EXPONENT), TAG_HW_ENFORCED,
+      (short) (KMType.DATE_TAG | KMType.ACTIVE_DATETIME), TAG_SW_ENFORCED,
+      (short) (KMType.DATE_TAG | KMType.ORIGINATION_EXPIRE_DATETIME), TAG_SW_ENFORCED,
+      (short) (KMType.DATE_TAG | KMType.USAGE_EXPIRE_DATETIME), TAG_SW_ENFORCED,
+      (short) (KMType.DATE_TAG | KMType.CREATION_DATETIME), TAG_SW_ENFORCED,
+      (short) (KMType.BOOL_TAG | KMType.CALLER_NONCE), TAG_HW_ENFORCED,
+      (short) (KMType.BOOL_TAG | KMType.INCLUDE_UNIQUE_ID), TAG_HW_ENFORCED,
+      (short) (KMType.BOOL_TAG | KMType.BOOTLOADER_ONLY), TAG_INVALID,
+      (short) (KMType.BOOL_TAG | KMType.ROLLBACK_RESISTANCE), TAG_HW_ENFORCED,
+      (short) (KMType.BOOL_TAG | KMType.NO_AUTH_REQUIRED), TAG_HW_ENFORCED,
+      (short) (KMType.BOOL_TAG | KMType.ALLOW_WHILE_ON_BODY), TAG_UNSUPPORTED,
+      (short) (KMType.BOOL_TAG | KMType.TRUSTED_USER_PRESENCE_REQUIRED), TAG_UNSUPPORTED,
+      (short) (KMType.BOOL_TAG | KMType.TRUSTED_CONFIRMATION_REQUIRED), TAG_UNSUPPORTED,
+      (short) (KMType.BOOL_TAG | KMType.UNLOCKED_DEVICE_REQUIRED), TAG_HW_ENFORCED,
+      (short) (KMType.BOOL_TAG | KMType.RESET_SINCE_ID_ROTATION), TAG_HW_ENFORCED
+  };
   private static KMKeyParameters prototype;
   private static short instPtr;
 
@@ -53,12 +103,35 @@ public class KMKeyParameters extends KMType {
     arr.add((short) 6, KMEnumArrayTag.exp());
     arr.add((short) 7, KMByteTag.exp());
     arr.add((short) 8, KMBoolTag.exp());
-    return instance(arrPtr);
+    short ptr = KMType.instance(KEY_PARAM_TYPE, (short) 2);
+    Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE), arrPtr);
+    return ptr;
   }
 
   public static short instance(short vals) {
-    short ptr = KMType.instance(KEY_PARAM_TYPE, (short) 2);
+    short length = KMArray.cast(vals).length();
+    short ptr = KMType.instance(KEY_PARAM_TYPE, (short) (2 + (short) (length * INDEX_ENTRY_SIZE)));
     Util.setShort(heap, (short) (ptr + TLV_HEADER_SIZE), vals);
+    // Insertion sort, which keeps the tags with the same key in the order of the array.
+    short start = (short) (ptr + INDEX_OFFSET);
+    short index = 0;
+    short entry;
+    short tagPtr;
+    short tagKey;
+    while (index < length) {
+      tagPtr = KMArray.cast(vals).get(index);
+      tagKey = KMTag.getKey(tagPtr);
+      entry = (short) (start + (short) (index * INDEX_ENTRY_SIZE));
+      while (entry > start
+          && Util.getShort(heap, (short) (entry - INDEX_ENTRY_SIZE)) > tagKey) {
+        Util.arrayCopyNonAtomic(heap, (short) (entry - INDEX_ENTRY_SIZE), heap, entry,
+            INDEX_ENTRY_SIZE);
+        entry -= INDEX_ENTRY_SIZE;
+      }
+      Util.setShort(heap, entry, tagKey);
+      Util.setShort(heap, (short) (entry + 2), tagPtr);
+      index++;
+    }
     return ptr;
   }
 
@@ -88,6 +161,7 @@ public class KMKeyParameters extends KMType {
   }
 
   public short findTag(short tagType, short tagKey) {
+    short ptr = instPtr;
     KMArray vals = KMArray.cast(getVals());
     short index = 0;
     short length = vals.length();
@@ -95,6 +169,10 @@ public class KMKeyParameters extends KMType {
     short type;
     short ret = KMType.INVALID_VALUE;
     short obj;
+    if (Util.getShort(heap, (short) (ptr + 1))
+        == (short) (2 + (short) (length * INDEX_ENTRY_SIZE))) {
+      return findIndexedTag(ptr, length, tagType, tagKey);
+    }
     while (index < length) {
       obj = vals.get(index);
       key = KMTag.getKey(obj);
@@ -108,33 +186,65 @@ public class KMKeyParameters extends KMType {
     return ret;
   }
 
+  // Binary search for the first entry of the tag key, followed by a scan of the entries with the
+  // same key for the tag type.
+  private static short findIndexedTag(short ptr, short length, short tagType, short tagKey) {
+    short start = (short) (ptr + INDEX_OFFSET);
+    short low = 0;
+    short high = length;
+    short mid;
+    while (low < high) {
+      mid = (short) ((short) (low + high) >> 1);
+      if (Util.getShort(heap, (short) (start + (short) (mid * INDEX_ENTRY_SIZE))) < tagKey) {
+        low = (short) (mid + 1);
+      } else {
+        high = mid;
+      }
+    }
+    short entry = (short) (start + (short) (low * INDEX_ENTRY_SIZE));
+    while (low < length && Util.getShort(heap, entry) == tagKey) {
+      if (KMTag.getTagType(Util.getShort(heap, (short) (entry + 2))) == tagType) {
+        return Util.getShort(heap, (short) (entry + 2));
+      }
+      entry += INDEX_ENTRY_SIZE;
+      low++;
+    }
+    return KMType.INVALID_VALUE;
+  }
+
+  // Binary search of the tag in the tag table, which returns the attributes of the tag or 0 if the
+  // tag is not in the table.
+  private static short getTagAttributes(short tagType, short tagKey) {
+    short tag = (short) (tagType | tagKey);
+    short low = 0;
+    short high = (short) (TAG_TABLE.length / 2);
+    short mid;
+    short entry;
+    while (low < high) {
+      mid = (short) ((short) (low + high) >> 1);
+      entry = TAG_TABLE[(short) (mid * 2)];
+      if (entry == tag) {
+        return TAG_TABLE[(short) ((short) (mid * 2) + 1)];
+      } else if (entry < tag) {
+        low = (short) (mid + 1);
+      } else {
+        high = mid;
+      }
+    }
+    return 0;
+  }
+
+  private static short getTagAttributes(short tagPtr) {
+    return getTagAttributes(KMTag.getTagType(tagPtr), KMTag.getKey(tagPtr));
+  }
+
   public static boolean hasUnsupportedTags(short keyParamsPtr) {
-    final short[] tagArr = {
-        // Unsupported tags.
-        KMType.BOOL_TAG, KMType.TRUSTED_CONFIRMATION_REQUIRED,
-        KMType.BOOL_TAG, KMType.TRUSTED_USER_PRESENCE_REQUIRED,
-        KMType.BOOL_TAG, KMType.ALLOW_WHILE_ON_BODY,
-        KMType.UINT_TAG, KMType.MIN_SEC_BETWEEN_OPS,
-        KMType.UINT_TAG, KMType.MAX_USES_PER_BOOT
-    };
-    byte index = 0;
-    short tagInd;
-    short tagPtr;
-    short tagKey;
-    short tagType;
+    short index = 0;
     short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
     short len = KMArray.cast(arrPtr).length();
     while (index < len) {
-      tagInd = 0;
-      tagPtr = KMArray.cast(arrPtr).get(index);
-      tagKey = KMTag.getKey(tagPtr);
-      tagType = KMTag.getTagType(tagPtr);
-      while (tagInd < (short) tagArr.length) {
-        if ((tagArr[tagInd] == tagType)
-            && (tagArr[(short) (tagInd + 1)] == tagKey)) {
-          return true;
-        }
-        tagInd += 2;
+      if ((getTagAttributes(KMArray.cast(arrPtr).get(index)) & TAG_UNSUPPORTED) != 0) {
+        return true;
       }
       index++;
     }
@@ -145,53 +255,21 @@ public class KMKeyParameters extends KMType {
   public static short makeHwEnforced(short keyParamsPtr, byte origin,
       short osVersionObjPtr, short osPatchObjPtr, short vendorPatchObjPtr,
       short bootPatchObjPtr, byte[] scratchPad) {
-    final short[] hwEnforcedTagArr = {
-        // HW Enforced
-        KMType.ENUM_TAG, KMType.ORIGIN,
-        KMType.ENUM_ARRAY_TAG, KMType.PURPOSE,
-        KMType.ENUM_TAG, KMType.ALGORITHM,
-        KMType.UINT_TAG, KMType.KEYSIZE,
-        KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT,
-        KMType.ENUM_TAG, KMType.BLOB_USAGE_REQ,
-        KMType.ENUM_ARRAY_TAG, KMType.DIGEST,
-        KMType.ENUM_ARRAY_TAG, KMType.PADDING,
-        KMType.ENUM_ARRAY_TAG, KMType.BLOCK_MODE,
-        KMType.ULONG_ARRAY_TAG, KMType.USER_SECURE_ID,
-        KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED,
-        KMType.UINT_TAG, KMType.AUTH_TIMEOUT,
-        KMType.BOOL_TAG, KMType.CALLER_NONCE,
-        KMType.UINT_TAG, KMType.MIN_MAC_LENGTH,
-        KMType.ENUM_TAG, KMType.ECCURVE,
-        KMType.BOOL_TAG, KMType.INCLUDE_UNIQUE_ID,
-        KMType.BOOL_TAG, KMType.ROLLBACK_RESISTANCE,
-        KMType.ENUM_TAG, KMType.USER_AUTH_TYPE,
-        KMType.BOOL_TAG, KMType.UNLOCKED_DEVICE_REQUIRED,
-        KMType.BOOL_TAG, KMType.RESET_SINCE_ID_ROTATION
-    };
-    byte index = 0;
-    short tagInd;
+    short index = 0;
     short arrInd = 0;
     short tagPtr;
-    short tagKey;
-    short tagType;
+    short attributes;
     short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
     short len = KMArray.cast(arrPtr).length();
     while (index < len) {
-      tagInd = 0;
       tagPtr = KMArray.cast(arrPtr).get(index);
-      tagKey = KMTag.getKey(tagPtr);
-      tagType = KMTag.getTagType(tagPtr);
-      if (!isValidTag(tagType, tagKey)) {
+      attributes = getTagAttributes(tagPtr);
+      if (KMTag.getKey(tagPtr) == KMType.INVALID_TAG || (attributes & TAG_INVALID) != 0) {
         KMException.throwIt(KMError.INVALID_KEY_BLOB);
       }
-      while (tagInd < (short) hwEnforcedTagArr.length) {
-        if ((hwEnforcedTagArr[tagInd] == tagType)
-            && (hwEnforcedTagArr[(short) (tagInd + 1)] == tagKey)) {
-          Util.setShort(scratchPad, arrInd, tagPtr);
-          arrInd += 2;
-          break;
-        }
-        tagInd += 2;
+      if ((attributes & TAG_HW_ENFORCED) != 0) {
+        Util.setShort(scratchPad, arrInd, tagPtr);
+        arrInd += 2;
       }
       index++;
     }
@@ -217,37 +295,21 @@ public class KMKeyParameters extends KMType {
 
   // ALL_USERS, EXPORTABLE missing from types.hal
   public static short makeSwEnforced(short keyParamsPtr, byte[] scratchPad) {
-    final short[] swEnforcedTagsArr = {
-        KMType.DATE_TAG, KMType.ACTIVE_DATETIME,
-        KMType.DATE_TAG, KMType.ORIGINATION_EXPIRE_DATETIME,
-        KMType.DATE_TAG, KMType.USAGE_EXPIRE_DATETIME,
-        KMType.UINT_TAG, KMType.USERID,
-        KMType.DATE_TAG, KMType.CREATION_DATETIME
-    };
-    byte index = 0;
-    short tagInd;
+    short index = 0;
     short arrInd = 0;
     short tagPtr;
-    short tagKey;
-    short tagType;
+    short attributes;
     short arrPtr = KMKeyParameters.cast(keyParamsPtr).getVals();
     short len = KMArray.cast(arrPtr).length();
     while (index < len) {
-      tagInd = 0;
       tagPtr = KMArray.cast(arrPtr).get(index);
-      tagKey = KMTag.getKey(tagPtr);
-      tagType = KMTag.getTagType(tagPtr);
-      if (!isValidTag(tagType, tagKey)) {
+      attributes = getTagAttributes(tagPtr);
+      if (KMTag.getKey(tagPtr) == KMType.INVALID_TAG || (attributes & TAG_INVALID) != 0) {
         KMException.throwIt(KMError.INVALID_KEY_BLOB);
       }
-      while (tagInd < (short) swEnforcedTagsArr.length) {
-        if ((swEnforcedTagsArr[tagInd] == tagType)
-            && (swEnforcedTagsArr[(short) (tagInd + 1)] == tagKey)) {
-          Util.setShort(scratchPad, arrInd, tagPtr);
-          arrInd += 2;
-          break;
-        }
-        tagInd += 2;
+      if ((attributes & TAG_SW_ENFORCED) != 0) {
+        Util.setShort(scratchPad, arrInd, tagPtr);
+        arrInd += 2;
       }
       index++;
     }
@@ -288,24 +350,10 @@ public class KMKeyParameters extends KMType {
   }
 
   public static boolean isValidTag(short tagType, short tagKey) {
-    short[] invalidTagsArr = {
-        KMType.BYTES_TAG, KMType.NONCE,
-        KMType.BYTES_TAG, KMType.ASSOCIATED_DATA,
-        KMType.BYTES_TAG, KMType.UNIQUE_ID,
-        KMType.UINT_TAG, KMType.MAC_LENGTH,
-        KMType.BOOL_TAG, KMType.BOOTLOADER_ONLY
-    };
-    short index = 0;
     if (tagKey == KMType.INVALID_TAG) {
       return false;
     }
-    while (index < invalidTagsArr.length) {
-      if ((tagType == invalidTagsArr[index]) && (tagKey == invalidTagsArr[(short) (index + 1)])) {
-        return false;
-      }
-      index += 2;
-    }
-    return true;
+    return (getTagAttributes(tagType, tagKey) & TAG_INVALID) == 0;
   }
 
   public static short createKeyParameters(byte[] ptrArr, short len) {
@@ -110,6 +110,11 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private static final byte INS_DEVICE_LOCKED_CMD = INS_END_KM_PROVISION_CMD + 20;//0x34
   private static final byte INS_EARLY_BOOT_ENDED_CMD = INS_END_KM_PROVISION_CMD + 21; //0x35
   private static final byte INS_GET_CERT_CHAIN_CMD = INS_END_KM_PROVISION_CMD + 22; //0x36
+  private static final byte INS_ONE_SHOT_OPERATION_CMD = INS_END_KM_PROVISION_CMD + 23; //0x37
+  private static final byte INS_STREAM_UPDATE_OPERATION_CMD = INS_END_KM_PROVISION_CMD + 24; //0x38
+  private static final byte INS_REFILL_KEY_PAIR_POOL_CMD = INS_END_KM_PROVISION_CMD + 25; //0x39
+  private static final byte INS_ATTEST_KEY_WITH_CERT_CHAIN_CMD =
+      INS_END_KM_PROVISION_CMD + 26; //0x3A
 
   private static final byte INS_END_KM_CMD = 0x7F;
 
@@ -156,6 +161,17 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte HW_TOKEN = 26;
   public static final byte VERIFICATION_TOKEN = 27;
   protected static final byte SIGNATURE = 28;
+  public static final byte KEY_BLOB_DIGEST = 29;
+
+  // Install parameters i.e. index of the parameter in the applet data
+  protected static final short INSTALL_PARAM_MAX_OPERATIONS = 0;
+  protected static final short INSTALL_PARAM_FLAGS = 1;
+  // Install flags
+  // Keep the operation state in persistent memory instead of RAM.
+  protected static final byte INSTALL_FLAG_PERSISTENT_OPERATIONS = 0x01;
+  // Scrub the heap when it is reused or when the applet is deselected, instead of at the end of
+  // every command.
+  protected static final byte INSTALL_FLAG_DEFERRED_HEAP_SCRUB = 0x02;
 
   // AddRngEntropy
   protected static final short MAX_SEED_SIZE = 2048;
@@ -165,11 +181,113 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   public static final byte KEY_BLOB_AUTH_TAG = 2;
   public static final byte KEY_BLOB_KEYCHAR = 3;
   public static final byte KEY_BLOB_PUB_KEY = 4;
+  // Size of the encoded key blob, which holds up to the 640 bytes of an RSA CRT secret.
+  private static final short KEY_BLOB_MAX_SIZE = 1536;
+  // Size of the RSA key blob secret holding the CRT components P, Q, DP1, DQ1 and PQ of a 2048
+  // bit key, each 128 bytes long. Legacy key blobs and imported keys hold the 256 bytes private
+  // exponent instead.
+  private static final short RSA_CRT_SECRET_SIZE = 640;
   // AES GCM constants
   private static final byte AES_GCM_AUTH_TAG_LENGTH = 16;
   private static final byte AES_GCM_NONCE_LENGTH = 12;
+  private static final byte KEY_BLOB_DIGEST_LENGTH = 32;
   // ComputeHMAC constants
   private static final short HMAC_SHARED_PARAM_MAX_SIZE = 64;
+  // Decoder schemas of the command arguments - see KMDecoder for the format.
+  private static final byte[] BLOB_ARGS = {KMType.ARRAY_TYPE, 1, KMType.BYTE_BLOB_TYPE};
+  private static final byte[] TWO_BLOB_ARGS = {
+      KMType.ARRAY_TYPE, 2, KMType.BYTE_BLOB_TYPE, KMType.BYTE_BLOB_TYPE};
+  private static final byte[] THREE_BLOB_ARGS = {
+      KMType.ARRAY_TYPE, 3, KMType.BYTE_BLOB_TYPE, KMType.BYTE_BLOB_TYPE, KMType.BYTE_BLOB_TYPE};
+  private static final byte[] KEY_PARAM_ARGS = {KMType.ARRAY_TYPE, 1, KMType.KEY_PARAM_TYPE};
+  private static final byte[] BLOB_KEY_PARAM_ARGS = {
+      KMType.ARRAY_TYPE, 2, KMType.BYTE_BLOB_TYPE, KMType.KEY_PARAM_TYPE};
+  private static final byte[] IMPORT_KEY_ARGS = {
+      KMType.ARRAY_TYPE, 3,
+      KMType.KEY_PARAM_TYPE,
+      KMType.ENUM_TYPE, (byte) (KMType.KEY_FORMAT >> 8), (byte) KMType.KEY_FORMAT,
+      KMType.BYTE_BLOB_TYPE};
+  private static final byte[] DEVICE_LOCKED_ARGS = {
+      KMType.ARRAY_TYPE, 2, KMType.INTEGER_TYPE, KMType.VERIFICATION_TOKEN_TYPE};
+  private static final byte[] COMPUTE_SHARED_HMAC_ARGS = {
+      KMType.ARRAY_TYPE, 1,
+      KMType.ARRAY_TYPE, KMDecoder.SCHEMA_VECTOR, KMType.HMAC_SHARING_PARAM_TYPE};
+  private static final byte[] IMPORT_WRAPPED_KEY_ARGS = {
+      KMType.ARRAY_TYPE, 12,
+      KMType.KEY_PARAM_TYPE, // Key Params of wrapped key
+      KMType.ENUM_TYPE, (byte) (KMType.KEY_FORMAT >> 8), (byte) KMType.KEY_FORMAT, // Key Format
+      KMType.BYTE_BLOB_TYPE, // Wrapped Import Key Blob
+      KMType.BYTE_BLOB_TYPE, // Auth Tag
+      KMType.BYTE_BLOB_TYPE, // IV - Nonce
+      KMType.BYTE_BLOB_TYPE, // Encrypted Transport Key
+      KMType.BYTE_BLOB_TYPE, // Wrapping Key KeyBlob
+      KMType.BYTE_BLOB_TYPE, // Masking Key
+      KMType.KEY_PARAM_TYPE, // Un-wrapping Params
+      KMType.BYTE_BLOB_TYPE, // Wrapped Key ASSOCIATED AUTH DATA
+      KMType.INTEGER_TYPE, // Password Sid
+      KMType.INTEGER_TYPE // Biometric Sid
+  };
+  private static final byte[] OPERATION_HANDLE_ARGS = {KMType.ARRAY_TYPE, 1, KMType.INTEGER_TYPE};
+  private static final byte[] BEGIN_OPERATION_ARGS = {
+      KMType.ARRAY_TYPE, 4,
+      KMType.ENUM_TYPE, (byte) (KMType.PURPOSE >> 8), (byte) KMType.PURPOSE,
+      KMType.BYTE_BLOB_TYPE,
+      KMType.KEY_PARAM_TYPE,
+      KMType.HW_AUTH_TOKEN_TYPE};
+  private static final byte[] UPDATE_OPERATION_ARGS = {
+      KMType.ARRAY_TYPE, 5,
+      KMType.INTEGER_TYPE,
+      KMType.KEY_PARAM_TYPE,
+      KMType.BYTE_BLOB_TYPE,
+      KMType.HW_AUTH_TOKEN_TYPE,
+      KMType.VERIFICATION_TOKEN_TYPE};
+  private static final byte[] FINISH_OPERATION_ARGS = {
+      KMType.ARRAY_TYPE, 6,
+      KMType.INTEGER_TYPE,
+      KMType.KEY_PARAM_TYPE,
+      KMType.BYTE_BLOB_TYPE,
+      KMType.BYTE_BLOB_TYPE,
+      KMType.HW_AUTH_TOKEN_TYPE,
+      KMType.VERIFICATION_TOKEN_TYPE};
+  private static final byte[] ONE_SHOT_OPERATION_ARGS = {
+      KMType.ARRAY_TYPE, 7,
+      KMType.ENUM_TYPE, (byte) (KMType.PURPOSE >> 8), (byte) KMType.PURPOSE,
+      KMType.BYTE_BLOB_TYPE,
+      KMType.KEY_PARAM_TYPE,
+      KMType.BYTE_BLOB_TYPE,
+      KMType.BYTE_BLOB_TYPE,
+      KMType.HW_AUTH_TOKEN_TYPE,
+      KMType.VERIFICATION_TOKEN_TYPE};
+  // Input data is the last argument so that it can be streamed.
+  private static final byte[] STREAM_UPDATE_OPERATION_ARGS = {
+      KMType.ARRAY_TYPE, 5,
+      KMType.INTEGER_TYPE,
+      KMType.KEY_PARAM_TYPE,
+      KMType.HW_AUTH_TOKEN_TYPE,
+      KMType.VERIFICATION_TOKEN_TYPE,
+      KMType.BYTE_BLOB_TYPE};
+  // Max length of the stream update arguments preceding the input data.
+  private static final short STREAM_UPDATE_ARGS_SIZE = 512;
+  private static final byte[] SET_BOOT_PARAMS_ARGS = {
+      KMType.ARRAY_TYPE, 8,
+      KMType.INTEGER_TYPE, // OS Version
+      KMType.INTEGER_TYPE, // OS Patch level
+      KMType.INTEGER_TYPE, // Vendor Patch level
+      KMType.INTEGER_TYPE, // Boot Patch level
+      KMType.BYTE_BLOB_TYPE, // Verified Boot Key
+      KMType.BYTE_BLOB_TYPE, // Verified Boot Hash
+      KMType.ENUM_TYPE,
+      (byte) (KMType.VERIFIED_BOOT_STATE >> 8), (byte) KMType.VERIFIED_BOOT_STATE,
+      KMType.ENUM_TYPE, (byte) (KMType.DEVICE_LOCKED >> 8), (byte) KMType.DEVICE_LOCKED};
+  // Key blob may have fewer elements than the schema i.e. public key is optional.
+  private static final byte[] KEY_BLOB_ARGS = {
+      KMType.ARRAY_TYPE, 5,
+      KMType.BYTE_BLOB_TYPE, // Secret
+      KMType.BYTE_BLOB_TYPE, // Nonce
+      KMType.BYTE_BLOB_TYPE, // Auth Tag
+      KMType.KEY_CHAR_TYPE, // Key Characteristics
+      KMType.BYTE_BLOB_TYPE // Public Key
+  };
 
   // Keymaster Applet attributes
   protected static byte keymasterState = ILLEGAL_STATE;
@@ -183,15 +301,27 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   protected static short[] tmpVariables;
   protected static short[] data;
   protected byte provisionStatus = NOT_PROVISIONED;
-  protected static final short MAX_CERT_SIZE = 2048;
 
   /**
    * Registers this applet.
    */
   protected KMKeymasterApplet(KMSEProvider seImpl) {
+    this(seImpl, KMRepository.DEFAULT_MAX_OPS, (byte) 0);
+  }
+
+  /**
+   * Creates the applet with the given number of operation slots.
+   *
+   * @param seImpl is the SE provider instance.
+   * @param maxOperations is the number of operations which can be active at a time.
+   * @param flags is the INSTALL_FLAG_* bit mask from the install parameters.
+   */
+  protected KMKeymasterApplet(KMSEProvider seImpl, short maxOperations, byte flags) {
     seProvider = seImpl;
     boolean isUpgrading = seImpl.isUpgrading();
-    repository = new KMRepository(isUpgrading);
+    repository = new KMRepository(isUpgrading, maxOperations,
+        (flags & INSTALL_FLAG_PERSISTENT_OPERATIONS) != 0,
+        (flags & INSTALL_FLAG_DEFERRED_HEAP_SCRUB) != 0);
     byte[] buf = JCSystem.makeTransientByteArray((short) 32, JCSystem.CLEAR_ON_DESELECT);
     data = JCSystem.makeTransientShortArray((short) DATA_ARRAY_SIZE, JCSystem.CLEAR_ON_RESET);
     tmpVariables =
@@ -405,7 +535,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             processExportKeyCmd(apdu);
             break;
           case INS_ATTEST_KEY_CMD:
-            processAttestKeyCmd(apdu);
+            processAttestKeyCmd(apdu, false);
+            break;
+          case INS_ATTEST_KEY_WITH_CERT_CHAIN_CMD:
+            processAttestKeyCmd(apdu, true);
             break;
           case INS_UPGRADE_KEY_CMD:
             processUpgradeKeyCmd(apdu);
@@ -449,6 +582,12 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
           case INS_ABORT_OPERATION_CMD:
             processAbortOperationCmd(apdu);
             break;
+          case INS_ONE_SHOT_OPERATION_CMD:
+            processOneShotOperationCmd(apdu);
+            break;
+          case INS_STREAM_UPDATE_OPERATION_CMD:
+            processStreamUpdateOperationCmd(apdu);
+            break;
           case INS_DEVICE_LOCKED_CMD:
             processDeviceLockedCmd(apdu);
             break;
@@ -458,6 +597,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
           case INS_GET_CERT_CHAIN_CMD:
             processGetCertChainCmd(apdu);
             break;
+          case INS_REFILL_KEY_PAIR_POOL_CMD:
+            processRefillKeyPairPoolCmd(apdu);
+            break;
           default:
             ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
         }
@@ -483,10 +625,45 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
   }
 
+  // The operation handle is a random generation tag followed by the index of a free operation
+  // slot in the last two bytes, so it is unique among the active operations by construction.
   private void generateUniqueOperationHandle(byte[] buf, short offset, short len) {
-    do {
-      seProvider.newRandomNumber(buf, offset, len);
-    } while (null != repository.findOperation(buf, offset, len));
+    short slot = repository.getFreeOperationSlot();
+    if (slot == KMType.INVALID_VALUE) {
+      KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
+    }
+    seProvider.newRandomNumber(buf, offset, (short) (len - 2));
+    Util.setShort(buf, (short) (offset + len - 2), slot);
+  }
+
+  /**
+   * Reads a byte from the applet specific install parameters. The install parameters are
+   * formatted as AID, control info and applet data, each of them preceded by a length byte.
+   * Applet data is a sequence of bytes indexed by INSTALL_PARAM_* constants.
+   *
+   * @param bArray the array containing installation parameters
+   * @param bOffset the starting offset in bArray
+   * @param bLength the length in bytes of the parameter data in bArray
+   * @param index is the index of the parameter in the applet data.
+   * @param defaultVal is returned if the parameter is not present.
+   * @return value of the parameter.
+   */
+  protected static short readInstallParam(byte[] bArray, short bOffset, byte bLength,
+      short index, short defaultVal) {
+    if (bLength <= 0) {
+      return defaultVal;
+    }
+    short end = (short) (bOffset + bLength);
+    // Skip AID and control info.
+    short offset = (short) (bOffset + bArray[bOffset] + 1);
+    if (offset >= end) {
+      return defaultVal;
+    }
+    offset += (short) (bArray[offset] + 1);
+    if ((short) (offset + index + 1) >= end || bArray[offset] <= index) {
+      return defaultVal;
+    }
+    return (short) (bArray[(short) (offset + index + 1)] & 0xFF);
   }
 
   private boolean isProvisioningComplete() {
@@ -517,12 +694,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private void processDeviceLockedCmd(APDU apdu) {
     receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
-    tmpVariables[0] = KMArray.instance((short) 2);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.exp());
-    tmpVariables[1] = KMVerificationToken.exp();
-    KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
     // Decode the arguments
-    tmpVariables[0] = decoder.decode(tmpVariables[0], buffer, bufferStartOffset, bufferLength);
+    tmpVariables[0] = decoder.decode(DEVICE_LOCKED_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -563,12 +736,48 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         .getHeap().length)) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
+    // Only the used part of the available memory needs to be scrubbed.
+    repository.trimAvailableMemory(bufferStartOffset, bufferLength);
     // Send data
     apdu.setOutgoing();
     apdu.setOutgoingLength(bufferLength);
     apdu.sendBytesLong(buffer, bufferStartOffset, bufferLength);
   }
 
+  /**
+   * Sends the response followed by the cert chain. The cert chain is already in CBOR format, so it
+   * is sent directly from the non-volatile memory.
+   */
+  public static void sendOutgoingWithCertChain(APDU apdu) {
+    if (((short) (bufferLength + bufferStartOffset)) > ((short) repository
+        .getHeap().length)) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    short chainLength = seProvider.getCertificateChainLength();
+    if (((short) (bufferLength + chainLength)) < 0) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    // Only the used part of the available memory needs to be scrubbed.
+    repository.trimAvailableMemory(bufferStartOffset, bufferLength);
+    // Send data
+    apdu.setOutgoing();
+    apdu.setOutgoingLength((short) (bufferLength + chainLength));
+    apdu.sendBytesLong(buffer, bufferStartOffset, bufferLength);
+    apdu.sendBytesLong(seProvider.getCertificateChainBuffer(),
+        seProvider.getCertificateChainOffset(), chainLength);
+  }
+
+  /**
+   * Sends a response object, may be extended response, by encoding it directly to the apdu. So
+   * unlike sendOutgoing no heap memory is needed for the encoded response.
+   */
+  public static void sendResponse(APDU apdu, short respPtr) {
+    short length = encoder.getEncodedLength(respPtr);
+    apdu.setOutgoing();
+    apdu.setOutgoingLength(length);
+    encoder.encode(respPtr, apdu);
+  }
+
   /**
    * Receives data, which can be extended data, as requested by the command instance.
    */
@@ -605,21 +814,30 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             JavacardKeymasterDevice, (short) 0, (short) JavacardKeymasterDevice.length));
     resp.add((short) 2, KMByteBlob.instance(Google, (short) 0, (short) Google.length));
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response - actual bufferLength is 86
-    bufferLength = encoder.encode(respPtr, buffer, bufferStartOffset);
-    // send buffer to master
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, respPtr);
+  }
+
+  // Pregenerates a key pair for a later generateKey. The HAL sends it at boot and after it has
+  // returned the response of generateKey, so that the key pair generation is not part of the
+  // latency of any request. The response contains the number of key pairs still missing in the
+  // pool, and the HAL sends the command again until it is 0.
+  private void processRefillKeyPairPoolCmd(APDU apdu) {
+    // No arguments expected
+    short missing = seProvider.refillKeyPairPool();
+    short respPtr = KMArray.instance((short) 2);
+    KMArray.cast(respPtr).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(respPtr).add((short) 1, KMInteger.uint_16(missing));
+
+    // Encode the response directly to the apdu
+    sendResponse(apdu, respPtr);
   }
 
   private void processAddRngEntropyCmd(APDU apdu) {
     // Receive the incoming request fully from the master.
     receiveIncoming(apdu);
-    // Argument 1
-    short argsProto = KMArray.instance((short) 1);
-    KMArray.cast(argsProto).add((short) 0, KMByteBlob.exp());
     // Decode the argument
-    short args = decoder.decode(argsProto, buffer, bufferStartOffset, bufferLength);
+    short args = decoder.decode(BLOB_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -634,31 +852,23 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processGetCertChainCmd(APDU apdu) {
-    // Make the response
+    byte[] scratchPad = apdu.getBuffer();
     tmpVariables[0] = seProvider.getCertificateChainLength();
-    // Add arrayHeader and KMError.OK
-    tmpVariables[0] += 2;
-    tmpVariables[1] = KMByteBlob.instance(tmpVariables[0]);
-    buffer = KMByteBlob.cast(tmpVariables[1]).getBuffer();
-    bufferStartOffset = KMByteBlob.cast(tmpVariables[1]).getStartOff();
-    bufferLength = KMByteBlob.cast(tmpVariables[1]).length();
-    // read the cert chain from non-volatile memory. Cert chain is already in
-    // CBOR format.
-    seProvider.readCertificateChain(buffer, (short) (bufferStartOffset + 2));
-    // Encode cert chain.
-    encoder.encodeCertChain(buffer, bufferStartOffset, bufferLength);
-    sendOutgoing(apdu);
+    // Encode arrayHeader and KMError.OK in the apdu buffer.
+    encoder.encodeCertChain(scratchPad, (short) 0, (short) 2);
+    // The cert chain is already in CBOR format, so it is sent directly from the
+    // non-volatile memory.
+    apdu.setOutgoing();
+    apdu.setOutgoingLength((short) (tmpVariables[0] + 2));
+    apdu.sendBytes((short) 0, (short) 2);
+    apdu.sendBytesLong(seProvider.getCertificateChainBuffer(),
+        seProvider.getCertificateChainOffset(), tmpVariables[0]);
   }
 
   private void processProvisionAttestationCertParams(APDU apdu) {
     receiveIncoming(apdu);
-    // Arguments
-    short blob = KMByteBlob.exp();
-    short argsProto = KMArray.instance((short) 2);
-    KMArray.cast(argsProto).add((short) 0, blob); // Cert - DER encoded issuer
-    KMArray.cast(argsProto).add((short) 1, blob); // Cert - Expiry Time
-    // Decode the argument.
-    short args = decoder.decode(argsProto, buffer, bufferStartOffset, bufferLength);
+    // Decode the arguments - DER encoded issuer and expiry time.
+    short args = decoder.decode(TWO_BLOB_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -668,6 +878,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(tmpVariables[0]).getBuffer(),
         KMByteBlob.cast(tmpVariables[0]).getStartOff(),
         KMByteBlob.cast(tmpVariables[0]).length());
+    seProvider.getAttestationCert(true).resetTemplate();
 
     // save expiry time - UTC or General Time - YYMMDDhhmmssZ or YYYYMMDDhhmmssZ.
     tmpVariables[0] = KMArray.cast(args).get((short) 1);
@@ -713,17 +924,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     receiveIncoming(apdu);
     // Re-purpose the apdu buffer as scratch pad.
     byte[] scratchPad = apdu.getBuffer();
-    // Arguments
-    short keyparams = KMKeyParameters.exp();
-    short keyFormat = KMEnum.instance(KMType.KEY_FORMAT);
-    short blob = KMByteBlob.exp();
-    short argsProto = KMArray.instance((short) 3);
-    KMArray.cast(argsProto).add((short) 0, keyparams);
-    KMArray.cast(argsProto).add((short) 1, keyFormat);
-    KMArray.cast(argsProto).add((short) 2, blob);
-
     // Decode the argument
-    short args = decoder.decode(argsProto, buffer, bufferStartOffset, bufferLength);
+    short args = decoder.decode(IMPORT_KEY_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -783,12 +985,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private void processProvisionAttestIdsCmd(APDU apdu) {
     receiveIncoming(apdu);
-    // Arguments
-    short keyparams = KMKeyParameters.exp();
-    short argsProto = KMArray.instance((short) 1);
-    KMArray.cast(argsProto).add((short) 0, keyparams);
     // Decode the argument.
-    short args = decoder.decode(argsProto, buffer, bufferStartOffset, bufferLength);
+    short args = decoder.decode(KEY_PARAM_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -806,12 +1004,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private void processProvisionSharedSecretCmd(APDU apdu) {
     receiveIncoming(apdu);
-    // Arguments
-    short blob = KMByteBlob.exp();
-    short argsProto = KMArray.instance((short) 1);
-    KMArray.cast(argsProto).add((short) 0, blob);
     // Decode the argument.
-    short args = decoder.decode(argsProto, buffer, bufferStartOffset, bufferLength);
+    short args = decoder.decode(BLOB_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -828,13 +1022,17 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   }
 
   private void processGetProvisionStatusCmd(APDU apdu) {
-    tmpVariables[0] = KMArray.instance((short) 2);
+    byte[] scratchPad = apdu.getBuffer();
+    // Statistics of the crypto object pools of the SEProvider.
+    tmpVariables[1] = seProvider.getPoolStatistics(scratchPad, (short) 0);
+    tmpVariables[1] = KMByteBlob.instance(scratchPad, (short) 0, tmpVariables[1]);
+    tmpVariables[0] = KMArray.instance((short) 3);
     KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, KMInteger.uint_16(provisionStatus));
+    KMArray.cast(tmpVariables[0]).add((short) 2, tmpVariables[1]);
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    bufferLength = encoder.encode(tmpVariables[0], buffer, bufferStartOffset);
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[0]);
   }
 
   private void saveAttId(short attTag) {
@@ -879,13 +1077,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     receiveIncoming(apdu);
     // Re-purpose the apdu buffer as scratch pad.
     byte[] scratchPad = apdu.getBuffer();
-    // Arguments
-    tmpVariables[0] = KMArray.instance((short) 3);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMByteBlob.exp());
-    KMArray.cast(tmpVariables[0]).add((short) 1, KMByteBlob.exp());
-    KMArray.cast(tmpVariables[0]).add((short) 2, KMByteBlob.exp());
     // Decode the arguments
-    tmpVariables[0] = decoder.decode(tmpVariables[0], buffer, bufferStartOffset, bufferLength);
+    tmpVariables[0] = decoder.decode(THREE_BLOB_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -907,10 +1100,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_CHARACTERISTICS]);
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response
-    bufferLength = encoder.encode(tmpVariables[0], buffer, bufferStartOffset);
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[0]);
   }
 
   private void processGetHmacSharingParamCmd(APDU apdu) {
@@ -924,10 +1115,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[3]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[3]).add((short) 1, tmpVariables[2]);
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response
-    bufferLength = encoder.encode(tmpVariables[3], buffer, bufferStartOffset);
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[3]);
   }
 
   private void processDeleteAllKeysCmd(APDU apdu) {
@@ -941,26 +1130,16 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
     // Receive the incoming request fully from the master.
     receiveIncoming(apdu);
-    // Arguments
-    short argsProto = KMArray.instance((short) 1);
-    KMArray.cast(argsProto).add((short) 0, KMByteBlob.exp());
     // Decode the argument
-    short args = decoder.decode(argsProto, buffer, bufferStartOffset, bufferLength);
+    short args = decoder.decode(BLOB_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
     // Process
     data[KEY_BLOB] = KMArray.cast(args).get((short) 0);
     tmpVariables[0] = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
-    tmpVariables[1] = KMArray.instance((short) 5);
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_SECRET, KMByteBlob.exp());
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG, KMByteBlob.exp());
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_NONCE, KMByteBlob.exp());
-    tmpVariables[2] = KMKeyCharacteristics.exp();
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR, tmpVariables[2]);
-    KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY, KMByteBlob.exp());
     try {
-      data[KEY_BLOB] = decoder.decodeArray(tmpVariables[1],
+      data[KEY_BLOB] = decoder.decodeArray(KEY_BLOB_ARGS,
           KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
           KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
           KMByteBlob.cast(data[KEY_BLOB]).length());
@@ -981,12 +1160,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Receive the incoming request fully from the master into buffer.
     receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
-    tmpVariables[1] = KMHmacSharingParameters.exp();
-    tmpVariables[0] = KMArray.exp(tmpVariables[1]);
-    tmpVariables[2] = KMArray.instance((short) 1);
-    KMArray.cast(tmpVariables[2]).add((short) 0, tmpVariables[0]); // Vector of hmac params
-    // Decode the arguments
-    tmpVariables[0] = decoder.decode(tmpVariables[2], buffer, bufferStartOffset, bufferLength);
+    // Decode the arguments - vector of hmac params
+    tmpVariables[0] =
+        decoder.decode(COMPUTE_SHARED_HMAC_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -1090,22 +1266,17 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response
-    bufferLength = encoder.encode(tmpVariables[0], buffer, bufferStartOffset);
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[0]);
   }
 
   private void processUpgradeKeyCmd(APDU apdu) {
     // Receive the incoming request fully from the master into buffer.
     receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
-    tmpVariables[1] = KMArray.instance((short) 2);
-    tmpVariables[2] = KMKeyParameters.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 0, KMByteBlob.exp()); // Key Blob
-    KMArray.cast(tmpVariables[1]).add((short) 1, tmpVariables[2]); // Key Params
-    // Decode the arguments
-    tmpVariables[2] = decoder.decode(tmpVariables[1], buffer, bufferStartOffset, bufferLength);
+    // Decode the arguments - Key Blob and Key Params
+    tmpVariables[2] =
+        decoder.decode(BLOB_KEY_PARAM_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -1190,10 +1361,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_BLOB]);
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response
-    bufferLength = encoder.encode(tmpVariables[0], buffer, bufferStartOffset);
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[0]);
   }
 
   private void processExportKeyCmd(APDU apdu) {
@@ -1204,24 +1373,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Receive the incoming request fully from the master into buffer.
     receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
-    tmpVariables[1] = KMArray.instance((short) 12);
-    // Arguments
-    tmpVariables[2] = KMKeyParameters.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 0, tmpVariables[2]); // Key Params of wrapped key
-    KMArray.cast(tmpVariables[1]).add((short) 1, KMEnum.instance(KMType.KEY_FORMAT)); // Key Format
-    KMArray.cast(tmpVariables[1]).add((short) 2, KMByteBlob.exp()); // Wrapped Import Key Blob
-    KMArray.cast(tmpVariables[1]).add((short) 3, KMByteBlob.exp()); // Auth Tag
-    KMArray.cast(tmpVariables[1]).add((short) 4, KMByteBlob.exp()); // IV - Nonce
-    KMArray.cast(tmpVariables[1]).add((short) 5, KMByteBlob.exp()); // Encrypted Transport Key
-    KMArray.cast(tmpVariables[1]).add((short) 6, KMByteBlob.exp()); // Wrapping Key KeyBlob
-    KMArray.cast(tmpVariables[1]).add((short) 7, KMByteBlob.exp()); // Masking Key
-    KMArray.cast(tmpVariables[1]).add((short) 8, tmpVariables[2]); // Un-wrapping Params
-    KMArray.cast(tmpVariables[1])
-        .add((short) 9, KMByteBlob.exp()); // Wrapped Key ASSOCIATED AUTH DATA
-    KMArray.cast(tmpVariables[1]).add((short) 10, KMInteger.exp()); // Password Sid
-    KMArray.cast(tmpVariables[1]).add((short) 11, KMInteger.exp()); // Biometric Sid
     // Decode the arguments
-    short args = decoder.decode(tmpVariables[1], buffer, bufferStartOffset, bufferLength);
+    short args =
+        decoder.decode(IMPORT_WRAPPED_KEY_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -1288,7 +1442,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             KMByteBlob.cast(tmpVariables[0]).getStartOff(),
             KMByteBlob.cast(tmpVariables[0]).length(),
             scratchPad,
-            (short) 0);
+            (short) 0,
+            KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getBuffer(),
+            KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getStartOff());
     data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, tmpVariables[1]);
 
     // Step 3 - XOR the decrypted AES-GCM key with with masking key
@@ -1359,22 +1515,17 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     importKey(apdu, scratchPad);
   }
 
-  private void processAttestKeyCmd(APDU apdu) {
+  // If withCertChain is true then the provisioned cert chain is sent after the attestation cert
+  // in the same response, so the HAL does not need a separate get cert chain command.
+  private void processAttestKeyCmd(APDU apdu, boolean withCertChain) {
     // Receive the incoming request fully from the master into buffer.
     receiveIncoming(apdu);
 
     // Re-purpose the apdu buffer as scratch pad.
     byte[] scratchPad = apdu.getBuffer();
 
-    // Arguments
-    short keyParams = KMKeyParameters.exp();
-    short keyBlob = KMByteBlob.exp();
-    short argsProto = KMArray.instance((short) 2);
-    KMArray.cast(argsProto).add((short) 0, keyBlob);
-    KMArray.cast(argsProto).add((short) 1, keyParams);
-
     // Decode the argument
-    short args = decoder.decode(argsProto, buffer, bufferStartOffset, bufferLength);
+    short args = decoder.decode(BLOB_KEY_PARAM_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -1443,7 +1594,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMKeyParameters.findTag(KMType.DATE_TAG, KMType.USAGE_EXPIRE_DATETIME, data[SW_PARAMETERS]);
     cert.notAfter(tmpVariables[2], repository.getCertExpiryTime(), scratchPad, (short) 0);
 
-    addAttestationIds(cert);
     addTags(KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).getHardwareEnforced(), true, cert);
     addTags(
         KMKeyCharacteristics.cast(data[KEY_CHARACTERISTICS]).getSoftwareEnforced(), false, cert);
@@ -1455,42 +1605,21 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
     cert.verifiedBootKey(repository.getVerifiedBootKey());
     cert.verifiedBootState(repository.getBootState());
-    // buffer for cert - we allocate 2KBytes buffer
-    // make this buffer size configurable
-    tmpVariables[3] = KMByteBlob.instance(MAX_CERT_SIZE);
-    buffer = KMByteBlob.cast(tmpVariables[3]).getBuffer();
-    bufferStartOffset = KMByteBlob.cast(tmpVariables[3]).getStartOff();
-    bufferLength = KMByteBlob.cast(tmpVariables[3]).length();
+    // The cert is encoded backwards from the end of the available heap memory, so it only takes
+    // as much heap as it needs. The unused front of the memory is given back in sendOutgoing.
+    buffer = repository.getHeap();
+    bufferStartOffset = repository.allocAvailableMemory();
+    bufferLength = (short) (repository.getAvailableMemoryEnd() - bufferStartOffset);
     cert.buffer(buffer, bufferStartOffset, bufferLength);
     cert.build();
     bufferStartOffset =
-        encoder.encodeCert(buffer, bufferStartOffset, cert.getCertStart(), cert.getCertLength());
+        encoder.encodeCert(buffer, bufferStartOffset, cert.getCertStart(), cert.getCertLength(),
+            withCertChain);
     bufferLength = (short) (cert.getCertLength() + (cert.getCertStart() - bufferStartOffset));
-    sendOutgoing(apdu);
-  }
-
-  // --------------------------------
-  private void addAttestationIds(KMAttestationCert cert) {
-    final short[] attTags =
-        new short[]{
-            KMType.ATTESTATION_ID_BRAND,
-            KMType.ATTESTATION_ID_DEVICE,
-            KMType.ATTESTATION_ID_IMEI,
-            KMType.ATTESTATION_ID_MANUFACTURER,
-            KMType.ATTESTATION_ID_MEID,
-            KMType.ATTESTATION_ID_MODEL,
-            KMType.ATTESTATION_ID_PRODUCT,
-            KMType.ATTESTATION_ID_SERIAL
-        };
-    byte index = 0;
-    short attIdTag;
-    while (index < (short) attTags.length) {
-      attIdTag = repository.getAttId(mapToAttId(attTags[index]));
-      if (attIdTag != 0) {
-        attIdTag = KMByteTag.instance(attTags[index], attIdTag);
-        cert.extensionTag(attIdTag, true);
-      }
-      index++;
+    if (withCertChain) {
+      sendOutgoingWithCertChain(apdu);
+    } else {
+      sendOutgoing(apdu);
     }
   }
 
@@ -1561,9 +1690,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private void processAbortOperationCmd(APDU apdu) {
     receiveIncoming(apdu);
-    tmpVariables[1] = KMArray.instance((short) 1);
-    KMArray.cast(tmpVariables[1]).add((short) 0, KMInteger.exp());
-    tmpVariables[2] = decoder.decode(tmpVariables[1], buffer, bufferStartOffset, bufferLength);
+    tmpVariables[2] =
+        decoder.decode(OPERATION_HANDLE_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -1579,21 +1707,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private void processFinishOperationCmd(APDU apdu) {
     receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
-    tmpVariables[1] = KMArray.instance((short) 6);
-    // Arguments
-    tmpVariables[2] = KMKeyParameters.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 0, KMInteger.exp());
-    KMArray.cast(tmpVariables[1]).add((short) 1, tmpVariables[2]);
-    KMArray.cast(tmpVariables[1]).add((short) 2, KMByteBlob.exp());
-    KMArray.cast(tmpVariables[1]).add((short) 3, KMByteBlob.exp());
-    tmpVariables[3] = KMHardwareAuthToken.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 4, tmpVariables[3]);
-    tmpVariables[4] = KMVerificationToken.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 5, tmpVariables[4]);
     // Decode the arguments
-    tmpVariables[2] = decoder.decode(tmpVariables[1], buffer, bufferStartOffset, bufferLength);
-    //reclaim memory
-    repository.reclaimMemory(bufferLength);
+    tmpVariables[2] =
+        decoder.decodeInPlace(FINISH_OPERATION_ARGS, buffer, bufferStartOffset, bufferLength);
+    // The input data refers to the received buffer, so its memory is reclaimed on clean.
 
     data[OP_HANDLE] = KMArray.cast(tmpVariables[2]).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -1608,18 +1725,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     }
     // Authorize the finish operation
     authorizeUpdateFinishOperation(op, scratchPad);
-    switch (op.getPurpose()) {
-      case KMType.SIGN:
-      case KMType.VERIFY:
-        finishSigningVerifyingOperation(op, scratchPad);
-        break;
-      case KMType.ENCRYPT:
-        finishEncryptOperation(op, scratchPad);
-        break;
-      case KMType.DECRYPT:
-        finishDecryptOperation(op, scratchPad);
-        break;
-    }
+    finishOperation(op, scratchPad);
     // Remove the operation handle
     repository.releaseOperation(op);
     // make response
@@ -1633,10 +1739,23 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[2]).add((short) 1, tmpVariables[1]);
     KMArray.cast(tmpVariables[2]).add((short) 2, data[OUTPUT_DATA]);
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response
-    bufferLength = encoder.encode(tmpVariables[2], buffer, bufferStartOffset);
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[2]);
+  }
+
+  private void finishOperation(KMOperationState op, byte[] scratchPad) {
+    switch (op.getPurpose()) {
+      case KMType.SIGN:
+      case KMType.VERIFY:
+        finishSigningVerifyingOperation(op, scratchPad);
+        break;
+      case KMType.ENCRYPT:
+        finishEncryptOperation(op, scratchPad);
+        break;
+      case KMType.DECRYPT:
+        finishDecryptOperation(op, scratchPad);
+        break;
+    }
   }
 
   private void finishEncryptOperation(KMOperationState op, byte[] scratchPad) {
@@ -1994,20 +2113,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private void processUpdateOperationCmd(APDU apdu) {
     receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
-    tmpVariables[1] = KMArray.instance((short) 5);
-    // Arguments
-    tmpVariables[2] = KMKeyParameters.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 0, KMInteger.exp());
-    KMArray.cast(tmpVariables[1]).add((short) 1, tmpVariables[2]);
-    KMArray.cast(tmpVariables[1]).add((short) 2, KMByteBlob.exp());
-    tmpVariables[3] = KMHardwareAuthToken.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 3, tmpVariables[3]);
-    tmpVariables[4] = KMVerificationToken.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 4, tmpVariables[4]);
     // Decode the arguments
-    tmpVariables[2] = decoder.decode(tmpVariables[1], buffer, bufferStartOffset, bufferLength);
-    //reclaim memory
-    repository.reclaimMemory(bufferLength);
+    tmpVariables[2] =
+        decoder.decodeInPlace(UPDATE_OPERATION_ARGS, buffer, bufferStartOffset, bufferLength);
+    // The input data refers to the received buffer, so its memory is reclaimed on clean.
 
     data[OP_HANDLE] = KMArray.cast(tmpVariables[2]).get((short) 0);
     data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 1);
@@ -2043,34 +2152,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMException.throwIt(KMError.OPERATION_CANCELLED);
       }
       tmpVariables[0] = KMByteBlob.cast(data[INPUT_DATA]).length();
-      short additionalExpOutLen = 0;
-      if (op.getAlgorithm() == KMType.AES) {
-        if (op.getBlockMode() == KMType.GCM) {
-          updateAAD(op, (byte) 0x00);
-          // if input data present
-          if (tmpVariables[0] > 0) {
-            if (tmpVariables[0] % AES_BLOCK_SIZE != 0) {
-              KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
-            }
-            // no more future updateAAD allowed if input data present.
-            if (op.isAesGcmUpdateAllowed()) {
-              op.setAesGcmUpdateComplete();
-            }
-          }
-          additionalExpOutLen = 16;
-        } else {
-          // input data must be block aligned.
-          // 128 bit block size - HAL must send block aligned data
-          if (tmpVariables[0] % AES_BLOCK_SIZE != 0 || tmpVariables[0] <= 0) {
-            KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
-          }
-        }
-      } else if (op.getAlgorithm() == KMType.DES) {
-        // 64 bit block size - HAL must send block aligned data
-        if (tmpVariables[0] % DES_BLOCK_SIZE != 0) {
-          KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
-        }
-      }
+      short additionalExpOutLen = validateCipherUpdateInput(op, tmpVariables[0]);
       // Allocate output buffer as input data is already block aligned
       data[OUTPUT_DATA] = KMByteBlob.instance((short) (tmpVariables[0] + additionalExpOutLen));
       // Otherwise just update the data.
@@ -2116,10 +2198,163 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[2]).add((short) 2, tmpVariables[1]);
     KMArray.cast(tmpVariables[2]).add((short) 3, data[OUTPUT_DATA]);
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response
-    bufferLength = encoder.encode(tmpVariables[2], buffer, bufferStartOffset);
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[2]);
+  }
+
+  // Validates the length of the update input of an AES or DES operation and returns the length of
+  // the output which is expected in addition to the input length.
+  private short validateCipherUpdateInput(KMOperationState op, short inputLength) {
+    short additionalExpOutLen = 0;
+    if (op.getAlgorithm() == KMType.AES) {
+      if (op.getBlockMode() == KMType.GCM) {
+        updateAAD(op, (byte) 0x00);
+        // if input data present
+        if (inputLength > 0) {
+          if (inputLength % AES_BLOCK_SIZE != 0) {
+            KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+          }
+          // no more future updateAAD allowed if input data present.
+          if (op.isAesGcmUpdateAllowed()) {
+            op.setAesGcmUpdateComplete();
+          }
+        }
+        additionalExpOutLen = 16;
+      } else {
+        // input data must be block aligned.
+        // 128 bit block size - HAL must send block aligned data
+        if (inputLength % AES_BLOCK_SIZE != 0 || inputLength <= 0) {
+          KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+        }
+      }
+    } else if (op.getAlgorithm() == KMType.DES) {
+      // 64 bit block size - HAL must send block aligned data
+      if (inputLength % DES_BLOCK_SIZE != 0) {
+        KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+      }
+    }
+    return additionalExpOutLen;
+  }
+
+  /**
+   * Same as update operation, except that the input data is the last argument i.e. the arguments
+   * are operation handle, key parameters, hw auth token, verification token and input data. Only
+   * the arguments preceding the input data are buffered in the heap. The input data is given to
+   * the operation as the chunks of the command are received, and the output is sent directly from
+   * the output blob. The arguments preceding the input data are only received till
+   * STREAM_UPDATE_ARGS_SIZE bytes plus the last received chunk, so larger arguments, e.g. large
+   * associated data of a GCM operation, fail with INVALID_INPUT_LENGTH and must be sent with the
+   * update operation command instead.
+   */
+  private void processStreamUpdateOperationCmd(APDU apdu) {
+    byte[] scratchPad = apdu.getBuffer();
+    short recvLen = apdu.setIncomingAndReceive();
+    short srcOffset = apdu.getOffsetCdata();
+    short incomingLength = apdu.getIncomingLength();
+    // Buffer the received chunks till the arguments preceding the input data are received. The
+    // chunks are never larger than the apdu buffer.
+    bufferLength = incomingLength;
+    if (scratchPad.length < (short) (incomingLength - STREAM_UPDATE_ARGS_SIZE)) {
+      bufferLength = (short) (STREAM_UPDATE_ARGS_SIZE + scratchPad.length);
+    }
+    bufferStartOffset = repository.allocReclaimableMemory(bufferLength);
+    short received = 0;
+    while (recvLen > 0 && received < STREAM_UPDATE_ARGS_SIZE && received < incomingLength) {
+      Util.arrayCopyNonAtomic(scratchPad, srcOffset, buffer,
+          (short) (bufferStartOffset + received), recvLen);
+      received += recvLen;
+      if (received < incomingLength) {
+        recvLen = apdu.receiveBytes(srcOffset);
+      }
+    }
+    // Decode the arguments - the length of input data is decoded in place of input data.
+    try {
+      tmpVariables[2] = decoder.decodeStreamed(STREAM_UPDATE_OPERATION_ARGS, buffer,
+          bufferStartOffset, received);
+    } catch (ISOException e) {
+      // The decoder went past the received data, so the arguments do not fit in the buffer.
+      if (decoder.getOffset() > (short) (bufferStartOffset + received)) {
+        KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+      }
+      throw e;
+    }
+    data[OP_HANDLE] = KMArray.cast(tmpVariables[2]).get((short) 0);
+    data[KEY_PARAMETERS] = KMArray.cast(tmpVariables[2]).get((short) 1);
+    data[HW_TOKEN] = KMArray.cast(tmpVariables[2]).get((short) 2);
+    data[VERIFICATION_TOKEN] = KMArray.cast(tmpVariables[2]).get((short) 3);
+    tmpVariables[3] = KMArray.cast(tmpVariables[2]).get((short) 4);
+    tmpVariables[3] = KMInteger.cast(tmpVariables[3]).getShort();
+    // Part of the input data which is already received.
+    tmpVariables[4] = decoder.getOffset();
+    tmpVariables[5] = (short) (bufferStartOffset + received - tmpVariables[4]);
+    if ((short) (tmpVariables[4] - bufferStartOffset + tmpVariables[3]) != incomingLength) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    KMOperationState op = repository.findOperation(data[OP_HANDLE]);
+    if (op == null) {
+      KMException.throwIt(KMError.INVALID_OPERATION_HANDLE);
+    }
+    // authorize the update operation
+    authorizeUpdateFinishOperation(op, scratchPad);
+    data[OUTPUT_DATA] = KMType.INVALID_VALUE;
+    if (op.getPurpose() == KMType.ENCRYPT || op.getPurpose() == KMType.DECRYPT) {
+      // Same as update, rsa encrypt/decrypt is not supported.
+      if (op.getAlgorithm() == KMType.RSA) {
+        KMException.throwIt(KMError.OPERATION_CANCELLED);
+      }
+      tmpVariables[0] = validateCipherUpdateInput(op, tmpVariables[3]);
+      data[OUTPUT_DATA] = KMByteBlob.instance((short) (tmpVariables[3] + tmpVariables[0]));
+    } else if (op.getPurpose() != KMType.SIGN && op.getPurpose() != KMType.VERIFY) {
+      KMException.throwIt(KMError.INCOMPATIBLE_PURPOSE);
+    }
+    // Update the part of the input data which is already received and then the rest of it as it
+    // is received. tmpVariables[6] is the length of the output.
+    tmpVariables[6] = streamUpdate(op, buffer, tmpVariables[4], tmpVariables[5], (short) 0);
+    received = (short) (tmpVariables[4] - bufferStartOffset + tmpVariables[5]);
+    while (received < incomingLength) {
+      recvLen = apdu.receiveBytes(srcOffset);
+      tmpVariables[6] = streamUpdate(op, scratchPad, srcOffset, recvLen, tmpVariables[6]);
+      received += recvLen;
+    }
+    repository.reclaimMemory(bufferLength);
+    // Persist if there are any updates.
+    op.persist();
+    if (data[OUTPUT_DATA] == KMType.INVALID_VALUE) {
+      data[OUTPUT_DATA] = KMByteBlob.instance((short) 0);
+    } else {
+      // Adjust the Output data if it is not equal to input data.
+      KMByteBlob.cast(data[OUTPUT_DATA]).decrementLength(
+          (short) (KMByteBlob.cast(data[OUTPUT_DATA]).length() - tmpVariables[6]));
+    }
+    // make response - the output data is sent directly from the output blob.
+    tmpVariables[1] = KMArray.instance((short) 0);
+    tmpVariables[1] = KMKeyParameters.instance(tmpVariables[1]);
+    tmpVariables[2] = KMArray.instance((short) 4);
+    KMArray.cast(tmpVariables[2]).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(tmpVariables[2]).add((short) 1, KMInteger.uint_16(tmpVariables[3]));
+    KMArray.cast(tmpVariables[2]).add((short) 2, tmpVariables[1]);
+    KMArray.cast(tmpVariables[2]).add((short) 3, data[OUTPUT_DATA]);
+    sendResponse(apdu, tmpVariables[2]);
+  }
+
+  // Updates the operation with a chunk of the input data and returns the new output length.
+  private short streamUpdate(KMOperationState op, byte[] buf, short start, short len,
+      short outLen) {
+    if (len <= 0) {
+      return outLen;
+    }
+    if (data[OUTPUT_DATA] == KMType.INVALID_VALUE) {
+      op.getOperation().update(buf, start, len);
+      return outLen;
+    }
+    try {
+      outLen += op.getOperation().update(buf, start, len,
+          KMByteBlob.cast(data[OUTPUT_DATA]).getBuffer(),
+          (short) (KMByteBlob.cast(data[OUTPUT_DATA]).getStartOff() + outLen));
+    } catch (CryptoException e) {
+      KMException.throwIt(KMError.INVALID_TAG);
+    }
+    return outLen;
   }
 
   private void processBeginOperationCmd(APDU apdu) {
@@ -2127,32 +2362,14 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
     short args;
-    tmpVariables[1] = KMArray.instance((short) 4);
-    // Arguments
-    tmpVariables[2] = KMKeyParameters.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 0, KMEnum.instance(KMType.PURPOSE));
-    KMArray.cast(tmpVariables[1]).add((short) 1, KMByteBlob.exp());
-    KMArray.cast(tmpVariables[1]).add((short) 2, tmpVariables[2]);
-    tmpVariables[3] = KMHardwareAuthToken.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 3, tmpVariables[3]);
     // Decode the arguments
-    args = decoder.decode(tmpVariables[1], buffer, bufferStartOffset, bufferLength);
+    args = decoder.decode(BEGIN_OPERATION_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
     data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 2);
     data[KEY_BLOB] = KMArray.cast(args).get((short) 1);
-    // Check for app id and app data.
-    data[APP_ID] =
-        KMKeyParameters.findTag(KMType.BYTES_TAG, KMType.APPLICATION_ID, data[KEY_PARAMETERS]);
-    data[APP_DATA] =
-        KMKeyParameters.findTag(KMType.BYTES_TAG, KMType.APPLICATION_DATA, data[KEY_PARAMETERS]);
-    if (data[APP_ID] != KMTag.INVALID_VALUE) {
-      data[APP_ID] = KMByteTag.cast(data[APP_ID]).getValue();
-    }
-    if (data[APP_DATA] != KMTag.INVALID_VALUE) {
-      data[APP_DATA] = KMByteTag.cast(data[APP_DATA]).getValue();
-    }
+    readAppIdAndAppData();
     // Parse the encrypted blob and decrypt it.
     parseEncryptedKeyBlob(scratchPad);
     // Authorize the begin operation and reserve op - data[OP_HANDLE] will have the handle.
@@ -2176,7 +2393,82 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       KMException.throwIt(KMError.TOO_MANY_OPERATIONS);
     }
     data[OP_HANDLE] = op.getHandle();
-    op.setPurpose((byte) tmpVariables[0]);
+    beginOperation(op, (byte) tmpVariables[0], scratchPad);
+    tmpVariables[1] = makeOperationParams(op);
+    tmpVariables[0] = KMArray.instance((short) 3);
+    KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
+    KMArray.cast(tmpVariables[0]).add((short) 2, data[OP_HANDLE]);
+
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[0]);
+  }
+
+  // One shot operation i.e. begin and finish in a single command. The operation state is not
+  // reserved in the repository, so the operation exists only for the duration of this command.
+  private void processOneShotOperationCmd(APDU apdu) {
+    receiveIncoming(apdu);
+    byte[] scratchPad = apdu.getBuffer();
+    short args;
+    // Decode the arguments
+    args = decoder.decodeInPlace(ONE_SHOT_OPERATION_ARGS, buffer, bufferStartOffset, bufferLength);
+    // The input data refers to the received buffer, so its memory is reclaimed on clean.
+
+    data[KEY_BLOB] = KMArray.cast(args).get((short) 1);
+    data[KEY_PARAMETERS] = KMArray.cast(args).get((short) 2);
+    data[INPUT_DATA] = KMArray.cast(args).get((short) 3);
+    data[SIGNATURE] = KMArray.cast(args).get((short) 4);
+    data[HW_TOKEN] = KMArray.cast(args).get((short) 5);
+    data[VERIFICATION_TOKEN] = KMArray.cast(args).get((short) 6);
+    readAppIdAndAppData();
+    // Parse the encrypted blob and decrypt it.
+    parseEncryptedKeyBlob(scratchPad);
+    tmpVariables[0] = KMArray.cast(args).get((short) 0);
+    tmpVariables[0] = KMEnum.cast(tmpVariables[0]).getVal();
+    // The operation has no handle, so data[OP_HANDLE] stays invalid.
+    KMOperationState op = KMOperationState.instance(KMType.INVALID_VALUE, null);
+    try {
+      beginOperation(op, (byte) tmpVariables[0], scratchPad);
+      // Auth per operation requires the hardware auth token to be bound to the operation
+      // handle, which is never returned by this command.
+      if (op.isAuthPerOperationReqd()) {
+        KMException.throwIt(KMError.KEY_USER_NOT_AUTHENTICATED);
+      }
+      authorizeUpdateFinishOperation(op, scratchPad);
+      finishOperation(op, scratchPad);
+      tmpVariables[1] = makeOperationParams(op);
+    } finally {
+      op.release();
+    }
+    // make response
+    tmpVariables[2] = KMArray.instance((short) 3);
+    if (data[OUTPUT_DATA] == KMType.INVALID_VALUE) {
+      data[OUTPUT_DATA] = KMByteBlob.instance((short) 0);
+    }
+    KMArray.cast(tmpVariables[2]).add((short) 0, KMInteger.uint_16(KMError.OK));
+    KMArray.cast(tmpVariables[2]).add((short) 1, tmpVariables[1]);
+    KMArray.cast(tmpVariables[2]).add((short) 2, data[OUTPUT_DATA]);
+
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[2]);
+  }
+
+  private void readAppIdAndAppData() {
+    // Check for app id and app data.
+    data[APP_ID] =
+        KMKeyParameters.findTag(KMType.BYTES_TAG, KMType.APPLICATION_ID, data[KEY_PARAMETERS]);
+    data[APP_DATA] =
+        KMKeyParameters.findTag(KMType.BYTES_TAG, KMType.APPLICATION_DATA, data[KEY_PARAMETERS]);
+    if (data[APP_ID] != KMTag.INVALID_VALUE) {
+      data[APP_ID] = KMByteTag.cast(data[APP_ID]).getValue();
+    }
+    if (data[APP_DATA] != KMTag.INVALID_VALUE) {
+      data[APP_DATA] = KMByteTag.cast(data[APP_DATA]).getValue();
+    }
+  }
+
+  private void beginOperation(KMOperationState op, byte purpose, byte[] scratchPad) {
+    op.setPurpose(purpose);
     op.setKeySize(KMByteBlob.cast(data[SECRET]).length());
     authorizeAndBeginOperation(op, scratchPad);
     switch (op.getPurpose()) {
@@ -2192,6 +2484,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMException.throwIt(KMError.UNIMPLEMENTED);
         break;
     }
+  }
+
+  // Returns the key parameters to be returned to the caller after the operation is begun.
+  private short makeOperationParams(KMOperationState op) {
     // If the data[IV] is required to be returned.
     // As per VTS, for the decryption operation don't send the iv back.
     if (data[IV] != KMType.INVALID_VALUE
@@ -2215,16 +2511,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     } else {
       tmpVariables[2] = KMArray.instance((short) 0);
     }
-    tmpVariables[1] = KMKeyParameters.instance(tmpVariables[2]);
-    tmpVariables[0] = KMArray.instance((short) 3);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMInteger.uint_16(KMError.OK));
-    KMArray.cast(tmpVariables[0]).add((short) 1, tmpVariables[1]);
-    KMArray.cast(tmpVariables[0]).add((short) 2, data[OP_HANDLE]);
-
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response
-    bufferLength = encoder.encode(tmpVariables[0], buffer, bufferStartOffset);
-    sendOutgoing(apdu);
+    return KMKeyParameters.instance(tmpVariables[2]);
   }
 
   private void authorizeAlgorithm(KMOperationState op) {
@@ -2525,7 +2812,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
                     KMByteBlob.cast(data[SECRET]).length(),
                     KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
                     KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
-                    KMByteBlob.cast(data[PUB_KEY]).length()));
+                    KMByteBlob.cast(data[PUB_KEY]).length(),
+                    KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getBuffer(),
+                    KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getStartOff()));
           } else {
             KMException.throwIt(KMError.UNSUPPORTED_PURPOSE);
           }
@@ -2552,7 +2841,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
                   KMByteBlob.cast(data[IV]).getBuffer(),
                   KMByteBlob.cast(data[IV]).getStartOff(),
                   KMByteBlob.cast(data[IV]).length(),
-                  op.getMacLength()));
+                  op.getMacLength(),
+                  KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getBuffer(),
+                  KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getStartOff()));
         } catch (CryptoException exception) {
           if (exception.getReason() == CryptoException.ILLEGAL_VALUE) {
             KMException.throwIt(KMError.INVALID_ARGUMENT);
@@ -2579,7 +2870,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
                     KMByteBlob.cast(data[SECRET]).length(),
                     KMByteBlob.cast(data[PUB_KEY]).getBuffer(),
                     KMByteBlob.cast(data[PUB_KEY]).getStartOff(),
-                    KMByteBlob.cast(data[PUB_KEY]).length()));
+                    KMByteBlob.cast(data[PUB_KEY]).length(),
+                    KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getBuffer(),
+                    KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getStartOff()));
           } else {
             KMException.throwIt(KMError.UNSUPPORTED_PURPOSE);
           }
@@ -2601,7 +2894,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
                     KMByteBlob.cast(data[SECRET]).length(),
                     null,
                     (short) 0,
-                    (short) 0));
+                    (short) 0,
+                    KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getBuffer(),
+                    KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getStartOff()));
           } else {
             KMException.throwIt(KMError.UNSUPPORTED_PURPOSE);
           }
@@ -2636,7 +2931,9 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
                   null,
                   (short) 0,
                   (short) 0,
-                  (short) 0));
+                  (short) 0,
+                  KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getBuffer(),
+                  KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getStartOff()));
         } catch (CryptoException exp) {
           KMException.throwIt(KMError.UNSUPPORTED_ALGORITHM);
         }
@@ -2754,14 +3051,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Receive the incoming request fully from the master into buffer.
     receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
-    tmpVariables[1] = KMArray.instance((short) 3);
-    // Arguments
-    tmpVariables[2] = KMKeyParameters.exp();
-    KMArray.cast(tmpVariables[1]).add((short) 0, tmpVariables[2]);
-    KMArray.cast(tmpVariables[1]).add((short) 1, KMEnum.instance(KMType.KEY_FORMAT));
-    KMArray.cast(tmpVariables[1]).add((short) 2, KMByteBlob.exp());
     // Decode the arguments
-    tmpVariables[2] = decoder.decode(tmpVariables[1], buffer, bufferStartOffset, bufferLength);
+    tmpVariables[2] = decoder.decode(IMPORT_KEY_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -2831,20 +3122,16 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_BLOB]);
     KMArray.cast(tmpVariables[0]).add((short) 2, data[KEY_CHARACTERISTICS]);
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response
-    bufferLength = encoder.encode(tmpVariables[0], buffer, bufferStartOffset);
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[0]);
   }
 
   private void importECKeys(byte[] scratchPad) {
     // Decode key material
-    tmpVariables[0] = KMArray.instance((short) 2);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMByteBlob.exp()); // secret
-    KMArray.cast(tmpVariables[0]).add((short) 1, KMByteBlob.exp()); // public key
+    // secret and public key
     tmpVariables[0] =
         decoder.decode(
-            tmpVariables[0],
+            TWO_BLOB_ARGS,
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getBuffer(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getStartOff(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).length());
@@ -2913,11 +3200,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private void importHmacKey(byte[] scratchPad) {
     // Get Key
-    tmpVariables[0] = KMArray.instance((short) 1);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMByteBlob.exp()); // secret
+    // secret
     tmpVariables[0] =
         decoder.decode(
-            tmpVariables[0],
+            BLOB_ARGS,
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getBuffer(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getStartOff(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).length());
@@ -2957,11 +3243,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private void importTDESKey(byte[] scratchPad) {
     // Decode Key Material
-    tmpVariables[0] = KMArray.instance((short) 1);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMByteBlob.exp()); // secret
+    // secret
     tmpVariables[0] =
         decoder.decode(
-            tmpVariables[0],
+            BLOB_ARGS,
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getBuffer(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getStartOff(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).length());
@@ -2999,11 +3284,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private void importAESKey(byte[] scratchPad) {
     // Get Key
-    tmpVariables[0] = KMArray.instance((short) 1);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMByteBlob.exp()); // secret
+    // secret
     tmpVariables[0] =
         decoder.decode(
-            tmpVariables[0],
+            BLOB_ARGS,
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getBuffer(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getStartOff(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).length());
@@ -3041,12 +3325,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
   private void importRSAKey(byte[] scratchPad) {
     // Decode key material
-    tmpVariables[0] = KMArray.instance((short) 2);
-    KMArray.cast(tmpVariables[0]).add((short) 0, KMByteBlob.exp()); // secret = private exponent
-    KMArray.cast(tmpVariables[0]).add((short) 1, KMByteBlob.exp()); // modulus
+    // secret = private exponent and modulus
     tmpVariables[0] =
         decoder.decode(
-            tmpVariables[0],
+            TWO_BLOB_ARGS,
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getBuffer(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).getStartOff(),
             KMByteBlob.cast(data[IMPORTED_KEY_BLOB]).length());
@@ -3149,34 +3431,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private void processSetBootParamsCmd(APDU apdu) {
     receiveIncoming(apdu);
     byte[] scratchPad = apdu.getBuffer();
-    // Argument 1 OS Version
-    tmpVariables[0] = KMInteger.exp();
-    // Argument 2 OS Patch level
-    tmpVariables[1] = KMInteger.exp();
-    // Argument 3 Vendor Patch level
-    tmpVariables[2] = KMInteger.exp();
-    // Argument 4 Boot Patch level
-    tmpVariables[3] = KMInteger.exp();
-    // Argument 5 Verified Boot Key
-    tmpVariables[4] = KMByteBlob.exp();
-    // Argument 6 Verified Boot Hash
-    tmpVariables[5] = KMByteBlob.exp();
-    // Argument 7 Verified Boot State
-    tmpVariables[6] = KMEnum.instance(KMType.VERIFIED_BOOT_STATE);
-    // Argument 8 Device Locked
-    tmpVariables[7] = KMEnum.instance(KMType.DEVICE_LOCKED);
-    // Array of expected arguments
-    short argsProto = KMArray.instance((short) 8);
-    KMArray.cast(argsProto).add((short) 0, tmpVariables[0]);
-    KMArray.cast(argsProto).add((short) 1, tmpVariables[1]);
-    KMArray.cast(argsProto).add((short) 2, tmpVariables[2]);
-    KMArray.cast(argsProto).add((short) 3, tmpVariables[3]);
-    KMArray.cast(argsProto).add((short) 4, tmpVariables[4]);
-    KMArray.cast(argsProto).add((short) 5, tmpVariables[5]);
-    KMArray.cast(argsProto).add((short) 6, tmpVariables[6]);
-    KMArray.cast(argsProto).add((short) 7, tmpVariables[7]);
     // Decode the arguments
-    short args = decoder.decode(argsProto, buffer, bufferStartOffset, bufferLength);
+    short args = decoder.decode(SET_BOOT_PARAMS_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -3229,6 +3485,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
 
     enumVal = KMEnum.cast(tmpVariables[7]).getVal();
     repository.setBootloaderLocked(enumVal == KMType.DEVICE_LOCKED_TRUE);
+    // The root of trust of the attestation certificates has changed.
+    seProvider.getAttestationCert(true).resetTemplate();
 
     // Clear the Computed SharedHmac and Hmac nonce from persistent memory.
     repository.clearComputedHmac();
@@ -3240,6 +3498,10 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     // Hmac is cleared, so generate a new Hmac nonce.
     seProvider.newRandomNumber(scratchPad, (short) 0, KMRepository.HMAC_SEED_NONCE_SIZE);
     repository.initHmacNonce(scratchPad, (short) 0, KMRepository.HMAC_SEED_NONCE_SIZE);
+
+    // Remove the dead space left in the data table by the entries written since the last boot,
+    // including the boot parameters written above.
+    repository.compactDataTable();
   }
 
   private static void processGenerateKey(APDU apdu) {
@@ -3247,13 +3509,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     receiveIncoming(apdu);
     // Re-purpose the apdu buffer as scratch pad.
     byte[] scratchPad = apdu.getBuffer();
-    // Argument
-    tmpVariables[0] = KMKeyParameters.exp();
-    // Array of expected arguments
-    tmpVariables[1] = KMArray.instance((short) 1);
-    KMArray.cast(tmpVariables[1]).add((short) 0, tmpVariables[0]);
     // Decode the argument
-    tmpVariables[2] = decoder.decode(tmpVariables[1], buffer, bufferStartOffset, bufferLength);
+    tmpVariables[2] = decoder.decode(KEY_PARAM_ARGS, buffer, bufferStartOffset, bufferLength);
     //reclaim memory
     repository.reclaimMemory(bufferLength);
 
@@ -3333,11 +3590,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(tmpVariables[0]).add((short) 1, data[KEY_BLOB]);
     KMArray.cast(tmpVariables[0]).add((short) 2, data[KEY_CHARACTERISTICS]);
 
-    bufferStartOffset = repository.allocAvailableMemory();
-    // Encode the response
-    bufferLength = encoder.encode(tmpVariables[0], buffer, bufferStartOffset);
-
-    sendOutgoing(apdu);
+    // Encode the response directly to the apdu
+    sendResponse(apdu, tmpVariables[0]);
   }
 
   private static void validateRSAKey(byte[] scratchPad) {
@@ -3372,10 +3626,11 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
   private static void generateRSAKey(byte[] scratchPad) {
     // Validate RSA Key
     validateRSAKey(scratchPad);
-    // Now generate 2048 bit RSA keypair for the given exponent
+    // Now generate 2048 bit RSA keypair for the given exponent. The secret holds the CRT
+    // components of the private key.
     short[] lengths = tmpVariables;
     data[PUB_KEY] = KMByteBlob.instance((short) 256);
-    data[SECRET] = KMByteBlob.instance((short) 256);
+    data[SECRET] = KMByteBlob.instance(RSA_CRT_SECRET_SIZE);
     seProvider.createAsymmetricKey(
         KMType.RSA,
         KMByteBlob.cast(data[SECRET]).getBuffer(),
@@ -3623,7 +3878,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
     KMArray.cast(data[KEY_BLOB]).add(KEY_BLOB_KEYCHAR, data[KEY_CHARACTERISTICS]);
 
     // allocate reclaimable memory.
-    tmpVariables[0] = repository.alloc((short) 1024);
+    tmpVariables[0] = repository.alloc(KEY_BLOB_MAX_SIZE);
     tmpVariables[1] = encoder.encode(data[KEY_BLOB], repository.getHeap(), tmpVariables[0]);
     data[KEY_BLOB] = KMByteBlob.instance(repository.getHeap(), tmpVariables[0], tmpVariables[1]);
   }
@@ -3634,20 +3889,20 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
     try {
+      data[HIDDEN_PARAMETERS] = KMKeyParameters.makeHidden(data[APP_ID],
+              data[APP_DATA], data[ROT], scratchPad);
+      // The digest of the encoded key blob is taken before it is decoded, as the secret is
+      // decrypted in place. It identifies the key of the key blob without revealing the secret.
+      data[KEY_BLOB_DIGEST] = KMByteBlob.instance(KEY_BLOB_DIGEST_LENGTH);
+      seProvider.messageDigest256(
+          KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
+          KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
+          KMByteBlob.cast(data[KEY_BLOB]).length(),
+          KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getBuffer(),
+          KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getStartOff());
+      short cacheKey = makeKeyBlobCacheKey(scratchPad);
       tmpVariables[0] = KMByteBlob.cast(data[KEY_BLOB]).getStartOff();
-      tmpVariables[1] = KMArray.instance((short) 5);
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_SECRET,
-              KMByteBlob.exp());
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_AUTH_TAG,
-              KMByteBlob.exp());
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_NONCE,
-              KMByteBlob.exp());
-      tmpVariables[2] = KMKeyCharacteristics.exp();
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_KEYCHAR,
-              tmpVariables[2]);
-      KMArray.cast(tmpVariables[1]).add(KMKeymasterApplet.KEY_BLOB_PUB_KEY,
-              KMByteBlob.exp());
-      data[KEY_BLOB] = decoder.decodeArray(tmpVariables[1],
+      data[KEY_BLOB] = decoder.decodeArray(KEY_BLOB_ARGS,
               KMByteBlob.cast(data[KEY_BLOB]).getBuffer(),
               KMByteBlob.cast(data[KEY_BLOB]).getStartOff(),
               KMByteBlob.cast(data[KEY_BLOB]).length());
@@ -3671,20 +3926,67 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
       data[SW_PARAMETERS] = KMKeyCharacteristics
               .cast(data[KEY_CHARACTERISTICS]).getSoftwareEnforced();
 
-      data[HIDDEN_PARAMETERS] = KMKeyParameters.makeHidden(data[APP_ID],
-              data[APP_DATA], data[ROT], scratchPad);
-      // make auth data
-      makeAuthData(scratchPad);
-      // Decrypt Secret and verify auth tag
-      decryptSecret(scratchPad);
+      // Look up the decrypted secret in the key blob cache.
+      short secretLen = 0;
+      if (cacheKey != KMType.INVALID_VALUE) {
+        secretLen = repository.readCachedKeyBlobSecret(repository.getHeap(), cacheKey,
+            scratchPad, (short) 0);
+      }
+      if (secretLen == KMByteBlob.cast(data[SECRET]).length()) {
+        data[SECRET] = KMByteBlob.instance(scratchPad, (short) 0, secretLen);
+      } else {
+        // make auth data
+        makeAuthData(scratchPad);
+        // Decrypt Secret and verify auth tag
+        decryptSecret(scratchPad);
+        if (cacheKey != KMType.INVALID_VALUE) {
+          repository.cacheKeyBlobSecret(repository.getHeap(), cacheKey,
+              KMByteBlob.cast(data[SECRET]).getBuffer(),
+              KMByteBlob.cast(data[SECRET]).getStartOff(),
+              KMByteBlob.cast(data[SECRET]).length());
+        }
+      }
     } catch (Exception e) {
       KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
   }
 
+  // The key blob cache key is made of the digest of the whole encoded key blob and the digest of
+  // the hidden parameters, so a cached secret is only returned for the same key blob, including
+  // its key characteristics, and the same application id, application data and root of trust.
+  // Returns KMType.INVALID_VALUE if the key blob cannot be cached.
+  private static short makeKeyBlobCacheKey(byte[] scratchPad) {
+    // Upper bound of the encoded hidden parameters i.e. array header followed by the
+    // root of trust, application id and application data byte blobs.
+    short len = (short) (KMByteBlob.cast(data[ROT]).length() + 12);
+    if (data[APP_ID] != KMType.INVALID_VALUE) {
+      len += KMByteBlob.cast(data[APP_ID]).length();
+    }
+    if (data[APP_DATA] != KMType.INVALID_VALUE) {
+      len += KMByteBlob.cast(data[APP_DATA]).length();
+    }
+    if (len < 0 || len > scratchPad.length) {
+      return KMType.INVALID_VALUE;
+    }
+    short key = repository.alloc(KMRepository.KEY_BLOB_CACHE_KEY_SIZE);
+    Util.arrayCopyNonAtomic(
+        KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getBuffer(),
+        KMByteBlob.cast(data[KEY_BLOB_DIGEST]).getStartOff(),
+        repository.getHeap(),
+        key,
+        KEY_BLOB_DIGEST_LENGTH);
+    len = encoder.encode(KMKeyParameters.cast(data[HIDDEN_PARAMETERS]).getVals(),
+        scratchPad, (short) 0);
+    seProvider.messageDigest256(scratchPad, (short) 0, len, repository.getHeap(),
+        (short) (key + KEY_BLOB_DIGEST_LENGTH));
+    return key;
+  }
+
   private static void decryptSecret(byte[] scratchPad) {
     // derive master key - stored in derivedKey
     tmpVariables[0] = deriveKey(scratchPad);
+    // The secret is decrypted in place, as the CRT secret of an RSA key does not fit in the
+    // scratch pad.
     if (!seProvider.aesGCMDecrypt(
         repository.getHeap(),
         data[DERIVED_KEY],
@@ -3692,8 +3994,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[SECRET]).getBuffer(),
         KMByteBlob.cast(data[SECRET]).getStartOff(),
         KMByteBlob.cast(data[SECRET]).length(),
-        scratchPad,
-        (short) 0,
+        KMByteBlob.cast(data[SECRET]).getBuffer(),
+        KMByteBlob.cast(data[SECRET]).getStartOff(),
         KMByteBlob.cast(data[NONCE]).getBuffer(),
         KMByteBlob.cast(data[NONCE]).getStartOff(),
         KMByteBlob.cast(data[NONCE]).length(),
@@ -3705,9 +4007,6 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[AUTH_TAG]).length())) {
       KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
-    // Copy the decrypted secret
-    data[SECRET] =
-        KMByteBlob.instance(scratchPad, (short) 0, KMByteBlob.cast(data[SECRET]).length());
   }
 
   private static void encryptSecret(byte[] scratchPad) {
@@ -3726,6 +4025,7 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
         KMByteBlob.cast(data[NONCE]).length());
     // derive master key - stored in derivedKey
     tmpVariables[0] = deriveKey(scratchPad);
+    // The secret is encrypted in place.
     tmpVariables[1] =
         seProvider.aesGCMEncrypt(
             repository.getHeap(),
@@ -3734,8 +4034,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             KMByteBlob.cast(data[SECRET]).getBuffer(),
             KMByteBlob.cast(data[SECRET]).getStartOff(),
             KMByteBlob.cast(data[SECRET]).length(),
-            scratchPad,
-            (short) 0,
+            KMByteBlob.cast(data[SECRET]).getBuffer(),
+            KMByteBlob.cast(data[SECRET]).getStartOff(),
             KMByteBlob.cast(data[NONCE]).getBuffer(),
             KMByteBlob.cast(data[NONCE]).getStartOff(),
             KMByteBlob.cast(data[NONCE]).length(),
@@ -3745,11 +4045,8 @@ public class KMKeymasterApplet extends Applet implements AppletEvent, ExtendedLe
             KMByteBlob.cast(data[AUTH_TAG]).getBuffer(),
             KMByteBlob.cast(data[AUTH_TAG]).getStartOff(),
             KMByteBlob.cast(data[AUTH_TAG]).length());
-    if (tmpVariables[1] > 0) {
-      if (tmpVariables[1] != KMByteBlob.cast(data[SECRET]).length()) {
-        KMException.throwIt(KMError.INVALID_KEY_BLOB);
-      }
-      KMByteBlob.cast(data[SECRET]).setValue(scratchPad, (short) 0, tmpVariables[1]);
+    if (tmpVariables[1] != KMByteBlob.cast(data[SECRET]).length()) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
   }
 
@@ -21,9 +21,10 @@ import javacard.framework.Util;
 
 /**
  * KMOperationState is the container of an active operation started by beginOperation function. This
- * operation state is persisted by the applet in non volatile memory. However, this state is not
- * retained if applet is upgraded. There will be four operation state records maintained i.e. only
- * four active operations are supported at any given time.
+ * operation state is kept by the applet in RAM, or in non volatile memory if configured at install
+ * time. However, this state is not retained if applet is upgraded. The number of operation state
+ * records is configured at install time, which limits the number of active operations at any
+ * given time.
  */
 public class KMOperationState {
 
@@ -70,6 +71,8 @@ public class KMOperationState {
     return prototype;
   }
 
+  // If the slot is null then the operation state is not backed by the repository, and it exists
+  // only till it is released.
   public static KMOperationState instance(short opHandle, Object[] slot) {
     KMOperationState opState = proto();
     opState.reset();
@@ -90,7 +93,7 @@ public class KMOperationState {
   }
 
   public void persist() {
-    if (!dFlag) {
+    if (!dFlag || slot == null) {
       return;
     }
     KMRepository.instance().persistOperation(data, Util.getShort(data, OP_HANDLE), op);
@@ -118,13 +121,20 @@ public class KMOperationState {
   }
 
   public void release() {
+    if (slot == null) {
+      if (op != null) {
+        op.abort();
+      }
+      reset();
+      return;
+    }
     Object[] ops = ((Object[]) slot[REFS]);
     ((KMOperation) ops[OPERATION]).abort();
-    JCSystem.beginTransaction();
+    // The operation handle is already released, so the operation state can be cleared
+    // without a transaction.
     Util.arrayFillNonAtomic(
-        (byte[]) slot[0], (short) 0, (short) ((byte[]) slot[0]).length, (byte) 0);
+        (byte[]) slot[DATA], (short) 0, (short) ((byte[]) slot[DATA]).length, (byte) 0);
     ops[OPERATION] = null;
-    JCSystem.commitTransaction();
     reset();
   }
 
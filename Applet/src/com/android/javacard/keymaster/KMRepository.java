@@ -79,17 +79,50 @@ public class KMRepository implements KMUpgradable {
   public static final short DEVICE_LOCK_TS_SIZE = 8;
   public static final short DEVICE_LOCK_FLAG_SIZE = 1;
   public static final short BOOT_STATE_SIZE = 1;
-  public static final short MAX_OPS = 4;
+  // Number of operation slots, unless configured in the install parameters.
+  public static final short DEFAULT_MAX_OPS = 4;
+  public static final short MAX_OPS_LIMIT = 32;
   public static final byte BOOT_KEY_MAX_SIZE = 32;
   public static final byte BOOT_HASH_MAX_SIZE = 32;
 
+  // Key blob cache configuration
+  // Each entry holds the key (SHA-256 of the whole key blob followed by SHA-256 of the encoded
+  // hidden parameters) followed by the length of the decrypted secret and the decrypted secret
+  // itself.
+  public static final byte KEY_BLOB_CACHE_ENTRIES = 4;
+  public static final short KEY_BLOB_CACHE_KEY_SIZE = 64; /* 32 + 32 bytes */
+  // Larger secrets are never cached, i.e. the 640 byte RSA CRT secrets are deliberately always
+  // decrypted from the key blob, so that the cache stays small.
+  public static final short KEY_BLOB_CACHE_SECRET_SIZE = 256;
+  private static final short KEY_BLOB_CACHE_SECRET_LEN_OFFSET = KEY_BLOB_CACHE_KEY_SIZE;
+  private static final short KEY_BLOB_CACHE_SECRET_OFFSET = KEY_BLOB_CACHE_KEY_SIZE + 2;
+  private static final short KEY_BLOB_CACHE_ENTRY_SIZE =
+      KEY_BLOB_CACHE_SECRET_OFFSET + KEY_BLOB_CACHE_SECRET_SIZE;
+
+  // Heap usage marks
+  // Start of the memory handed out by allocAvailableMemory.
+  private static final byte AVAILABLE_MEMORY_START = 0;
+  // Largest number of bytes used from the back of the heap since the last clean.
+  private static final byte RECLAIM_WATERMARK = 1;
+  // End of the front of the heap which is not scrubbed yet, in deferred scrub mode.
+  private static final byte DIRTY_HEAP_END = 2;
+  // Number of bytes at the back of the heap which are not scrubbed yet, in deferred scrub mode.
+  private static final byte DIRTY_RECLAIM_LENGTH = 3;
+  private static final byte HEAP_MARKS_SIZE = 4;
+
   // Class Attributes
   private Object[] operationStateTable;
+  private boolean persistentOperations;
   private byte[] heap;
   private short heapIndex;
+  private short[] heapMarks;
+  private boolean deferredHeapScrub;
   private byte[] dataTable;
   private short dataIndex;
   private short reclaimIndex;
+  private byte[] keyBlobCache;
+  // Last access tick of each key blob cache entry followed by the current tick.
+  private short[] keyBlobCacheTicks;
 
   // Singleton instance
   private static KMRepository repository;
@@ -98,19 +131,30 @@ public class KMRepository implements KMUpgradable {
     return repository;
   }
 
-  public KMRepository(boolean isUpgrading) {
+  public KMRepository(boolean isUpgrading, short maxOps, boolean persistentOps,
+      boolean deferredScrub) {
+    if (maxOps <= 0 || maxOps > MAX_OPS_LIMIT) {
+      ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+    }
+    persistentOperations = persistentOps;
+    deferredHeapScrub = deferredScrub;
     newDataTable(isUpgrading);
     heap = JCSystem.makeTransientByteArray(HEAP_SIZE, JCSystem.CLEAR_ON_RESET);
     heapIndex = 0;
     reclaimIndex = HEAP_SIZE;
-    operationStateTable = new Object[MAX_OPS];
+    heapMarks = JCSystem.makeTransientShortArray(HEAP_MARKS_SIZE, JCSystem.CLEAR_ON_RESET);
+    keyBlobCache = JCSystem.makeTransientByteArray(
+        (short) (KEY_BLOB_CACHE_ENTRIES * KEY_BLOB_CACHE_ENTRY_SIZE), JCSystem.CLEAR_ON_RESET);
+    keyBlobCacheTicks = JCSystem.makeTransientShortArray(
+        (short) (KEY_BLOB_CACHE_ENTRIES + 1), JCSystem.CLEAR_ON_RESET);
+    operationStateTable = new Object[maxOps];
     // create and initialize operation state table.
     //First byte in the operation handle buffer denotes whether the operation is
     //reserved or unreserved.
     byte index = 0;
-    while (index < MAX_OPS) {
-      operationStateTable[index] = new Object[]{new byte[OPERATION_HANDLE_ENTRY_SIZE],
-          new Object[]{new byte[KMOperationState.MAX_DATA],
+    while (index < maxOps) {
+      operationStateTable[index] = new Object[]{newOperationBuffer(OPERATION_HANDLE_ENTRY_SIZE),
+          new Object[]{newOperationBuffer(KMOperationState.MAX_DATA),
               new Object[KMOperationState.MAX_REFS]}};
       index++;
     }
@@ -129,20 +173,75 @@ public class KMRepository implements KMUpgradable {
     KMInteger.cast(oprHandle).getValue(buf, off, len);
   }
 
-  public KMOperationState findOperation(byte[] buf, short off, short len) {
+  // The operation handle and the operation state are kept in RAM, unless configured otherwise,
+  // so that begin, update and finish do not write to persistent memory. The operation
+  // references are always persistent, so that the operations which are lost on reset are still
+  // aborted by releaseAllOperations.
+  private byte[] newOperationBuffer(short len) {
+    if (persistentOperations) {
+      return new byte[len];
+    }
+    return JCSystem.makeTransientByteArray(len, JCSystem.CLEAR_ON_RESET);
+  }
+
+  private void beginOperationTransaction() {
+    if (persistentOperations) {
+      JCSystem.beginTransaction();
+    }
+  }
+
+  private void commitOperationTransaction() {
+    if (persistentOperations) {
+      JCSystem.commitTransaction();
+    }
+  }
+
+  // The last two bytes of the operation handle hold the index of the operation slot. Returns
+  // KMType.INVALID_VALUE if the handle does not refer to an operation slot.
+  private short getOperationSlot(byte[] buf, short off, short len) {
+    if (len != OPERATION_HANDLE_SIZE) {
+      return KMType.INVALID_VALUE;
+    }
+    short index = Util.getShort(buf, (short) (off + len - 2));
+    if (index < 0 || index >= (short) operationStateTable.length) {
+      return KMType.INVALID_VALUE;
+    }
+    return index;
+  }
+
+  // Returns the index of an unreserved operation slot or KMType.INVALID_VALUE if all the
+  // operation slots are in use.
+  public short getFreeOperationSlot() {
     short index = 0;
+    short len = (short) operationStateTable.length;
     byte[] opId;
-    while (index < MAX_OPS) {
-      opId = ((byte[]) ((Object[]) operationStateTable[index])[0]);
-      if (0 == Util.arrayCompare(buf, off, opId, OPERATION_HANDLE_OFFSET, len)) {
-        return KMOperationState
-            .read(opId, OPERATION_HANDLE_OFFSET,
-                (Object[]) ((Object[]) operationStateTable[index])[1]);
+    while (index < len) {
+      opId = (byte[]) ((Object[]) operationStateTable[index])[0];
+      if (opId[OPERATION_HANDLE_STATUS_OFFSET] == 0) {
+        return index;
       }
       index++;
     }
+    return KMType.INVALID_VALUE;
+  }
+
+  private boolean isOperationReserved(byte[] opId, byte[] buf, short off, short len) {
+    return (1 == opId[OPERATION_HANDLE_STATUS_OFFSET])
+        && (0 == Util.arrayCompare(opId, OPERATION_HANDLE_OFFSET, buf, off, len));
+  }
 
-    return null;
+  public KMOperationState findOperation(byte[] buf, short off, short len) {
+    short index = getOperationSlot(buf, off, len);
+    if (index == KMType.INVALID_VALUE) {
+      return null;
+    }
+    byte[] opId = ((byte[]) ((Object[]) operationStateTable[index])[0]);
+    if (!isOperationReserved(opId, buf, off, len)) {
+      return null;
+    }
+    return KMOperationState
+        .read(opId, OPERATION_HANDLE_OFFSET,
+            (Object[]) ((Object[]) operationStateTable[index])[1]);
   }
 
   /* operationHandle is a KMInteger */
@@ -161,123 +260,204 @@ public class KMRepository implements KMUpgradable {
 
   /* opHandle is a KMInteger */
   public KMOperationState reserveOperation(short opHandle) {
-    short index = 0;
-    byte[] opId;
-    while (index < MAX_OPS) {
-      opId = (byte[]) ((Object[]) operationStateTable[index])[0];
-      /* Check for unreserved operation state */
-      if (opId[OPERATION_HANDLE_STATUS_OFFSET] == 0) {
-        return KMOperationState
-            .instance(opHandle, (Object[]) ((Object[]) operationStateTable[index])[1]);
-      }
-      index++;
+    short buf = KMByteBlob.instance(OPERATION_HANDLE_SIZE);
+    getOperationHandle(
+        opHandle,
+        KMByteBlob.cast(buf).getBuffer(),
+        KMByteBlob.cast(buf).getStartOff(),
+        KMByteBlob.cast(buf).length());
+    short index = getOperationSlot(
+        KMByteBlob.cast(buf).getBuffer(),
+        KMByteBlob.cast(buf).getStartOff(),
+        KMByteBlob.cast(buf).length());
+    if (index == KMType.INVALID_VALUE) {
+      return null;
+    }
+    byte[] opId = (byte[]) ((Object[]) operationStateTable[index])[0];
+    /* Check for unreserved operation state */
+    if (opId[OPERATION_HANDLE_STATUS_OFFSET] != 0) {
+      return null;
     }
-    return null;
+    return KMOperationState
+        .instance(opHandle, (Object[]) ((Object[]) operationStateTable[index])[1]);
   }
 
   public void persistOperation(byte[] data, short opHandle, KMOperation op) {
-    short index = 0;
-    byte[] opId;
     short buf = KMByteBlob.instance(OPERATION_HANDLE_SIZE);
     getOperationHandle(
         opHandle,
         KMByteBlob.cast(buf).getBuffer(),
         KMByteBlob.cast(buf).getStartOff(),
         KMByteBlob.cast(buf).length());
-    //Update an existing operation state.
-    while (index < MAX_OPS) {
-      opId = (byte[]) ((Object[]) operationStateTable[index])[0];
-      if ((1 == opId[OPERATION_HANDLE_STATUS_OFFSET])
-          && (0 == Util.arrayCompare(
-          opId,
-          OPERATION_HANDLE_OFFSET,
-          KMByteBlob.cast(buf).getBuffer(),
-          KMByteBlob.cast(buf).getStartOff(),
-          KMByteBlob.cast(buf).length()))) {
-        Object[] slot = (Object[]) ((Object[]) operationStateTable[index])[1];
-        JCSystem.beginTransaction();
-        Util.arrayCopy(data, (short) 0, (byte[]) slot[0], (short) 0,
-            (short) ((byte[]) slot[0]).length);
-        Object[] ops = ((Object[]) slot[1]);
+    short index = getOperationSlot(
+        KMByteBlob.cast(buf).getBuffer(),
+        KMByteBlob.cast(buf).getStartOff(),
+        KMByteBlob.cast(buf).length());
+    if (index == KMType.INVALID_VALUE) {
+      return;
+    }
+    byte[] opId = (byte[]) ((Object[]) operationStateTable[index])[0];
+    Object[] slot = (Object[]) ((Object[]) operationStateTable[index])[1];
+    if (isOperationReserved(opId,
+        KMByteBlob.cast(buf).getBuffer(),
+        KMByteBlob.cast(buf).getStartOff(),
+        KMByteBlob.cast(buf).length())) {
+      //Update an existing operation state.
+      beginOperationTransaction();
+      Util.arrayCopy(data, (short) 0, (byte[]) slot[0], (short) 0,
+          (short) ((byte[]) slot[0]).length);
+      Object[] ops = ((Object[]) slot[1]);
+      if (ops[0] != op) {
         ops[0] = op;
-        JCSystem.commitTransaction();
-        return;
       }
-      index++;
-    }
-
-    index = 0;
-    //Persist a new operation.
-    while (index < MAX_OPS) {
-      opId = (byte[]) ((Object[]) operationStateTable[index])[0];
-      if (0 == opId[OPERATION_HANDLE_STATUS_OFFSET]) {
-        Object[] slot = (Object[]) ((Object[]) operationStateTable[index])[1];
-        JCSystem.beginTransaction();
-        opId[OPERATION_HANDLE_STATUS_OFFSET] = 1;/*reserved */
-        Util.arrayCopy(
-            KMByteBlob.cast(buf).getBuffer(),
-            KMByteBlob.cast(buf).getStartOff(),
-            opId,
-            OPERATION_HANDLE_OFFSET,
-            OPERATION_HANDLE_SIZE);
-        Util.arrayCopy(data, (short) 0, (byte[]) slot[0], (short) 0,
-            (short) ((byte[]) slot[0]).length);
-        Object[] ops = ((Object[]) slot[1]);
+      commitOperationTransaction();
+    } else if (0 == opId[OPERATION_HANDLE_STATUS_OFFSET]) {
+      Object[] ops = ((Object[]) slot[1]);
+      if (ops[0] != null && ops[0] != op) {
+        // Operation lost on reset, which is not yet released.
+        ((KMOperation) ops[0]).abort();
+      }
+      //Persist a new operation.
+      beginOperationTransaction();
+      opId[OPERATION_HANDLE_STATUS_OFFSET] = 1;/*reserved */
+      Util.arrayCopy(
+          KMByteBlob.cast(buf).getBuffer(),
+          KMByteBlob.cast(buf).getStartOff(),
+          opId,
+          OPERATION_HANDLE_OFFSET,
+          OPERATION_HANDLE_SIZE);
+      Util.arrayCopy(data, (short) 0, (byte[]) slot[0], (short) 0,
+          (short) ((byte[]) slot[0]).length);
+      if (ops[0] != op) {
         ops[0] = op;
-        JCSystem.commitTransaction();
-        break;
       }
-      index++;
+      commitOperationTransaction();
     }
   }
 
   public void releaseOperation(KMOperationState op) {
-    short index = 0;
-    byte[] oprHandleBuf;
     short buf = KMByteBlob.instance(OPERATION_HANDLE_SIZE);
     getOperationHandle(
         op.getHandle(),
         KMByteBlob.cast(buf).getBuffer(),
         KMByteBlob.cast(buf).getStartOff(),
         KMByteBlob.cast(buf).length());
-    while (index < MAX_OPS) {
-      oprHandleBuf = ((byte[]) ((Object[]) operationStateTable[index])[0]);
-      if ((oprHandleBuf[OPERATION_HANDLE_STATUS_OFFSET] == 1) &&
-          (0 == Util.arrayCompare(oprHandleBuf,
-              OPERATION_HANDLE_OFFSET,
-              KMByteBlob.cast(buf).getBuffer(),
-              KMByteBlob.cast(buf).getStartOff(),
-              KMByteBlob.cast(buf).length()))) {
-        JCSystem.beginTransaction();
-        Util.arrayFillNonAtomic(oprHandleBuf, (short) 0, (short) oprHandleBuf.length, (byte) 0);
-        JCSystem.commitTransaction();
-        op.release();
-        break;
-      }
-      index++;
+    short index = getOperationSlot(
+        KMByteBlob.cast(buf).getBuffer(),
+        KMByteBlob.cast(buf).getStartOff(),
+        KMByteBlob.cast(buf).length());
+    if (index == KMType.INVALID_VALUE) {
+      return;
+    }
+    byte[] oprHandleBuf = ((byte[]) ((Object[]) operationStateTable[index])[0]);
+    if (isOperationReserved(oprHandleBuf,
+        KMByteBlob.cast(buf).getBuffer(),
+        KMByteBlob.cast(buf).getStartOff(),
+        KMByteBlob.cast(buf).length())) {
+      beginOperationTransaction();
+      Util.arrayFillNonAtomic(oprHandleBuf, (short) 0, (short) oprHandleBuf.length, (byte) 0);
+      commitOperationTransaction();
+      op.release();
     }
   }
 
   public void releaseAllOperations() {
     short index = 0;
+    short len = (short) operationStateTable.length;
     byte[] oprHandleBuf;
-    while (index < MAX_OPS) {
+    while (index < len) {
       oprHandleBuf = ((byte[]) ((Object[]) operationStateTable[index])[0]);
-      if (oprHandleBuf[OPERATION_HANDLE_STATUS_OFFSET] == 1) {
-        Object[] slot = (Object[]) ((Object[]) operationStateTable[index])[1];
-        Object[] ops = ((Object[]) slot[1]);
-        ((KMOperation) ops[0]).abort();
-        JCSystem.beginTransaction();
+      Object[] slot = (Object[]) ((Object[]) operationStateTable[index])[1];
+      Object[] ops = ((Object[]) slot[1]);
+      // Operation reference is also checked as the operation state in RAM is lost on reset.
+      if (oprHandleBuf[OPERATION_HANDLE_STATUS_OFFSET] == 1 || ops[0] != null) {
+        if (ops[0] != null) {
+          ((KMOperation) ops[0]).abort();
+        }
+        beginOperationTransaction();
         Util.arrayFillNonAtomic((byte[]) slot[0], (short) 0,
                 (short) ((byte[]) slot[0]).length, (byte) 0);
         Util.arrayFillNonAtomic(oprHandleBuf, (short) 0, (short) oprHandleBuf.length, (byte) 0);
+        commitOperationTransaction();
         ops[0] = null;
-        JCSystem.commitTransaction();
       }
       index++;
     }
   }
 
+  // Returns the length of the cached decrypted secret copied into buf, or 0 if the key is not
+  // present in the key blob cache.
+  public short readCachedKeyBlobSecret(byte[] key, short keyOff, byte[] buf, short off) {
+    short index = 0;
+    short entry;
+    short len;
+    while (index < KEY_BLOB_CACHE_ENTRIES) {
+      entry = (short) (index * KEY_BLOB_CACHE_ENTRY_SIZE);
+      len = Util.getShort(keyBlobCache, (short) (entry + KEY_BLOB_CACHE_SECRET_LEN_OFFSET));
+      if ((len != 0)
+          && (0 == Util.arrayCompare(keyBlobCache, entry, key, keyOff, KEY_BLOB_CACHE_KEY_SIZE))) {
+        Util.arrayCopyNonAtomic(keyBlobCache, (short) (entry + KEY_BLOB_CACHE_SECRET_OFFSET),
+            buf, off, len);
+        touchKeyBlobCacheEntry(index);
+        return len;
+      }
+      index++;
+    }
+    return 0;
+  }
+
+  // Adds the decrypted secret to the key blob cache. If the cache is full then the least
+  // recently used entry is replaced.
+  public void cacheKeyBlobSecret(byte[] key, short keyOff, byte[] secret, short off, short len) {
+    if (len <= 0 || len > KEY_BLOB_CACHE_SECRET_SIZE) {
+      return;
+    }
+    short index = 0;
+    short victim = 0;
+    while (index < KEY_BLOB_CACHE_ENTRIES) {
+      if (0 == Util.getShort(keyBlobCache,
+          (short) (index * KEY_BLOB_CACHE_ENTRY_SIZE + KEY_BLOB_CACHE_SECRET_LEN_OFFSET))) {
+        victim = index;
+        break;
+      }
+      if (keyBlobCacheTicks[index] < keyBlobCacheTicks[victim]) {
+        victim = index;
+      }
+      index++;
+    }
+    short entry = (short) (victim * KEY_BLOB_CACHE_ENTRY_SIZE);
+    Util.arrayFillNonAtomic(keyBlobCache, entry, KEY_BLOB_CACHE_ENTRY_SIZE, (byte) 0);
+    Util.arrayCopyNonAtomic(key, keyOff, keyBlobCache, entry, KEY_BLOB_CACHE_KEY_SIZE);
+    Util.arrayCopyNonAtomic(secret, off, keyBlobCache,
+        (short) (entry + KEY_BLOB_CACHE_SECRET_OFFSET), len);
+    Util.setShort(keyBlobCache, (short) (entry + KEY_BLOB_CACHE_SECRET_LEN_OFFSET), len);
+    touchKeyBlobCacheEntry(victim);
+  }
+
+  // Clears all the decrypted secrets. This must be called whenever the root of trust or the
+  // device lock state changes.
+  public void clearKeyBlobCache() {
+    Util.arrayFillNonAtomic(keyBlobCache, (short) 0, (short) keyBlobCache.length, (byte) 0);
+    resetKeyBlobCacheTicks();
+  }
+
+  private void resetKeyBlobCacheTicks() {
+    short index = 0;
+    while (index <= KEY_BLOB_CACHE_ENTRIES) {
+      keyBlobCacheTicks[index] = 0;
+      index++;
+    }
+  }
+
+  private void touchKeyBlobCacheEntry(short index) {
+    if (keyBlobCacheTicks[KEY_BLOB_CACHE_ENTRIES] == Short.MAX_VALUE) {
+      // Restart the ticks, relative order of the entries is lost.
+      resetKeyBlobCacheTicks();
+    }
+    keyBlobCacheTicks[KEY_BLOB_CACHE_ENTRIES]++;
+    keyBlobCacheTicks[index] = keyBlobCacheTicks[KEY_BLOB_CACHE_ENTRIES];
+  }
+
   public void initComputedHmac(byte[] key, short start, short len) {
     if (len != COMPUTED_HMAC_KEY_SIZE) {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
@@ -308,13 +488,39 @@ public class KMRepository implements KMUpgradable {
   public void onProcess() {
   }
 
+  // Only the part of the heap which is used by the command is scrubbed i.e. the front of the
+  // heap till the heap index and the back of the heap till the reclaim watermark. In deferred
+  // scrub mode the used part is only marked as dirty here, and it is scrubbed when it is
+  // allocated again or when the applet is deselected.
   public void clean() {
-    Util.arrayFillNonAtomic(heap, (short) 0, heapIndex, (byte) 0);
+    short reclaimStart = (short) (HEAP_SIZE - heapMarks[RECLAIM_WATERMARK]);
+    if (deferredHeapScrub) {
+      if (heapIndex > heapMarks[DIRTY_HEAP_END]) {
+        heapMarks[DIRTY_HEAP_END] = heapIndex;
+      }
+      if (heapMarks[RECLAIM_WATERMARK] > heapMarks[DIRTY_RECLAIM_LENGTH]) {
+        heapMarks[DIRTY_RECLAIM_LENGTH] = heapMarks[RECLAIM_WATERMARK];
+      }
+    } else {
+      Util.arrayFillNonAtomic(heap, (short) 0, heapIndex, (byte) 0);
+      if (reclaimStart < heapIndex) {
+        reclaimStart = heapIndex;
+      }
+      if (reclaimStart < HEAP_SIZE) {
+        Util.arrayFillNonAtomic(heap, reclaimStart, (short) (HEAP_SIZE - reclaimStart), (byte) 0);
+      }
+    }
+    heapMarks[RECLAIM_WATERMARK] = 0;
     heapIndex = 0;
     reclaimIndex = HEAP_SIZE;
   }
 
   public void onDeselect() {
+    if (deferredHeapScrub) {
+      scrubDirtyMemory((short) 0, HEAP_SIZE);
+      heapMarks[DIRTY_HEAP_END] = 0;
+      heapMarks[DIRTY_RECLAIM_LENGTH] = 0;
+    }
   }
 
   public void onSelect() {
@@ -329,6 +535,9 @@ public class KMRepository implements KMUpgradable {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
     reclaimIndex -= length;
+    if (((short) (HEAP_SIZE - reclaimIndex)) > heapMarks[RECLAIM_WATERMARK]) {
+      heapMarks[RECLAIM_WATERMARK] = (short) (HEAP_SIZE - reclaimIndex);
+    }
     return reclaimIndex;
   }
 
@@ -340,24 +549,75 @@ public class KMRepository implements KMUpgradable {
     reclaimIndex += length;
   }
 
+  // The memory returned by this function is not scrubbed in deferred scrub mode, so it must be
+  // written before it is read. The memory at the back which is not yet reclaimed is excluded.
   public short allocAvailableMemory() {
-    if (heapIndex >= heap.length) {
+    if (heapIndex >= reclaimIndex) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
     short index = heapIndex;
-    heapIndex = (short) heap.length;
+    heapIndex = reclaimIndex;
+    heapMarks[AVAILABLE_MEMORY_START] = index;
     return index;
   }
 
+  // Returns the end of the memory returned by allocAvailableMemory.
+  public short getAvailableMemoryEnd() {
+    return reclaimIndex;
+  }
+
+  // Gives back the unused part of the memory returned by allocAvailableMemory, so that clean
+  // does not scrub it. The used part is either at the start of the memory, or towards its end if
+  // the data was encoded backwards, in which case the memory from the start of the used part till
+  // the end is kept as reclaimable memory.
+  public void trimAvailableMemory(short start, short length) {
+    short availableStart = heapMarks[AVAILABLE_MEMORY_START];
+    if ((heapIndex != reclaimIndex) || (start < availableStart)
+        || (((short) (start + length)) > reclaimIndex)) {
+      return;
+    }
+    if (start == availableStart) {
+      heapIndex = (short) (start + length);
+    } else {
+      heapIndex = availableStart;
+      reclaimIndex = start;
+      if (((short) (HEAP_SIZE - reclaimIndex)) > heapMarks[RECLAIM_WATERMARK]) {
+        heapMarks[RECLAIM_WATERMARK] = (short) (HEAP_SIZE - reclaimIndex);
+      }
+    }
+  }
+
   public short alloc(short length) {
     if ((((short) (heapIndex + length)) > heap.length) ||
         (((short) (heapIndex + length)) > reclaimIndex)) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
+    if (deferredHeapScrub) {
+      scrubDirtyMemory(heapIndex, length);
+    }
     heapIndex += length;
     return (short) (heapIndex - length);
   }
 
+  // Zeroes the part of the given heap range which is marked as dirty by clean.
+  private void scrubDirtyMemory(short start, short length) {
+    short end = (short) (start + length);
+    short dirty = heapMarks[DIRTY_HEAP_END];
+    if (start < dirty) {
+      if (end < dirty) {
+        dirty = end;
+      }
+      Util.arrayFillNonAtomic(heap, start, (short) (dirty - start), (byte) 0);
+    }
+    dirty = (short) (HEAP_SIZE - heapMarks[DIRTY_RECLAIM_LENGTH]);
+    if ((end > dirty) && (start < HEAP_SIZE)) {
+      if (start > dirty) {
+        dirty = start;
+      }
+      Util.arrayFillNonAtomic(heap, dirty, (short) (end - dirty), (byte) 0);
+    }
+  }
+
   private short dataAlloc(short length) {
     if (((short) (dataIndex + length)) > dataTable.length) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
@@ -366,6 +626,55 @@ public class KMRepository implements KMUpgradable {
     return (short) (dataIndex - length);
   }
 
+  // The data of the entries is appended to the data table, so the data of an entry whose size
+  // changes leaves dead space behind. This function moves the data of the entries down to remove
+  // the dead space. Each entry is moved together with its index entry in a transaction, and the
+  // data index is reduced only after all the entries are moved, so the table stays consistent if
+  // the compaction is torn. It is called on every boot from setBootParams, and when an entry does
+  // not fit.
+  public void compactDataTable() {
+    short cursor = (short) (DATA_INDEX_SIZE * DATA_INDEX_ENTRY_SIZE);
+    short entry;
+    short len;
+    short ptr;
+    short next;
+    short nextPtr;
+    while (true) {
+      // Find the entry with the lowest data offset which is not compacted yet.
+      next = -1;
+      nextPtr = dataIndex;
+      entry = 0;
+      while (entry < DATA_INDEX_SIZE) {
+        len = Util.getShort(dataTable,
+            (short) (entry * DATA_INDEX_ENTRY_SIZE + DATA_INDEX_ENTRY_LENGTH));
+        ptr = Util.getShort(dataTable,
+            (short) (entry * DATA_INDEX_ENTRY_SIZE + DATA_INDEX_ENTRY_OFFSET));
+        if ((len != 0) && (ptr >= cursor) && (ptr < nextPtr)) {
+          next = entry;
+          nextPtr = ptr;
+        }
+        entry++;
+      }
+      if (next < 0) {
+        break;
+      }
+      next = (short) (next * DATA_INDEX_ENTRY_SIZE);
+      len = Util.getShort(dataTable, (short) (next + DATA_INDEX_ENTRY_LENGTH));
+      if (nextPtr != cursor) {
+        JCSystem.beginTransaction();
+        Util.arrayCopy(dataTable, nextPtr, dataTable, cursor, len);
+        Util.setShort(dataTable, (short) (next + DATA_INDEX_ENTRY_OFFSET), cursor);
+        JCSystem.commitTransaction();
+      }
+      cursor += len;
+    }
+    if (cursor < dataIndex) {
+      len = dataIndex;
+      dataIndex = cursor;
+      Util.arrayFillNonAtomic(dataTable, cursor, (short) (len - cursor), (byte) 0);
+    }
+  }
+
 
   private void newDataTable(boolean isUpgrading) {
     if (!isUpgrading) {
@@ -402,23 +711,35 @@ public class KMRepository implements KMUpgradable {
   }
 
   private void writeDataEntry(short id, byte[] buf, short offset, short len) {
-    JCSystem.beginTransaction();
-    short dataPtr;
     id = (short) (id * DATA_INDEX_ENTRY_SIZE);
     short dataLen = Util.getShort(dataTable, (short) (id + DATA_INDEX_ENTRY_LENGTH));
-    if (dataLen == 0) {
-      dataPtr = dataAlloc(len);
-      Util.setShort(dataTable, (short) (id + DATA_INDEX_ENTRY_OFFSET), dataPtr);
-      Util.setShort(dataTable, (short) (id + DATA_INDEX_ENTRY_LENGTH), len);
-      Util.arrayCopyNonAtomic(buf, offset, dataTable, dataPtr, len);
-    } else {
-      if (len != dataLen) {
-        KMException.throwIt(KMError.UNKNOWN_ERROR);
+    short dataPtr = Util.getShort(dataTable, (short) (id + DATA_INDEX_ENTRY_OFFSET));
+    if (len == dataLen) {
+      // Nothing is written if the entry already holds the same data.
+      if (Util.arrayCompare(buf, offset, dataTable, dataPtr, len) == 0) {
+        return;
       }
-      dataPtr = Util.getShort(dataTable, (short) (id + DATA_INDEX_ENTRY_OFFSET));
+      JCSystem.beginTransaction();
       Util.arrayCopyNonAtomic(buf, offset, dataTable, dataPtr, len);
+      JCSystem.commitTransaction();
+      return;
+    }
+    // The entry is new or its size changes, so the data is appended to the table and the index
+    // entry is switched to it. The previous data becomes dead space, which is removed by
+    // compactDataTable.
+    if (((short) (dataIndex + len)) > dataTable.length) {
+      compactDataTable();
+      dataPtr = Util.getShort(dataTable, (short) (id + DATA_INDEX_ENTRY_OFFSET));
     }
+    JCSystem.beginTransaction();
+    short newPtr = dataAlloc(len);
+    Util.arrayCopyNonAtomic(buf, offset, dataTable, newPtr, len);
+    Util.setShort(dataTable, (short) (id + DATA_INDEX_ENTRY_OFFSET), newPtr);
+    Util.setShort(dataTable, (short) (id + DATA_INDEX_ENTRY_LENGTH), len);
     JCSystem.commitTransaction();
+    if (dataLen != 0) {
+      Util.arrayFillNonAtomic(dataTable, dataPtr, dataLen, (byte) 0);
+    }
   }
 
   private short readDataEntry(short id, byte[] buf, short offset) {
@@ -644,6 +965,7 @@ public class KMRepository implements KMUpgradable {
       (getHeap())[start] = (byte) ((getHeap())[start] & 0xFE);
     }
     writeDataEntry(BOOT_DEVICE_LOCKED_STATUS, getHeap(), start, DEVICE_LOCK_FLAG_SIZE);
+    clearKeyBlobCache();
   }
 
   public void setDeviceLock(boolean flag) {
@@ -654,6 +976,7 @@ public class KMRepository implements KMUpgradable {
       (getHeap())[start] = (byte) ((getHeap())[start] & 0xFE);
     }
     writeDataEntry(DEVICE_LOCKED, getHeap(), start, DEVICE_LOCK_FLAG_SIZE);
+    clearKeyBlobCache();
   }
 
   public void setDeviceLockPasswordOnly(boolean flag) {
@@ -689,6 +1012,7 @@ public class KMRepository implements KMUpgradable {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     writeDataEntry(BOOT_VERIFIED_BOOT_KEY, buf, start, len);
+    clearKeyBlobCache();
   }
 
 
@@ -697,12 +1021,14 @@ public class KMRepository implements KMUpgradable {
       KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
     }
     writeDataEntry(BOOT_VERIFIED_BOOT_HASH, buf, start, len);
+    clearKeyBlobCache();
   }
 
   public void setBootState(byte state) {
     short start = alloc(BOOT_STATE_SIZE);
     (getHeap())[start] = state;
     writeDataEntry(BOOT_VERIFIED_BOOT_STATE, getHeap(), start, BOOT_STATE_SIZE);
+    clearKeyBlobCache();
   }
 
   @Override
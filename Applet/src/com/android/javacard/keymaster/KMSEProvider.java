@@ -44,8 +44,8 @@ public interface KMSEProvider extends KMUpgradable {
    * key pair must be 2048 bits and key size of EC key pair must be for p256 curve.
    *
    * @param alg will be KMType.RSA or KMType.EC.
-   * @param privKeyBuf is the buffer to return the private key exponent in case of RSA or private
-   * key in case of EC.
+   * @param privKeyBuf is the buffer to return the CRT components P, Q, DP1, DQ1 and PQ of the
+   * private key in case of RSA, each zero padded to 128 bytes, or private key in case of EC.
    * @param privKeyStart is the start offset.
    * @param privKeyMaxLength is the maximum length of this private key buffer.
    * @param pubModBuf is the buffer to return the modulus in case of RSA or public key in case of
@@ -288,6 +288,23 @@ public interface KMSEProvider extends KMUpgradable {
       byte[] signature,
       short signatureStart);
 
+  /**
+   * This is a oneshot operation that computes the SHA-256 digest of the data.
+   *
+   * @param data is the buffer containing data to be hashed.
+   * @param dataStart is the start of the data.
+   * @param dataLength is the length of the data.
+   * @param digest is the output digest buffer.
+   * @param digestStart is the start of the digest buffer.
+   * @return length of the digest in bytes.
+   */
+  short messageDigest256(
+      byte[] data,
+      short dataStart,
+      short dataLength,
+      byte[] digest,
+      short digestStart);
+
   /**
    * This is a oneshot operation that verifies the signature using hmac algorithm.
    *
@@ -318,7 +335,8 @@ public interface KMSEProvider extends KMUpgradable {
    * The public exponent is always 0x010001. It throws CryptoException if OAEP encoding validation
    * fails.
    *
-   * @param privExp is the private exponent (2048 bit) buffer.
+   * @param privExp is the private exponent (2048 bit) buffer or, if it is 640 bytes long, the CRT
+   * components of the private key as returned by createAsymmetricKey.
    * @param privExpStart is the start of the private exponent buffer.
    * @param privExpLength is the length of the private exponent buffer in bytes.
    * @param modBuffer is the modulus (2048 bit) buffer.
@@ -329,6 +347,9 @@ public interface KMSEProvider extends KMUpgradable {
    * @param inputDataLength is the length of the input data buffer in bytes.
    * @param outputDataBuf is the output buffer that contains the decrypted data.
    * @param outputDataStart is the start of the output data buffer.
+   * @param keyIdBuf is the buffer of the 32 bytes digest of the key blob, which identifies the
+   * private key without revealing it, so that its key object can be re-used. It can be null.
+   * @param keyIdStart is the start of the key id buffer.
    * @return length of the decrypted data.
    */
   short rsaDecipherOAEP256(
@@ -342,7 +363,9 @@ public interface KMSEProvider extends KMUpgradable {
       short inputDataStart,
       short inputDataLength,
       byte[] outputDataBuf,
-      short outputDataStart);
+      short outputDataStart,
+      byte[] keyIdBuf,
+      short keyIdStart);
 
   /**
    * This is a oneshot operation that signs the data using EC private key.
@@ -384,6 +407,9 @@ public interface KMSEProvider extends KMUpgradable {
    * @param ivLength is the length of the iv buffer. It will be zero in case of HMAC and AES/DES
    * with ECB mode.
    * @param macLength is the mac length in case of signing operation for hmac algorithm.
+   * @param keyIdBuf is the buffer of the 32 bytes digest of the key blob, which identifies the
+   * key without revealing it, so that its key object can be re-used. It can be null.
+   * @param keyIdStart is the start of the key id buffer.
    * @return KMOperation instance.
    */
   KMOperation initSymmetricOperation(
@@ -398,7 +424,9 @@ public interface KMSEProvider extends KMUpgradable {
       byte[] ivBuf,
       short ivStart,
       short ivLength,
-      short macLength);
+      short macLength,
+      byte[] keyIdBuf,
+      short keyIdStart);
 
   /**
    * This creates a persistent operation for signing, verify, encryption and decryption using RSA
@@ -414,11 +442,15 @@ public interface KMSEProvider extends KMUpgradable {
    * KMType.RSA_PKCS1_1_5_SIGN or KMType.RSA_PSS.
    * @param digest is KMType.DIGEST_NONE or KMType.SHA2_256.
    * @param privKeyBuf is the private key in case of EC or private key exponent is case of RSA.
+   * For RSA a 640 bytes private key holds the CRT components as returned by createAsymmetricKey.
    * @param privKeyStart is the start of the private key.
    * @param privKeyLength is the length of the private key.
    * @param pubModBuf is the modulus (in case of RSA) or public key (in case of EC).
    * @param pubModStart is the start of the modulus.
    * @param pubModLength is the length of the modulus.
+   * @param keyIdBuf is the buffer of the 32 bytes digest of the key blob, which identifies the
+   * private key without revealing it, so that its key object can be re-used. It can be null.
+   * @param keyIdStart is the start of the key id buffer.
    * @return KMOperation instance that can be executed.
    */
   KMOperation initAsymmetricOperation(
@@ -431,7 +463,9 @@ public interface KMSEProvider extends KMUpgradable {
       short privKeyLength,
       byte[] pubModBuf,
       short pubModStart,
-      short pubModLength);
+      short pubModLength,
+      byte[] keyIdBuf,
+      short keyIdStart);
 
   /**
    * This operation creates the empty instance of KMAttestationCert for rsa or ec public key
@@ -468,6 +502,21 @@ public interface KMSEProvider extends KMUpgradable {
    */
   short readCertificateChain(byte[] buf, short offset);
 
+  /**
+   * This function returns the persistent buffer in which the certificate chain is stored, so that
+   * the chain can be sent without copying it. The buffer must not be modified by the caller.
+   *
+   * @return the buffer holding the certificate chain.
+   */
+  byte[] getCertificateChainBuffer();
+
+  /**
+   * This function returns the start of the certificate chain in the certificate chain buffer.
+   *
+   * @return start of the certificate chain.
+   */
+  short getCertificateChainOffset();
+
   /**
    * This function returns the cert chain length.
    *
@@ -559,4 +608,26 @@ public interface KMSEProvider extends KMUpgradable {
    */
   KMPreSharedKey getPresharedKey();
 
+  /**
+   * This function writes the statistics of the crypto object pools maintained by the SEProvider,
+   * which are used to size the pools. The format of the statistics is specific to the SEProvider.
+   *
+   * @param buf is the buffer to which the statistics are written.
+   * @param start is the start of the buffer.
+   * @return length of the statistics in bytes, which is 0 if the SEProvider has no pools.
+   */
+  short getPoolStatistics(byte[] buf, short start);
+
+  /**
+   * This function generates one key pair into the pool of pregenerated key pairs, if the pool is
+   * not full, so that createAsymmetricKey can take a pregenerated key pair instead of generating
+   * it. createAsymmetricKey generates the key pair itself when the pool is empty. It is only
+   * called by the refill key pair pool command, which the HAL sends at boot and after each
+   * generateKey.
+   *
+   * @return the number of key pairs missing in the pool, which is 0 if the pool is full or the
+   * SEProvider has no pool.
+   */
+  short refillKeyPairPool();
+
 }
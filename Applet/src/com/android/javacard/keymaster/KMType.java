@@ -275,6 +275,8 @@ public abstract class KMType {
   public static final short LENGTH_FROM_PDU = (short) 0xFFFF;
 
   public static final byte NO_VALUE = (byte) 0xff;
+  // Size of a bitmap with a bit for every byte value.
+  protected static final byte BYTE_VALUE_BITMAP_SIZE = 32;
 
   protected static KMRepository repository;
   protected static byte[] heap;
@@ -313,4 +315,32 @@ public abstract class KMType {
     return ptr;
   }
 
+  // Creates one bitmap of byte values for each of the given arrays of byte values. The bitmaps are
+  // stored one after the other in the returned buffer.
+  protected static byte[] createValueBitmaps(Object[] values) {
+    byte[] bitmaps = new byte[(short) (values.length * BYTE_VALUE_BITMAP_SIZE)];
+    byte[] vals;
+    short offset;
+    short index = 0;
+    short valIndex;
+    while (index < (short) values.length) {
+      vals = (byte[]) values[index];
+      valIndex = 0;
+      while (valIndex < (short) vals.length) {
+        offset = (short) ((short) (index * BYTE_VALUE_BITMAP_SIZE)
+            + (short) ((short) (vals[valIndex] & 0xFF) >> 3));
+        bitmaps[offset] |= (byte) (1 << (vals[valIndex] & 0x07));
+        valIndex++;
+      }
+      index++;
+    }
+    return bitmaps;
+  }
+
+  protected static boolean isValueInBitmap(byte[] bitmaps, short bitmapIndex, byte val) {
+    short offset = (short) ((short) (bitmapIndex * BYTE_VALUE_BITMAP_SIZE)
+        + (short) ((short) (val & 0xFF) >> 3));
+    return ((bitmaps[offset] >> (val & 0x07)) & 0x01) != 0;
+  }
+
 }
@@ -64,6 +64,8 @@ namespace V4_1 {
 namespace javacard {
 static std::unique_ptr<se_transport::TransportFactory> pTransportFactory = nullptr;
 constexpr size_t kOperationTableSize = 4;
+/* Upper bound of the refill key pair pool commands sent at once, larger than the pools of the applet. */
+constexpr size_t kMaxKeyPairPoolRefills = 8;
 /* Key is the newly generated operation handle. Value is a pair with first element having
  * original operation handle and second element represents SW or SB operation.
  */
@@ -97,6 +99,8 @@ enum class Instruction {
     INS_DEVICE_LOCKED_CMD = INS_END_KM_PROVISION_CMD+20,
     INS_EARLY_BOOT_ENDED_CMD = INS_END_KM_PROVISION_CMD+21,
     INS_GET_CERT_CHAIN_CMD = INS_END_KM_PROVISION_CMD+22,
+    INS_REFILL_KEY_PAIR_POOL_CMD = INS_END_KM_PROVISION_CMD+25,
+    INS_ATTEST_KEY_WITH_CERT_CHAIN_CMD = INS_END_KM_PROVISION_CMD+26,
     INS_GET_PROVISION_STATUS_CMD = INS_BEGIN_KM_CMD+8,
 };
 
@@ -455,6 +459,35 @@ ErrorCode sendData(Instruction ins, std::vector<uint8_t>& inData, std::vector<ui
     return (ErrorCode::OK);//success
 }
 
+/* Refills the key pair pools of the applet, one key pair per command, until the applet reports
+ * that no key pair is missing. It is called after the response of a request is returned, so that
+ * the key pair generation is not part of the latency of any request.
+ */
+static void refillKeyPairPool() {
+    std::vector<uint8_t> cborData;
+    std::vector<uint8_t> cborOutData;
+    std::unique_ptr<Item> item;
+    CborConverter cborConverter;
+    ErrorCode errorCode = ErrorCode::UNKNOWN_ERROR;
+    uint64_t missing = 0;
+
+    for(size_t i = 0; i < kMaxKeyPairPoolRefills; i++) {
+        cborOutData.clear();
+        errorCode = sendData(Instruction::INS_REFILL_KEY_PAIR_POOL_CMD, cborData, cborOutData);
+        if(errorCode != ErrorCode::OK) {
+            LOG(ERROR) << "Failed to send REFILL_KEY_PAIR_POOL_CMD";
+            return;
+        }
+        //Skip last 2 bytes in cborData, it contains status.
+        std::tie(item, errorCode) = decodeData(cborConverter, std::vector<uint8_t>(cborOutData.begin(), cborOutData.end()-2),
+                true);
+        if(item == nullptr || errorCode != ErrorCode::OK || !cborConverter.getUint64(item, 1, missing) ||
+                missing == 0) {
+            return;
+        }
+    }
+}
+
 JavacardKeymaster4Device::JavacardKeymaster4Device(): softKm_(new ::keymaster::AndroidKeymaster(
             []() -> auto {
             auto context = new JavaCardSoftKeymasterContext();
@@ -604,6 +637,8 @@ Return<void> JavacardKeymaster4Device::computeSharedHmac(const hidl_vec<HmacShar
     }
 #endif
     _hidl_cb(errorCode, sharingCheck);
+    //The shared HMAC is computed at boot, so the key pair pools are filled before the first generateKey.
+    refillKeyPairPool();
     return Void();
  }
 
@@ -672,6 +707,8 @@ Return<void> JavacardKeymaster4Device::generateKey(const hidl_vec<KeyParameter>&
         }
     }
     _hidl_cb(errorCode, keyBlob, keyCharacteristics);
+    //Replace the key pair taken from the pool, after the response is returned.
+    refillKeyPairPool();
     return Void();
 }
 
@@ -852,38 +889,25 @@ Return<void> JavacardKeymaster4Device::attestKey(const hidl_vec<uint8_t>& keyToA
     array.add(std::vector<uint8_t>(keyToAttest));
     cborConverter_.addKeyparameters(array, attestParams);
     std::vector<uint8_t> cborData = array.encode();
-    errorCode = sendData(Instruction::INS_ATTEST_KEY_CMD, cborData, cborOutData);
+    //The response holds the attestation certificate and the provisioned certificate chain,
+    //so the certificate chain is not read with a separate INS_GET_CERT_CHAIN_CMD.
+    errorCode = sendData(Instruction::INS_ATTEST_KEY_WITH_CERT_CHAIN_CMD, cborData, cborOutData);
 
     if(errorCode == ErrorCode::OK) {
         std::vector<std::vector<uint8_t>> temp;
-        std::vector<uint8_t> rootCert;
         //Skip last 2 bytes in cborData, it contains status.
         std::tie(item, errorCode) = decodeData(cborConverter_, std::vector<uint8_t>(cborOutData.begin(), cborOutData.end()-2),
                 true);
         if (item != nullptr) {
-            if(!cborConverter_.getMultiBinaryArray(item, 1, temp)) {
+            std::vector<uint8_t> chain;
+            if(!cborConverter_.getMultiBinaryArray(item, 1, temp) ||
+               !cborConverter_.getBinaryArray(item, 2, chain)) {
                 errorCode = ErrorCode::UNKNOWN_ERROR;
             } else {
-                cborData.clear();
-                cborOutData.clear();
-                errorCode = sendData(Instruction::INS_GET_CERT_CHAIN_CMD, cborData, cborOutData);
-                if(errorCode == ErrorCode::OK) {
-                    //Skip last 2 bytes in cborData, it contains status.
-                    std::tie(item, errorCode) = decodeData(cborConverter_, std::vector<uint8_t>(cborOutData.begin(),
-                    cborOutData.end()-2),
-                            true);
-                    if (item != nullptr) {
-                        std::vector<uint8_t> chain;
-                        if(!cborConverter_.getBinaryArray(item, 1, chain)) {
-                            errorCode = ErrorCode::UNKNOWN_ERROR;
-                        } else {
-                            if(ErrorCode::OK == (errorCode = getCertificateChain(chain, temp))) {
-                                certChain.resize(temp.size());
-                                for(int i = 0; i < temp.size(); i++) {
-                                    certChain[i] = temp[i];
-                                }
-                            }
-                        }
+                if(ErrorCode::OK == (errorCode = getCertificateChain(chain, temp))) {
+                    certChain.resize(temp.size());
+                    for(int i = 0; i < temp.size(); i++) {
+                        certChain[i] = temp[i];
                     }
                 }
             }